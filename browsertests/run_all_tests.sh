@@ -4,3 +4,12 @@ browsertests/run_browser_test.sh /java/com/tzbits/ninelives/browsertests/TestPer
 browsertests/run_browser_test.sh /java/com/tzbits/ninelives/browsertests/TestChoiceExtraData.js
 browsertests/run_browser_test.sh /java/com/tzbits/ninelives/browsertests/TestRefreshPersistence.js
 browsertests/run_browser_test.sh /java/com/tzbits/ninelives/browsertests/TestResumeBug.js
+browsertests/run_browser_test.sh /java/com/tzbits/ninelives/browsertests/TestChunkLoading.js
+browsertests/run_browser_test.sh /java/com/tzbits/ninelives/browsertests/TestVisitCount.js
+browsertests/run_browser_test.sh /java/com/tzbits/ninelives/browsertests/TestStateCheckpoints.js
+browsertests/run_browser_test.sh /java/com/tzbits/ninelives/browsertests/TestLogPersistence.js
+browsertests/run_browser_test.sh /java/com/tzbits/ninelives/browsertests/TestHeadlessReplay.js
+browsertests/run_browser_test.sh /java/com/tzbits/ninelives/browsertests/TestDelegatedClicks.js
+browsertests/run_browser_test.sh /java/com/tzbits/ninelives/browsertests/TestInstrumentation.js
+browsertests/run_browser_test.sh /java/com/tzbits/ninelives/browsertests/TestImagePrefetch.js
+browsertests/run_browser_test.sh /java/com/tzbits/ninelives/browsertests/TestImageVariants.js
@@ -0,0 +1,280 @@
+package com.tzbits.ninelives;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Transpiles many 9l files, in parallel, with each file's errors kept
+ * separate from the others.
+ */
+public final class BatchTranspiler {
+
+  /** One input file and where to write its transpiled JavaScript. */
+  public record Job(Path in, Path out) {}
+
+  /** A job that failed, and why. */
+  public record Failure(Job job, Throwable cause) {
+
+    /** Returns the error formatted as {@code file:line: message}. */
+    public String diagnostic(boolean withStackTrace) {
+      String message = cause.getMessage() == null ? cause.toString() : cause.getMessage();
+      // Source errors carry a "line: " prefix, see SourceLine.fatalError.
+      String separator = cause instanceof IllegalStateException ? ":" : ": ";
+      String diagnostic = cause instanceof NoSuchFileException missing
+          ? missing.getFile() + ": No such file or directory"
+          : job.in() + separator + message;
+      // Unexpected exceptions are transpiler bugs, so always show where.
+      if (withStackTrace
+          || !(cause instanceof IllegalStateException || cause instanceof IOException)) {
+        StringWriter trace = new StringWriter();
+        cause.printStackTrace(new PrintWriter(trace));
+        diagnostic += "\n" + trace;
+      }
+      return diagnostic;
+    }
+  }
+
+  /**
+   * How to transpile a batch, beyond what goes where.
+   *
+   * @param cache the cache to reuse and fill
+   * @param graphs one per job, to record its part of the story graph
+   *     into the element at the same index, or null not to
+   * @param omittedNodes the fully qualified ids of nodes to leave out
+   *     of the JavaScript, see {@link Transpiler#withOmittedNodes}
+   * @param compact whether to write compact JavaScript, see {@link
+   *     Transpiler#withCompact}
+   * @param chunked whether to write all but the start node to a chunk
+   *     next to each output, loaded on demand; see {@link #chunkPath}
+   * @param stats where to record the time and output size of each file
+   * @param instrument whether to time each node in the browser, see
+   *     {@link Transpiler#withInstrument}
+   */
+  public record Options(
+      NodeCache cache, List<StoryGraph.FileBuilder> graphs, Set<String> omittedNodes,
+      boolean compact, boolean chunked, CompileStats stats, boolean instrument) {
+
+    public static final Options DEFAULT = builder().build();
+
+    public static Builder builder() {
+      return new Builder();
+    }
+
+    public Builder toBuilder() {
+      return new Builder(this);
+    }
+
+    /** Builds {@link Options}, starting from the defaults or from other options. */
+    public static final class Builder {
+      private NodeCache cache = NodeCache.NONE;
+      private List<StoryGraph.FileBuilder> graphs = null;
+      private Set<String> omittedNodes = ImmutableSet.of();
+      private boolean compact = false;
+      private boolean chunked = false;
+      private CompileStats stats = CompileStats.NONE;
+      private boolean instrument = false;
+
+      private Builder() {}
+
+      private Builder(Options options) {
+        cache = options.cache;
+        graphs = options.graphs;
+        omittedNodes = options.omittedNodes;
+        compact = options.compact;
+        chunked = options.chunked;
+        stats = options.stats;
+        instrument = options.instrument;
+      }
+
+      public Builder cache(NodeCache cache) {
+        this.cache = cache;
+        return this;
+      }
+
+      public Builder graphs(List<StoryGraph.FileBuilder> graphs) {
+        this.graphs = graphs;
+        return this;
+      }
+
+      public Builder omittedNodes(Set<String> omittedNodes) {
+        this.omittedNodes = omittedNodes;
+        return this;
+      }
+
+      public Builder compact(boolean compact) {
+        this.compact = compact;
+        return this;
+      }
+
+      public Builder chunked(boolean chunked) {
+        this.chunked = chunked;
+        return this;
+      }
+
+      public Builder stats(CompileStats stats) {
+        this.stats = stats;
+        return this;
+      }
+
+      public Builder instrument(boolean instrument) {
+        this.instrument = instrument;
+        return this;
+      }
+
+      public Options build() {
+        return new Options(cache, graphs, omittedNodes, compact, chunked, stats, instrument);
+      }
+    }
+  }
+
+  private BatchTranspiler() {}
+
+  /**
+   * Transpiles every job using up to {@code parallelism} threads.
+   *
+   * @return the failures, in the order of {@code jobs}
+   */
+  public static ImmutableList<Failure> run(List<Job> jobs, int parallelism) {
+    return run(jobs, parallelism, Options.DEFAULT);
+  }
+
+  /**
+   * Transpiles every job using up to {@code parallelism} threads,
+   * reusing and filling {@code cache}.
+   *
+   * @return the failures, in the order of {@code jobs}
+   */
+  public static ImmutableList<Failure> run(List<Job> jobs, int parallelism, NodeCache cache) {
+    return run(jobs, parallelism, Options.builder().cache(cache).build());
+  }
+
+  /**
+   * Transpiles every job using up to {@code parallelism} threads.
+   *
+   * @return the failures, in the order of {@code jobs}
+   */
+  public static ImmutableList<Failure> run(List<Job> jobs, int parallelism, Options options) {
+    return forEachJob(jobs, parallelism, i -> {
+      Job job = jobs.get(i);
+      Transpiler transpiler = Transpiler.forFile(job.in())
+          .withCache(options.cache())
+          .withGraph(options.graphs() == null ? null : options.graphs().get(i))
+          .withOmittedNodes(options.omittedNodes())
+          .withCompact(options.compact())
+          .withInstrument(options.instrument())
+          .withStats(options.stats());
+      long start = System.nanoTime();
+      if (!options.chunked()) {
+        OutputFile.write(job.out(), transpiler::transpile);
+      } else {
+        Path chunk = chunkPath(job.out());
+        OutputFile.write(job.out(), out -> OutputFile.write(
+            chunk, lazyOut -> transpiler.transpile(out, lazyOut, "./" + chunk.getFileName())));
+      }
+      options.stats().addOutputTime(job.in().toString(), System.nanoTime() - start);
+    });
+  }
+
+  /**
+   * Returns where the chunk of nodes loaded on demand goes for the
+   * output {@code out}: {@code story.9l.js} has {@code story.9l.chunk.js}.
+   */
+  public static Path chunkPath(Path out) {
+    String name = out.getFileName().toString();
+    String base = name.endsWith(".js") ? name.substring(0, name.length() - 3) : name;
+    return out.resolveSibling(base + ".chunk.js");
+  }
+
+  /**
+   * Records each job's part of the story graph into the {@code graphs}
+   * element at the same index, without transpiling or writing
+   * anything, using up to {@code parallelism} threads.
+   *
+   * @return the failures, in the order of {@code jobs}
+   */
+  public static ImmutableList<Failure> index(
+      List<Job> jobs, int parallelism, List<StoryGraph.FileBuilder> graphs) {
+    return forEachJob(jobs, parallelism,
+        i -> Transpiler.forFile(jobs.get(i).in()).index(graphs.get(i)));
+  }
+
+  private interface JobTask {
+    void run(int job) throws Exception;
+  }
+
+  private static ImmutableList<Failure> forEachJob(
+      List<Job> jobs, int parallelism, JobTask task) {
+    if (jobs.size() == 1 || parallelism <= 1) {
+      ImmutableList.Builder<Failure> failures = ImmutableList.builder();
+      for (int i = 0; i < jobs.size(); i++) {
+        attempt(jobs, i, task).ifPresent(failures::add);
+      }
+      return failures.build();
+    }
+
+    List<Callable<Optional<Failure>>> tasks = new ArrayList<>(jobs.size());
+    for (int i = 0; i < jobs.size(); i++) {
+      int job = i;
+      tasks.add(() -> attempt(jobs, job, task));
+    }
+    ImmutableList.Builder<Failure> failures = ImmutableList.builder();
+    try (ForkJoinPool pool = new ForkJoinPool(Math.min(parallelism, jobs.size()))) {
+      for (Future<Optional<Failure>> result : pool.invokeAll(tasks)) {
+        result.get().ifPresent(failures::add);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while transpiling.", e);
+    } catch (ExecutionException e) {
+      // attempt() catches everything it can report per file.
+      throw new IllegalStateException(e.getCause());
+    }
+    return failures.build();
+  }
+
+  /**
+   * Reads jobs from a manifest with one {@code input<TAB>output} pair
+   * per line. Blank lines and lines starting with '#' are ignored.
+   */
+  public static ImmutableList<Job> readManifest(Path manifest) throws IOException {
+    ImmutableList.Builder<Job> jobs = ImmutableList.builder();
+    List<String> lines = Files.readAllLines(manifest, StandardCharsets.UTF_8);
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i);
+      if (line.isBlank() || line.startsWith("#")) {
+        continue;
+      }
+      int tab = line.indexOf('\t');
+      if (tab == -1) {
+        throw new IOException(String.format(
+            "%s:%d: expected <input><TAB><output>.", manifest, i + 1));
+      }
+      jobs.add(new Job(Path.of(line.substring(0, tab)), Path.of(line.substring(tab + 1))));
+    }
+    return jobs.build();
+  }
+
+  private static Optional<Failure> attempt(List<Job> jobs, int job, JobTask task) {
+    try {
+      task.run(job);
+      return Optional.empty();
+    } catch (Exception e) {
+      return Optional.of(new Failure(jobs.get(job), e));
+    }
+  }
+}
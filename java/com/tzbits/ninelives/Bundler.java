@@ -0,0 +1,309 @@
+package com.tzbits.ninelives;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Links the ES modules {@code index.html} imports, {@code game.js},
+ * {@code env.js}, {@code story.js} and the transpiled files through
+ * {@code story-imports.js}, into one script, so the browser makes one
+ * request for them rather than a waterfall of one per module.
+ *
+ * <p>Each module runs in a function of its own, in the order the
+ * browser would run it, and returns its exports, which the modules
+ * importing them destructure: {@code import {game} from "./game.js"}
+ * becomes {@code const {game} = __9l_0;}. So modules keep their own
+ * top-level names, like the {@code $0} constants of compact output.
+ * Only named imports and exports, and exported declarations, are
+ * supported, which is all the story's modules use; dynamic {@code
+ * import()}, and so chunked output, is left to the browser.
+ */
+public final class Bundler {
+
+  /** The page, whose inline module script is where bundling starts. */
+  static final String INDEX = "index.html";
+
+  /** The bundle, unless it is inlined into {@link #INDEX}. */
+  static final String BUNDLE = "bundle.js";
+
+  private static final Pattern SCRIPT =
+      Pattern.compile("<script\\s+type=\"module\"\\s*>(.*?)</script>", Pattern.DOTALL);
+
+  /** A static import, with what it imports (if anything) and from where. */
+  private static final Pattern IMPORT = Pattern.compile(
+      "^[ \\t]*import\\s+(?:([^;'\"]*?)\\s*from\\s*)?[\"']([^\"']+)[\"'][ \\t]*;?\\n?",
+      Pattern.MULTILINE);
+
+  private static final Pattern EXPORT_DECLARATION = Pattern.compile(
+      "^([ \\t]*)export\\s+((?:async\\s+)?function\\s*\\*?|class|const|let|var)\\s+([\\w$]+)",
+      Pattern.MULTILINE);
+
+  private static final Pattern EXPORT_LIST =
+      Pattern.compile("^[ \\t]*export\\s*\\{([^}]*)\\}[ \\t]*;?\\n?", Pattern.MULTILINE);
+
+  private static final Pattern ANY_EXPORT = Pattern.compile("^[ \\t]*export\\b", Pattern.MULTILINE);
+
+  private static final Pattern END_SCRIPT = Pattern.compile("</(script)", Pattern.CASE_INSENSITIVE);
+
+  /** The page and, unless it was inlined, the script it loads. */
+  record Bundle(String html, String script) {}
+
+  /** A module, parsed. */
+  private record Module(
+      String path, String body, List<Import> imports, Map<String, String> exports) {}
+
+  /** What a module imports from another: {@code {a, b as c}}, {@code * as ns} or nothing. */
+  private record Import(String clause, String from) {}
+
+  @Parameter(names = "--file",
+             description = "A file of the story, as <path in the story>=<file>. May be repeated.")
+  private List<String> files = new ArrayList<>();
+
+  @Parameter(names = "--out_dir",
+             description = "The directory to write index.html and bundle.js to, and to copy "
+                 + "the files other than HTML and JavaScript to.",
+             required = true)
+  private String outDirName;
+
+  @Parameter(names = "--inline",
+             description = "Put the bundle in index.html instead of bundle.js.")
+  private boolean inline = false;
+
+  private Bundler() {}
+
+  public static void main(String[] argv) {
+    Bundler bundler = new Bundler();
+    try {
+      JCommander.newBuilder()
+          .addObject(bundler)
+          .build()
+          .parse(argv);
+    } catch (ParameterException e) {
+      System.err.println(e.getMessage());
+      System.exit(-1);
+    }
+    int exitCode = bundler.run();
+    if (exitCode != 0) {
+      System.exit(exitCode);
+    }
+  }
+
+  private int run() {
+    try {
+      Path outDir = Path.of(outDirName);
+      Files.createDirectories(outDir);
+      Map<String, String> sources = new LinkedHashMap<>();
+      for (String file : files) {
+        int eq = file.indexOf('=');
+        if (eq <= 0) {
+          throw new IllegalArgumentException("Expected --file <path>=<file>, got: " + file);
+        }
+        String path = file.substring(0, eq);
+        Path in = Path.of(file.substring(eq + 1));
+        if (path.endsWith(".js") || path.endsWith(".html")) {
+          sources.put(path, Files.readString(in, StandardCharsets.UTF_8));
+        } else {
+          Path out = outDir.resolve(path);
+          Files.createDirectories(out.getParent());
+          Files.copy(in, out);
+        }
+      }
+      Bundle bundle = bundle(sources, inline);
+      Files.writeString(outDir.resolve(INDEX), bundle.html(), StandardCharsets.UTF_8);
+      if (bundle.script() != null) {
+        Files.writeString(outDir.resolve(BUNDLE), bundle.script(), StandardCharsets.UTF_8);
+      }
+    } catch (IOException | IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      return -1;
+    }
+    return 0;
+  }
+
+  /**
+   * Bundles the modules {@code index.html}'s inline module script
+   * imports, from {@code sources} by path, into a script that {@code
+   * index.html} then loads, or has inline.
+   *
+   * @throws IllegalArgumentException if a module can't be bundled,
+   *     e.g. it imports one that isn't there, or in a cycle
+   */
+  static Bundle bundle(Map<String, String> sources, boolean inline) {
+    String html = sources.get(INDEX);
+    if (html == null) {
+      throw new IllegalArgumentException("No " + INDEX + " to bundle.");
+    }
+    Matcher script = SCRIPT.matcher(html);
+    if (!script.find()) {
+      throw new IllegalArgumentException(INDEX + " has no inline <script type=\"module\">.");
+    }
+
+    List<Module> order = new ArrayList<>();
+    Map<String, Integer> indexes = new LinkedHashMap<>();
+    Module entry = parse(INDEX, script.group(1));
+    link(entry, sources, order, indexes, new HashSet<>());
+
+    StringBuilder out = new StringBuilder("// Bundled from ")
+        .append(String.join(", ", indexes.keySet()))
+        .append(".\n");
+    for (Module module : order) {
+      out.append("\n// ").append(module.path()).append("\n")
+          .append("const ").append(name(indexes.get(module.path()))).append(" = (() => {\n");
+      appendBody(out, module, indexes, order);
+      out.append("return {");
+      String separator = "";
+      for (Map.Entry<String, String> export : module.exports().entrySet()) {
+        out.append(separator).append(export.getKey());
+        if (!export.getKey().equals(export.getValue())) {
+          out.append(": ").append(export.getValue());
+        }
+        separator = ", ";
+      }
+      out.append("};\n})();\n");
+    }
+    out.append("\n// ").append(INDEX).append("\n(() => {\n");
+    appendBody(out, entry, indexes, order);
+    out.append("})();\n");
+
+    String bundled = out.toString();
+    String tag = inline
+        ? "<script type=\"module\">\n" + END_SCRIPT.matcher(bundled).replaceAll("<\\\\/$1") + "</script>"
+        : "<script type=\"module\" src=\"" + BUNDLE + "\"></script>";
+    String page = html.substring(0, script.start()) + tag + html.substring(script.end());
+    return new Bundle(page, inline ? null : bundled);
+  }
+
+  /**
+   * Adds the modules {@code module} imports to {@code order} after
+   * the modules they import, the order the browser runs them in.
+   */
+  private static void link(Module module, Map<String, String> sources, List<Module> order,
+      Map<String, Integer> indexes, Set<String> linking) {
+    linking.add(module.path());
+    for (Import imported : module.imports()) {
+      if (indexes.containsKey(imported.from())) {
+        continue;
+      }
+      if (linking.contains(imported.from())) {
+        throw new IllegalArgumentException(
+            "Can't bundle the import cycle through " + imported.from() + ".");
+      }
+      String source = sources.get(imported.from());
+      if (source == null) {
+        throw new IllegalArgumentException(
+            module.path() + " imports " + imported.from() + ", which isn't there.");
+      }
+      Module dependency = parse(imported.from(), source);
+      link(dependency, sources, order, indexes, linking);
+      indexes.put(dependency.path(), order.size());
+      order.add(dependency);
+    }
+    linking.remove(module.path());
+  }
+
+  /** Appends the body of {@code module}, after constants for what it imports. */
+  private static void appendBody(
+      StringBuilder out, Module module, Map<String, Integer> indexes, List<Module> order) {
+    for (Import imported : module.imports()) {
+      if (imported.clause() == null) {
+        continue;
+      }
+      int index = indexes.get(imported.from());
+      String clause = imported.clause().trim();
+      if (clause.startsWith("*")) {
+        String namespace = clause.replaceFirst("^\\*\\s*as\\s+", "");
+        out.append("const ").append(namespace).append(" = ").append(name(index)).append(";\n");
+        continue;
+      }
+      if (!clause.startsWith("{") || !clause.endsWith("}")) {
+        throw new IllegalArgumentException(module.path() + ": default imports aren't supported: "
+            + clause);
+      }
+      List<String> bindings = new ArrayList<>();
+      for (String binding : clause.substring(1, clause.length() - 1).split(",")) {
+        String[] names = binding.trim().split("\\s+as\\s+");
+        if (names[0].isEmpty()) {
+          continue;
+        }
+        if (!order.get(index).exports().containsKey(names[0])) {
+          throw new IllegalArgumentException(
+              module.path() + " imports " + names[0] + ", which " + imported.from()
+                  + " doesn't export.");
+        }
+        bindings.add(names.length == 1 ? names[0] : names[0] + ": " + names[1]);
+      }
+      out.append("const {").append(String.join(", ", bindings)).append("} = ")
+          .append(name(index)).append(";\n");
+    }
+    out.append(module.body());
+    if (!module.body().endsWith("\n")) {
+      out.append("\n");
+    }
+  }
+
+  /** Parses a module's imports and exports, and takes them out of its body. */
+  private static Module parse(String path, String source) {
+    List<Import> imports = new ArrayList<>();
+    Matcher m = IMPORT.matcher(source);
+    StringBuilder body = new StringBuilder();
+    while (m.find()) {
+      imports.add(new Import(m.group(1), resolve(path, m.group(2))));
+      m.appendReplacement(body, "");
+    }
+    m.appendTail(body);
+
+    Map<String, String> exports = new LinkedHashMap<>();
+    m = EXPORT_DECLARATION.matcher(body.toString());
+    body = new StringBuilder();
+    while (m.find()) {
+      exports.put(m.group(3), m.group(3));
+      m.appendReplacement(body, Matcher.quoteReplacement(m.group(1) + m.group(2) + " " + m.group(3)));
+    }
+    m.appendTail(body);
+
+    m = EXPORT_LIST.matcher(body.toString());
+    body = new StringBuilder();
+    while (m.find()) {
+      for (String binding : m.group(1).split(",")) {
+        String[] names = binding.trim().split("\\s+as\\s+");
+        if (!names[0].isEmpty()) {
+          exports.put(names.length == 1 ? names[0] : names[1], names[0]);
+        }
+      }
+      m.appendReplacement(body, "");
+    }
+    m.appendTail(body);
+
+    if (ANY_EXPORT.matcher(body).find()) {
+      throw new IllegalArgumentException(
+          path + ": only named exports and exported declarations are supported.");
+    }
+    return new Module(path, body.toString(), imports, exports);
+  }
+
+  /** The path {@code specifier}, imported by the module at {@code from}, leads to. */
+  private static String resolve(String from, String specifier) {
+    if (!specifier.startsWith("./") && !specifier.startsWith("../")) {
+      throw new IllegalArgumentException(
+          from + " imports " + specifier + ", which isn't a relative path.");
+    }
+    return Path.of(from).resolveSibling(specifier).normalize().toString().replace('\\', '/');
+  }
+
+  private static String name(int index) {
+    return "__9l_" + index;
+  }
+}
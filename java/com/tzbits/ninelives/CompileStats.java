@@ -0,0 +1,226 @@
+package com.tzbits.ninelives;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Where the time of transpiling goes and how big the output is, per
+ * file, summed across the files for a report.
+ *
+ * <p>Each file keeps only what was measured the last time it was
+ * transpiled, so that rounds of watching add up to the story as it
+ * is rather than counting a file once per change.
+ *
+ * <p>Safe to share between threads.
+ */
+public final class CompileStats {
+
+  /** What the time of transpiling a file is spent on. */
+  public enum Phase {
+    /** Reading source lines. */
+    READ,
+    /** Classifying each line, see {@link SourceLine#newInstance}. */
+    CLASSIFY,
+    /** Everything else that goes into the JavaScript. */
+    TRANSPILE,
+    /** Escaping and rendering text, see {@link JsStrings}. */
+    ESCAPE,
+    /** Writing the JavaScript out, including flushing and moving the file into place. */
+    WRITE,
+  }
+
+  /** Measures nothing. */
+  public static final CompileStats NONE = new CompileStats(false);
+
+  /** The JavaScript emitted for one node. */
+  record Node(String id, int line, long bytes) {}
+
+  /** What was measured transpiling one file. Only touched by the thread transpiling it. */
+  static final class File {
+    final String name;
+    final long[] nanos = new long[Phase.values().length];
+    final long[] lines = new long[LineType.values().length];
+    final List<Node> nodes = new ArrayList<>();
+    /** How long transpiling took in all, see {@link #setTotal}. */
+    private long transpiling = 0;
+
+    File(String name) {
+      this.name = name;
+    }
+
+    void add(Phase phase, long nanos) {
+      this.nanos[phase.ordinal()] += nanos;
+    }
+
+    /** Sets the time of transpiling in all, putting what no other phase took under TRANSPILE. */
+    void setTotal(long nanos) {
+      transpiling = nanos;
+      long measured = 0;
+      for (Phase phase : Phase.values()) {
+        if (phase != Phase.TRANSPILE) {
+          measured += this.nanos[phase.ordinal()];
+        }
+      }
+      this.nanos[Phase.TRANSPILE.ordinal()] = Math.max(0, nanos - measured);
+    }
+
+    long bytes() {
+      return nodes.stream().mapToLong(Node::bytes).sum();
+    }
+
+    long totalNanos() {
+      return sum(nanos);
+    }
+  }
+
+  private final boolean enabled;
+  private final Map<String, File> files = new ConcurrentHashMap<>();
+
+  private CompileStats(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /**
+   * Returns stats to record into. The JVM's peak heap is measured from
+   * here on, so that a persistent worker reports this build's rather
+   * than the most any build it ran has used.
+   */
+  public static CompileStats create() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        pool.resetPeakUsage();
+      }
+    }
+    return new CompileStats(true);
+  }
+
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Records what was measured transpiling a file, replacing anything measured of it before. */
+  void record(File file) {
+    if (enabled) {
+      files.put(file.name, file);
+    }
+  }
+
+  /**
+   * Adds writing the output of {@code fileName} to its stats, given
+   * how long writing it took in all, transpiling included.
+   */
+  void addOutputTime(String fileName, long nanos) {
+    File file = files.get(fileName);
+    if (file != null) {
+      file.add(Phase.WRITE, Math.max(0, nanos - file.transpiling));
+    }
+  }
+
+  /** How many files have been recorded. */
+  public int files() {
+    return files.size();
+  }
+
+  /**
+   * Returns the stats as JSON: the time in milliseconds of each phase,
+   * source lines by type, how many nodes and choices there are, the
+   * bytes of JavaScript emitted for each node with the largest first,
+   * each file with the slowest first, and the peak heap of the JVM.
+   */
+  public String toJson() {
+    List<File> all = new ArrayList<>(files.values());
+    all.sort(Comparator.comparingLong(File::totalNanos).reversed()
+        .thenComparing(file -> file.name));
+
+    long[] nanos = new long[Phase.values().length];
+    long[] lines = new long[LineType.values().length];
+    record FileNode(String file, Node node) {}
+    List<FileNode> nodes = new ArrayList<>();
+    List<Object> fileList = new ArrayList<>();
+    for (File file : all) {
+      for (int i = 0; i < nanos.length; i++) {
+        nanos[i] += file.nanos[i];
+      }
+      for (int i = 0; i < lines.length; i++) {
+        lines[i] += file.lines[i];
+      }
+      for (Node node : file.nodes) {
+        nodes.add(new FileNode(file.name, node));
+      }
+      Map<String, Object> json = new LinkedHashMap<>();
+      json.put("file", file.name);
+      json.put("ms", millis(file.totalNanos()));
+      json.put("lines", sum(file.lines));
+      json.put("nodes", file.lines[LineType.NODE.ordinal()]);
+      json.put("bytes", file.bytes());
+      fileList.add(json);
+    }
+    nodes.sort(Comparator.comparingLong((FileNode node) -> node.node().bytes()).reversed());
+    List<Object> nodeList = new ArrayList<>();
+    for (FileNode node : nodes) {
+      Map<String, Object> json = new LinkedHashMap<>();
+      json.put("id", node.node().id());
+      json.put("file", node.file());
+      json.put("line", node.node().line());
+      json.put("bytes", node.node().bytes());
+      nodeList.add(json);
+    }
+
+    Map<String, Object> phases = new LinkedHashMap<>();
+    for (Phase phase : Phase.values()) {
+      phases.put(phase.name().toLowerCase(Locale.ROOT), millis(nanos[phase.ordinal()]));
+    }
+    phases.put("total", millis(sum(nanos)));
+    Map<String, Object> lineCounts = new LinkedHashMap<>();
+    for (LineType type : LineType.values()) {
+      lineCounts.put(type.name().toLowerCase(Locale.ROOT), lines[type.ordinal()]);
+    }
+
+    Map<String, Object> json = new LinkedHashMap<>();
+    json.put("files", all.size());
+    json.put("ms", phases);
+    json.put("lines", lineCounts);
+    json.put("nodes", lines[LineType.NODE.ordinal()]);
+    json.put("choices", lines[LineType.CHOICE.ordinal()]);
+    json.put("bytes", all.stream().mapToLong(File::bytes).sum());
+    json.put("peakHeapBytes", peakHeapBytes());
+    json.put("nodeSizes", nodeList);
+    json.put("fileTimes", fileList);
+    return Json.write(json);
+  }
+
+  private static long sum(long[] values) {
+    long sum = 0;
+    for (long value : values) {
+      sum += value;
+    }
+    return sum;
+  }
+
+  private static double millis(long nanos) {
+    return Math.round(nanos / 1_000.0) / 1_000.0;
+  }
+
+  /**
+   * The most heap the JVM has used since {@link #create}, as the sum of
+   * each heap pool's peak, which may be a little more than was ever
+   * used at once.
+   */
+  private static long peakHeapBytes() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+}
@@ -0,0 +1,376 @@
+package com.tzbits.ninelives;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Serves a story for playtesting straight from memory, transpiling
+ * its 9l files on demand and telling browsers to reload when anything
+ * changes.
+ *
+ * <p>Each request runs on its own virtual thread, so clients held
+ * open for reload notifications cost next to nothing and a slow
+ * client never blocks the others.
+ *
+ * <p>A transpiled story file is only rebuilt when it is requested
+ * after its 9l source changed. Other files are read once and served
+ * from memory until their modification time changes. Pages open
+ * {@value #RELOAD_PATH} as a Server-Sent Events stream, injected into
+ * {@code index.html}, and reload when a {@code reload} event arrives.
+ */
+public final class DevServer {
+
+  static final String RELOAD_PATH = "/__reload";
+
+  private static final String RELOAD_SCRIPT = """
+      <script>
+        new EventSource("%s").addEventListener("reload", () => location.reload());
+      </script>
+      """.formatted(RELOAD_PATH);
+
+  /** How often an idle reload stream is written to, to notice closed clients. */
+  private static final long HEARTBEAT_SECONDS = 15;
+
+  private static final ImmutableMap<String, String> CONTENT_TYPES =
+      ImmutableMap.<String, String>builder()
+          .put("css", "text/css; charset=utf-8")
+          .put("gif", "image/gif")
+          .put("html", "text/html; charset=utf-8")
+          .put("ico", "image/x-icon")
+          .put("jpeg", "image/jpeg")
+          .put("jpg", "image/jpeg")
+          .put("js", "text/javascript; charset=utf-8")
+          .put("json", "application/json")
+          .put("png", "image/png")
+          .put("svg", "image/svg+xml")
+          .put("txt", "text/plain; charset=utf-8")
+          .put("webp", "image/webp")
+          .buildOrThrow();
+
+  /** Bytes ready to send, with the validator browsers revalidate against. */
+  private record Resource(byte[] bytes, String etag, FileTime modified, long size) {
+    static Resource of(byte[] bytes, FileTime modified, long size) {
+      String etag = '"' + Hashing.murmur3_128().hashBytes(bytes).toString() + '"';
+      return new Resource(bytes, etag, modified, size);
+    }
+  }
+
+  /** A 9l file and the JavaScript most recently transpiled from it. */
+  private final class Story {
+    final BatchTranspiler.Job job;
+    /** Where the nodes loaded on demand are served, or null unless chunked. */
+    final Path chunk;
+    // Not synchronized: a virtual thread blocked on a monitor pins its
+    // carrier thread.
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile boolean stale = true;
+    private Resource resource;
+    private Resource chunkResource;
+
+    Story(BatchTranspiler.Job job) {
+      this.job = job;
+      this.chunk = options.chunked()
+          ? BatchTranspiler.chunkPath(job.out()).toAbsolutePath().normalize()
+          : null;
+    }
+
+    void markStale() {
+      stale = true;
+    }
+
+    /**
+     * Returns the story's JavaScript at {@code file}, its output or its
+     * chunk, transpiling it first if it changed.
+     */
+    Resource get(Path file) throws IOException {
+      lock.lock();
+      try {
+        if (stale) {
+          // Cleared first so a change made while transpiling is seen by
+          // the next request.
+          stale = false;
+          StringWriter js = new StringWriter();
+          StringWriter lazyJs = new StringWriter();
+          try {
+            Transpiler transpiler = Transpiler.forFile(job.in())
+                .withCache(options.cache())
+                .withCompact(options.compact())
+                .withInstrument(options.instrument());
+            if (chunk == null) {
+              transpiler.transpile(js);
+            } else {
+              transpiler.transpile(js, lazyJs, "./" + chunk.getFileName());
+            }
+          } catch (IOException | RuntimeException e) {
+            stale = true;
+            throw e;
+          }
+          resource = Resource.of(js.toString().getBytes(StandardCharsets.UTF_8), null, -1);
+          chunkResource =
+              Resource.of(lazyJs.toString().getBytes(StandardCharsets.UTF_8), null, -1);
+        }
+        return file.equals(chunk) ? chunkResource : resource;
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private final Path root;
+  private final int port;
+  private final BatchTranspiler.Options options;
+  private final ImmutableMap<Path, Story> storiesByOutput;
+  private final ImmutableMap<Path, Story> storiesByInput;
+  private final Map<Path, Resource> files = new ConcurrentHashMap<>();
+  private final Set<BlockingQueue<String>> clients = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Returns a server for the files under {@code root}, where each
+   * job's output is served from memory instead of being read from
+   * disk, transpiled with {@code options}. Of those, the graphs,
+   * omitted nodes and stats are left out, since they are worked out
+   * for a whole batch and the server transpiles one file at a time.
+   */
+  public DevServer(
+      Path root, int port, List<BatchTranspiler.Job> jobs, BatchTranspiler.Options options) {
+    this.root = root.toAbsolutePath().normalize();
+    this.port = port;
+    this.options = options;
+    ImmutableMap.Builder<Path, Story> byOutput = ImmutableMap.builder();
+    ImmutableMap.Builder<Path, Story> byInput = ImmutableMap.builder();
+    for (BatchTranspiler.Job job : jobs) {
+      Story story = new Story(job);
+      byOutput.put(job.out().toAbsolutePath().normalize(), story);
+      if (story.chunk != null) {
+        byOutput.put(story.chunk, story);
+      }
+      byInput.put(job.in().toAbsolutePath().normalize(), story);
+    }
+    this.storiesByOutput = byOutput.buildOrThrow();
+    this.storiesByInput = byInput.buildOrThrow();
+  }
+
+  /** Serves until the thread is interrupted. */
+  public void run() throws IOException, InterruptedException {
+    HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      server.setExecutor(executor);
+      server.createContext("/", this::handle);
+      server.start();
+      System.err.printf("Serving %s on http://localhost:%d/%n", root, port);
+      try {
+        new Watcher(watchedFiles(), this::changed).run();
+      } finally {
+        server.stop(0);
+        // Wake the reload streams so the executor can finish.
+        clients.forEach(client -> client.add(""));
+      }
+    }
+  }
+
+  /**
+   * The 9l sources, and every file being served. Symbolic links are
+   * followed, so a file linked in from the workspace is watched where
+   * it is edited.
+   */
+  private ImmutableSet<Path> watchedFiles() throws IOException {
+    ImmutableSet.Builder<Path> watched = ImmutableSet.builder();
+    watched.addAll(storiesByInput.keySet());
+    try (Stream<Path> paths = Files.walk(root)) {
+      for (Path path : (Iterable<Path>) paths::iterator) {
+        if (Files.isRegularFile(path)) {
+          watched.add(path.toRealPath());
+        }
+      }
+    }
+    return watched.build();
+  }
+
+  void changed(ImmutableSet<Path> changed) {
+    List<String> names = new ArrayList<>();
+    for (Path file : changed) {
+      Story story = storiesByInput.get(file);
+      if (story != null) {
+        story.markStale();
+      }
+      names.add(file.getFileName().toString());
+    }
+    System.err.printf("Changed: %s%n", String.join(", ", names));
+    for (BlockingQueue<String> client : clients) {
+      client.add("event: reload\ndata: " + String.join(",", names) + "\n\n");
+    }
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      String method = exchange.getRequestMethod();
+      if (!method.equals("GET") && !method.equals("HEAD")) {
+        sendText(exchange, 405, "Method not allowed.");
+        return;
+      }
+      String path = exchange.getRequestURI().getPath();
+      if (path.equals(RELOAD_PATH)) {
+        streamReloads(exchange);
+        return;
+      }
+      if (path.endsWith("/")) {
+        path += "index.html";
+      }
+      Path file = root.resolve(path.substring(1)).normalize();
+      if (!file.startsWith(root)) {
+        sendText(exchange, 404, "Not found.");
+        return;
+      }
+
+      Resource resource;
+      try {
+        resource = resource(file);
+      } catch (NoSuchFileException e) {
+        sendText(exchange, 404, "Not found.");
+        return;
+      } catch (IOException | RuntimeException e) {
+        // Reported as the batch transpiler would, in the terminal and
+        // in the browser's network panel; unexpected exceptions, like
+        // an unclosed ${...}, with where they were thrown.
+        Story story = storiesByOutput.get(file);
+        String diagnostic = story == null
+            ? file + ": " + e.getMessage()
+            : new BatchTranspiler.Failure(story.job, e).diagnostic(false);
+        System.err.println(diagnostic);
+        sendText(exchange, 500, diagnostic);
+        return;
+      }
+      send(exchange, file, resource);
+    } catch (IOException e) {
+      // The client went away.
+    }
+  }
+
+  private Resource resource(Path file) throws IOException {
+    Story story = storiesByOutput.get(file);
+    if (story != null) {
+      return story.get(file);
+    }
+
+    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+    if (!attributes.isRegularFile()) {
+      throw new NoSuchFileException(file.toString());
+    }
+    Resource cached = files.get(file);
+    if (cached != null
+        && cached.modified().equals(attributes.lastModifiedTime())
+        && cached.size() == attributes.size()) {
+      return cached;
+    }
+    byte[] bytes = Files.readAllBytes(file);
+    if (file.getFileName().toString().equals("index.html")) {
+      bytes = withReloadScript(new String(bytes, StandardCharsets.UTF_8))
+          .getBytes(StandardCharsets.UTF_8);
+    }
+    Resource resource = Resource.of(bytes, attributes.lastModifiedTime(), attributes.size());
+    files.put(file, resource);
+    return resource;
+  }
+
+  static String withReloadScript(String html) {
+    int bodyEnd = html.lastIndexOf("</body>");
+    if (bodyEnd == -1) {
+      return html + RELOAD_SCRIPT;
+    }
+    return html.substring(0, bodyEnd) + RELOAD_SCRIPT + html.substring(bodyEnd);
+  }
+
+  private static void send(HttpExchange exchange, Path file, Resource resource)
+      throws IOException {
+    Headers headers = exchange.getResponseHeaders();
+    headers.set("Content-Type", contentType(file));
+    // Always revalidate, which is cheap: unchanged files are a 304.
+    headers.set("Cache-Control", "no-cache");
+    headers.set("ETag", resource.etag());
+    if (resource.etag().equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+      exchange.sendResponseHeaders(304, -1);
+      return;
+    }
+    if (exchange.getRequestMethod().equals("HEAD")) {
+      exchange.sendResponseHeaders(200, -1);
+      return;
+    }
+    exchange.sendResponseHeaders(200, resource.bytes().length == 0 ? -1 : resource.bytes().length);
+    try (OutputStream body = exchange.getResponseBody()) {
+      body.write(resource.bytes());
+    }
+  }
+
+  private static void sendText(HttpExchange exchange, int status, String text)
+      throws IOException {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream body = exchange.getResponseBody()) {
+      body.write(bytes);
+    }
+  }
+
+  /**
+   * Holds the request open, on its own virtual thread, and writes a
+   * reload event each time something changes.
+   */
+  private void streamReloads(HttpExchange exchange) throws IOException {
+    Headers headers = exchange.getResponseHeaders();
+    headers.set("Content-Type", "text/event-stream");
+    headers.set("Cache-Control", "no-cache");
+    exchange.sendResponseHeaders(200, 0);
+    BlockingQueue<String> events = new LinkedBlockingQueue<>();
+    clients.add(events);
+    try (OutputStream body = exchange.getResponseBody()) {
+      body.write(": connected\n\n".getBytes(StandardCharsets.UTF_8));
+      body.flush();
+      while (true) {
+        String event = events.poll(HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+        if (event != null && event.isEmpty()) {
+          return;
+        }
+        // A comment line if nothing happened; writing it fails once
+        // the browser has gone.
+        body.write((event == null ? ": ping\n\n" : event).getBytes(StandardCharsets.UTF_8));
+        body.flush();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      clients.remove(events);
+    }
+  }
+
+  private static String contentType(Path file) {
+    String name = file.getFileName().toString();
+    String extension = name.substring(name.lastIndexOf('.') + 1);
+    return CONTENT_TYPES.getOrDefault(extension, "application/octet-stream");
+  }
+}
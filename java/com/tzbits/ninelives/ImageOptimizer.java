@@ -0,0 +1,317 @@
+package com.tzbits.ninelives;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.google.common.collect.ImmutableList;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Makes a story's PNG and JPEG images smaller for release, and writes
+ * narrower variants of them for small screens.
+ *
+ * <p>Each image is written again without its metadata, as JPEG at
+ * {@link Options#quality} or as PNG compressed as much as it will go,
+ * unless that comes out bigger. Then for each of {@link Options#widths}
+ * narrower than the image, a variant is scaled down to it, e.g. {@code
+ * img/foyer.w480.jpg}. Variants of PNGs with no transparency are JPEGs,
+ * which photos, and so most banners, are much smaller as; those get a
+ * JPEG variant at full width too.
+ *
+ * <p>The variants are listed in a module that calls {@code
+ * game.addImageVariants}, from which {@code game.js} gives the banner
+ * a {@code srcset}, so the browser downloads the smallest variant wide
+ * enough for the screen.
+ */
+public final class ImageOptimizer {
+
+  /** How to optimize. */
+  public record Options(float quality, ImmutableList<Integer> widths) {
+    public static final Options DEFAULT = new Options(0.8f, ImmutableList.of(480, 960));
+  }
+
+  /** An image scaled to {@code width} pixels, at {@code path}. */
+  record Variant(int width, String path) {}
+
+  /**
+   * What optimizing the image at {@code path} wrote: the image, {@code
+   * bytes} long where it was {@code originalBytes}, and its variants,
+   * the narrowest first and ending with one at full width. No variants
+   * if there are none narrower or smaller than the image.
+   */
+  record Result(String path, long originalBytes, long bytes, ImmutableList<Variant> variants) {}
+
+  @Parameter(names = "--image",
+             description = "An image to optimize, as <path in the story>=<file>. "
+                 + "May be repeated.")
+  private List<String> images = new ArrayList<>();
+
+  @Parameter(names = "--out_dir",
+             description = "The directory to write the images and their variants to, "
+                 + "at their paths in the story.",
+             required = true)
+  private String outDirName;
+
+  @Parameter(names = "--variants_js",
+             description = "A file to write the module listing the variants of each image to.",
+             required = true)
+  private String variantsJsFileName;
+
+  @Parameter(names = "--quality", description = "The quality of JPEGs, from 0 to 1.")
+  private float quality = Options.DEFAULT.quality();
+
+  @Parameter(names = "--widths", description = "The widths of the variants, in pixels.")
+  private List<Integer> widths = new ArrayList<>(Options.DEFAULT.widths());
+
+  @Parameter(names = "--jobs",
+             description = "How many images to optimize at once. "
+                 + "Defaults to the number of processors.")
+  private int jobs = Runtime.getRuntime().availableProcessors();
+
+  private ImageOptimizer() {}
+
+  public static void main(String[] argv) {
+    ImageOptimizer optimizer = new ImageOptimizer();
+    try {
+      JCommander.newBuilder()
+          .addObject(optimizer)
+          .build()
+          .parse(argv);
+    } catch (ParameterException e) {
+      System.err.println(e.getMessage());
+      System.exit(-1);
+    }
+    int exitCode = optimizer.run();
+    if (exitCode != 0) {
+      System.exit(exitCode);
+    }
+  }
+
+  private int run() {
+    try {
+      if (quality < 0 || quality > 1) {
+        throw new IllegalArgumentException("--quality must be from 0 to 1, got: " + quality);
+      }
+      Map<String, Path> sources = new LinkedHashMap<>();
+      for (String image : images) {
+        int eq = image.indexOf('=');
+        if (eq <= 0) {
+          throw new IllegalArgumentException("Expected --image <path>=<file>, got: " + image);
+        }
+        sources.put(image.substring(0, eq), Path.of(image.substring(eq + 1)));
+      }
+      List<Result> results = run(sources, Path.of(outDirName),
+          new Options(quality, ImmutableList.copyOf(widths)), jobs);
+      Files.writeString(Path.of(variantsJsFileName), variantsJs(results));
+      long before = results.stream().mapToLong(Result::originalBytes).sum();
+      long after = results.stream().mapToLong(Result::bytes).sum();
+      System.err.printf("Optimized %d images from %d to %d bytes.%n", results.size(), before, after);
+    } catch (IOException | IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      return -1;
+    }
+    return 0;
+  }
+
+  /**
+   * Optimizes each of {@code images}, by their paths in the story,
+   * into {@code outDir} using up to {@code parallelism} threads.
+   *
+   * @return what was written, in the order of {@code images}
+   */
+  static List<Result> run(Map<String, Path> images, Path outDir, Options options, int parallelism)
+      throws IOException {
+    List<Callable<Result>> tasks = new ArrayList<>();
+    for (Map.Entry<String, Path> image : images.entrySet()) {
+      tasks.add(() -> optimize(
+          image.getKey(), Files.readAllBytes(image.getValue()), outDir, options));
+    }
+    List<Result> results = new ArrayList<>();
+    try (ForkJoinPool pool = new ForkJoinPool(Math.max(1, Math.min(parallelism, tasks.size())))) {
+      for (Future<Result> result : pool.invokeAll(tasks)) {
+        results.add(result.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while optimizing images.", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException io) {
+        throw io;
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+    return results;
+  }
+
+  /** Optimizes the image at {@code path} in the story into {@code outDir}. */
+  static Result optimize(String path, byte[] contents, Path outDir, Options options)
+      throws IOException {
+    String format = switch (extension(path)) {
+      case "png" -> "png";
+      case "jpg", "jpeg" -> "jpeg";
+      default -> null;
+    };
+    BufferedImage image = format == null ? null : ImageIO.read(new ByteArrayInputStream(contents));
+    if (image == null) {
+      // Not an image this can make smaller; packaged as it is.
+      write(outDir, path, contents);
+      return new Result(path, contents.length, contents.length, ImmutableList.of());
+    }
+
+    byte[] optimized = encode(image, format, options.quality());
+    if (optimized.length >= contents.length) {
+      optimized = contents;
+    }
+    write(outDir, path, optimized);
+
+    boolean opaque = isOpaque(image);
+    String variantFormat = opaque ? "jpeg" : "png";
+    String stem = path.substring(0, path.lastIndexOf('.'));
+    String variantExtension = variantFormat.equals("jpeg") ? ".jpg" : ".png";
+    int width = image.getWidth();
+    List<Variant> variants = new ArrayList<>();
+    for (int w : new TreeSet<>(options.widths())) {
+      if (w <= 0 || w >= width) {
+        continue;
+      }
+      byte[] scaled = encode(scale(image, w, !opaque), variantFormat, options.quality());
+      if (scaled.length < optimized.length) {
+        String variant = stem + ".w" + w + variantExtension;
+        write(outDir, variant, scaled);
+        variants.add(new Variant(w, variant));
+      }
+    }
+    Variant full = new Variant(width, path);
+    if (!variantFormat.equals(format)) {
+      byte[] converted = encode(image, variantFormat, options.quality());
+      if (converted.length < optimized.length) {
+        String variant = stem + ".w" + width + variantExtension;
+        write(outDir, variant, converted);
+        full = new Variant(width, variant);
+      }
+    }
+    if (!variants.isEmpty() || !full.path().equals(path)) {
+      variants.add(full);
+    }
+    return new Result(path, contents.length, optimized.length, ImmutableList.copyOf(variants));
+  }
+
+  /** Returns the module that tells game.js about the variants of the images. */
+  static String variantsJs(List<Result> results) {
+    StringBuilder out = new StringBuilder("import {game} from \"./game.js\";\n");
+    Map<String, Object> table = new LinkedHashMap<>();
+    for (Result result : results) {
+      if (!result.variants().isEmpty()) {
+        table.put(result.path(), result.variants().stream()
+            .map(variant -> List.of(variant.width(), variant.path()))
+            .toList());
+      }
+    }
+    if (!table.isEmpty()) {
+      out.append("game.addImageVariants(").append(Json.write(table)).append(");\n");
+    }
+    return out.toString();
+  }
+
+  private static boolean isOpaque(BufferedImage image) {
+    if (!image.getColorModel().hasAlpha()) {
+      return true;
+    }
+    for (int y = 0; y < image.getHeight(); y++) {
+      for (int x = 0; x < image.getWidth(); x++) {
+        if (image.getRGB(x, y) >>> 24 != 0xff) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /** Scales {@code image} down to {@code width}, halving at most at a time so it stays smooth. */
+  private static BufferedImage scale(BufferedImage image, int width, boolean alpha) {
+    int height = Math.max(1, (int) Math.round((double) image.getHeight() * width / image.getWidth()));
+    BufferedImage scaled = image;
+    int w = image.getWidth();
+    do {
+      w = Math.max(width, w / 2);
+      int h = w == width
+          ? height
+          : Math.max(1, (int) Math.round((double) image.getHeight() * w / image.getWidth()));
+      BufferedImage next =
+          new BufferedImage(w, h, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+      Graphics2D g = next.createGraphics();
+      g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+      g.drawImage(scaled, 0, 0, w, h, null);
+      g.dispose();
+      scaled = next;
+    } while (w != width);
+    return scaled;
+  }
+
+  /** Encodes {@code image} without metadata. */
+  private static byte[] encode(BufferedImage image, String format, float quality)
+      throws IOException {
+    if (format.equals("jpeg") && image.getColorModel().hasAlpha()) {
+      // JPEG has no alpha channel; only opaque images get here.
+      BufferedImage rgb = new BufferedImage(
+          image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+      Graphics2D g = rgb.createGraphics();
+      g.drawImage(image, 0, 0, null);
+      g.dispose();
+      image = rgb;
+    }
+    ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+    ImageWriteParam param = writer.getDefaultWriteParam();
+    if (param.canWriteCompressed()) {
+      param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+      // For PNG, lower is smaller and loses nothing.
+      param.setCompressionQuality(format.equals("jpeg") ? quality : 0f);
+    }
+    if (format.equals("jpeg") && param.canWriteProgressive()) {
+      param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ImageOutputStream out = ImageIO.createImageOutputStream(bytes)) {
+      writer.setOutput(out);
+      writer.write(null, new IIOImage(image, null, null), param);
+    } finally {
+      writer.dispose();
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void write(Path outDir, String path, byte[] contents) throws IOException {
+    Path out = outDir.resolve(path);
+    Files.createDirectories(out.getParent());
+    Files.write(out, contents);
+  }
+
+  private static String extension(String path) {
+    int slash = path.lastIndexOf('/');
+    int dot = path.lastIndexOf('.');
+    return dot > slash ? path.substring(dot + 1).toLowerCase(Locale.ROOT) : "";
+  }
+}
@@ -1,9 +1,34 @@
 package com.tzbits.ninelives;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /** Escaping for the points where 9l text meets generated JavaScript. */
 final class JsStrings {
   private JsStrings() {}
 
+  // What each character of a template literal becomes; see
+  // appendTemplateLiteral. Delimiter characters after the first are
+  // SKIPped because the tag emitted for the first replaces them all.
+  private static final byte PLAIN = 0;
+  private static final byte INTERPOLATION = 1;
+  private static final byte SKIP = 2;
+  private static final byte BOLD_ITALIC = 3;
+  private static final byte BOLD = 5;
+  private static final byte ITALIC = 7;
+  private static final byte STRIKE = 9;
+  // Closing tags are the opening mark + 1.
+  private static final byte LINK = 11;
+  private static final byte LINK_END = 12;
+
+  private static final String[] TAGS = {
+      null, null, null,
+      "<b><i>", "</i></b>",
+      "<b>", "</b>",
+      "<i>", "</i>",
+      "<del>", "</del>",
+  };
+
   /**
    * Prepares a string for inclusion in a JS template literal.
    *
@@ -11,18 +36,153 @@ final class JsStrings {
    * interpolation and nested template literals.
    */
   static String forTemplateLiteral(String s) {
-    java.util.List<String> interpolations = new java.util.ArrayList<>();
-    StringBuilder placeholderString = new StringBuilder();
+    StringBuilder out = new StringBuilder(s.length() + 16);
+    appendTemplateLiteral(out, s);
+    return out.toString();
+  }
+
+  /**
+   * Appends {@code s}, prepared for inclusion in a JS template
+   * literal, to {@code out}.
+   *
+   * <p>Markdown outside of {@code ${...}} interpolations becomes HTML:
+   * {@code ***bold-italic***}, {@code **bold**}, {@code _italic_} and
+   * {@code ~~strikethrough~~}. A span never crosses a line break.
+   *
+   * <p>The result is the same as applying the regular expressions
+   * {@code \*\*\*(.*?)\*\*\*}, {@code \*\*(.*?)\*\*}, {@code _(.*?)_}
+   * and {@code ~~(.*?)~~} one after the other, but each delimiter is
+   * paired by one linear scan over a mark per character, and the
+   * output is written in a single pass at the end.
+   */
+  static void appendTemplateLiteral(StringBuilder out, CharSequence s) {
+    appendHtml(out, s, null, null);
+  }
+
+  /**
+   * Appends {@code s} like {@link #appendTemplateLiteral}, with each
+   * inline link {@code [text](>id)} outside of interpolations also
+   * turned into the HTML that steps to the node {@code id}, resolved
+   * in {@code scope}. Adds the fully qualified target of each link to
+   * {@code linkTargets}.
+   *
+   * <p>A link is the first {@code ](>} after a {@code [} and the first
+   * {@code )} after that, all on one line, as the regular expression
+   * {@code \[(.*?)\]\(>(.*?)\)} would find it. Markdown never pairs
+   * delimiters in the target.
+   */
+  static void appendHtml(
+      StringBuilder out, CharSequence s, String scope, List<String> linkTargets) {
+    int len = s.length();
+    if (!hasSpecialCharacter(s)) {
+      out.append(s);
+      return;
+    }
+
+    byte[] marks = new byte[len];
+    markInterpolations(s, marks);
+    List<String> targets = linkTargets == null ? List.of() : markLinks(s, marks, scope);
+    pair(s, marks, '*', 3, BOLD_ITALIC);
+    pair(s, marks, '*', 2, BOLD);
+    pair(s, marks, '_', 1, ITALIC);
+    pair(s, marks, '~', 2, STRIKE);
+
+    int plainStart = 0;
+    int link = 0;
+    int linkTextStart = 0;
+    for (int i = 0; i < len; i++) {
+      byte mark = marks[i];
+      if (mark == PLAIN || mark == INTERPOLATION) {
+        continue;
+      }
+      out.append(s, plainStart, i);
+      if (mark == LINK) {
+        linkTextStart = out.length();
+      } else if (mark == LINK_END) {
+        // GameView steps into the data-node of a link clicked on.
+        String target = targets.get(link++);
+        out.insert(linkTextStart,
+            "<span class=\"inline-link\" data-node=\"" + forAttribute(target) + "\">");
+        out.append("</span>");
+        linkTargets.add(target);
+      } else if (mark != SKIP) {
+        out.append(TAGS[mark]);
+      }
+      plainStart = i + 1;
+    }
+    out.append(s, plainStart, len);
+  }
+
+  /** Escapes template literal content for a double-quoted HTML attribute. */
+  private static String forAttribute(String s) {
+    return s.replace("\"", "&quot;");
+  }
+
+  /**
+   * Marks the {@code [} of each inline link as {@link #LINK}, its
+   * {@code )} as {@link #LINK_END} and the {@code ](>id} between the
+   * text and the {@code )} as {@link #SKIP}.
+   *
+   * @return the fully qualified target of each link, in order
+   */
+  private static List<String> markLinks(CharSequence s, byte[] marks, String scope) {
+    List<String> targets = new ArrayList<>();
+    int len = s.length();
+    for (int open = 0; open < len; open++) {
+      if (s.charAt(open) != '[' || marks[open] != PLAIN) {
+        continue;
+      }
+      int arrow = -1;
+      int close = -1;
+      for (int i = open + 1; i < len && marks[i] == PLAIN && !Lexer.isLineTerminator(s.charAt(i));
+          i++) {
+        char c = s.charAt(i);
+        if (arrow == -1 && c == ']' && i + 2 < len && s.charAt(i + 1) == '('
+            && s.charAt(i + 2) == '>') {
+          arrow = i;
+          i += 2;
+        } else if (arrow != -1 && c == ')') {
+          close = i;
+          break;
+        }
+      }
+      if (close == -1) {
+        continue;
+      }
+      targets.add(Transpiler.resolveNodeId(s.subSequence(arrow + 3, close).toString(), scope));
+      marks[open] = LINK;
+      for (int i = arrow; i < close; i++) {
+        marks[i] = SKIP;
+      }
+      marks[close] = LINK_END;
+      open = close;
+    }
+    return targets;
+  }
 
-    int last = 0;
-    int pos = s.indexOf("${");
-    while (pos != -1) {
-      placeholderString.append(s.substring(last, pos));
+  private static boolean hasSpecialCharacter(CharSequence s) {
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '*' || c == '_' || c == '~' || c == '$' || c == '[') {
+        return true;
+      }
+    }
+    return false;
+  }
 
-      // Find the end of the interpolation
+  /**
+   * Marks every character of each {@code ${...}} (including nested
+   * braces) so markdown leaves it alone.
+   */
+  private static void markInterpolations(CharSequence s, byte[] marks) {
+    int len = s.length();
+    for (int pos = 0; pos < len - 1; pos++) {
+      if (s.charAt(pos) != '$' || s.charAt(pos + 1) != '{') {
+        continue;
+      }
       int braceCount = 1;
       int end = -1;
-      for (int i = pos + 2; i < s.length(); i++) {
+      for (int i = pos + 2; i < len; i++) {
         char c = s.charAt(i);
         if (c == '{') {
           braceCount++;
@@ -34,33 +194,70 @@ final class JsStrings {
           }
         }
       }
-
-      if (end != -1) {
-        String interpolation = s.substring(pos, end + 1);
-        interpolations.add(interpolation);
-        placeholderString.append("\u0000").append(interpolations.size() - 1).append("\u0000");
-        last = end + 1;
-        pos = s.indexOf("${", last);
-      } else {
+      if (end == -1) {
         throw new IllegalArgumentException("Unclosed interpolation ${...} in string: " + s);
       }
+      for (int i = pos; i <= end; i++) {
+        marks[i] = INTERPOLATION;
+      }
+      pos = end;
     }
-    placeholderString.append(s.substring(last));
+  }
 
-    String result = applyMarkdown(placeholderString.toString());
+  /**
+   * Pairs runs of {@code count} unmarked {@code delimiter}s, left to
+   * right, each with the nearest following run on the same line, and
+   * marks the pair as {@code openMark} and {@code openMark + 1}.
+   */
+  private static void pair(CharSequence s, byte[] marks, char delimiter, int count, byte openMark) {
+    int len = s.length();
+    int i = 0;
+    while (i < len) {
+      if (!isDelimiterAt(s, marks, i, delimiter, count)) {
+        i++;
+        continue;
+      }
+      int close = -1;
+      int j = i + count;
+      for (; j < len && !isLineBreak(s, marks, j); j++) {
+        if (isDelimiterAt(s, marks, j, delimiter, count)) {
+          close = j;
+          break;
+        }
+      }
+      if (close == -1) {
+        // Later delimiters on this line can't find a partner either.
+        i = j;
+        continue;
+      }
+      mark(marks, i, count, openMark);
+      mark(marks, close, count, (byte) (openMark + 1));
+      i = close + count;
+    }
+  }
 
-    for (int i = 0; i < interpolations.size(); i++) {
-      result = result.replace("\u0000" + i + "\u0000", interpolations.get(i));
+  private static boolean isDelimiterAt(
+      CharSequence s, byte[] marks, int at, char delimiter, int count) {
+    if (at + count > s.length()) {
+      return false;
     }
+    for (int k = at; k < at + count; k++) {
+      if (marks[k] != PLAIN || s.charAt(k) != delimiter) {
+        return false;
+      }
+    }
+    return true;
+  }
 
-    return result;
+  private static boolean isLineBreak(CharSequence s, byte[] marks, int at) {
+    return marks[at] == PLAIN && Lexer.isLineTerminator(s.charAt(at));
   }
 
-  private static String applyMarkdown(String s) {
-    return s.replaceAll("\\*\\*\\*(.*?)\\*\\*\\*", "<b><i>$1</i></b>")
-        .replaceAll("\\*\\*(.*?)\\*\\*", "<b>$1</b>")
-        .replaceAll("_(.*?)_", "<i>$1</i>")
-        .replaceAll("~~(.*?)~~", "<del>$1</del>");
+  private static void mark(byte[] marks, int at, int count, byte mark) {
+    marks[at] = mark;
+    for (int k = at + 1; k < at + count; k++) {
+      marks[k] = SKIP;
+    }
   }
 
   /** Escapes text for inclusion in a double-quoted JS string. */
@@ -0,0 +1,264 @@
+package com.tzbits.ninelives;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough JSON for the Bazel worker protocol and the reports the
+ * transpiler writes, so the binary doesn't need a JSON dependency.
+ *
+ * <p>Objects are read as {@link LinkedHashMap}s, arrays as {@link
+ * List}s, integral numbers as {@link Long}s and other numbers as
+ * {@link Double}s.
+ */
+final class Json {
+  private Json() {}
+
+  /** Parses a single JSON value. */
+  static Object parse(String s) {
+    Parser parser = new Parser(s);
+    parser.skipWhitespace();
+    Object value = parser.value();
+    parser.skipWhitespace();
+    if (parser.pos != s.length()) {
+      throw parser.error("Trailing characters");
+    }
+    return value;
+  }
+
+  /**
+   * Serializes maps, iterables, strings, numbers, booleans and null
+   * as compact JSON.
+   */
+  static String write(Object value) {
+    StringBuilder out = new StringBuilder();
+    write(out, value);
+    return out.toString();
+  }
+
+  static void write(StringBuilder out, Object value) {
+    switch (value) {
+      case null -> out.append("null");
+      case String s -> quote(out, s);
+      case Boolean b -> out.append(b);
+      case Double d when d.isNaN() || d.isInfinite() -> out.append("null");
+      case Number n -> out.append(n);
+      case Map<?, ?> map -> {
+        out.append('{');
+        boolean first = true;
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+          if (!first) {
+            out.append(',');
+          }
+          first = false;
+          quote(out, String.valueOf(entry.getKey()));
+          out.append(':');
+          write(out, entry.getValue());
+        }
+        out.append('}');
+      }
+      case Iterable<?> iterable -> {
+        out.append('[');
+        boolean first = true;
+        for (Object element : iterable) {
+          if (!first) {
+            out.append(',');
+          }
+          first = false;
+          write(out, element);
+        }
+        out.append(']');
+      }
+      default -> quote(out, value.toString());
+    }
+  }
+
+  /** Appends {@code s} as a double-quoted JSON string. */
+  static void quote(StringBuilder out, String s) {
+    out.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '"' -> out.append("\\\"");
+        case '\\' -> out.append("\\\\");
+        case '\n' -> out.append("\\n");
+        case '\r' -> out.append("\\r");
+        case '\t' -> out.append("\\t");
+        default -> {
+          if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+            out.append(String.format("\\u%04x", (int) c));
+          } else {
+            out.append(c);
+          }
+        }
+      }
+    }
+    out.append('"');
+  }
+
+  private static final class Parser {
+    private final String s;
+    private int pos = 0;
+
+    Parser(String s) {
+      this.s = s;
+    }
+
+    Object value() {
+      if (pos >= s.length()) {
+        throw error("Unexpected end of input");
+      }
+      char c = s.charAt(pos);
+      return switch (c) {
+        case '{' -> object();
+        case '[' -> array();
+        case '"' -> string();
+        case 't' -> literal("true", Boolean.TRUE);
+        case 'f' -> literal("false", Boolean.FALSE);
+        case 'n' -> literal("null", null);
+        default -> {
+          if (c == '-' || (c >= '0' && c <= '9')) {
+            yield number();
+          }
+          throw error("Unexpected character '" + c + "'");
+        }
+      };
+    }
+
+    private Map<String, Object> object() {
+      Map<String, Object> map = new LinkedHashMap<>();
+      pos++; // '{'
+      skipWhitespace();
+      if (peek() == '}') {
+        pos++;
+        return map;
+      }
+      while (true) {
+        skipWhitespace();
+        if (peek() != '"') {
+          throw error("Expected a string key");
+        }
+        String key = string();
+        skipWhitespace();
+        expect(':');
+        skipWhitespace();
+        map.put(key, value());
+        skipWhitespace();
+        if (peek() == ',') {
+          pos++;
+          continue;
+        }
+        expect('}');
+        return map;
+      }
+    }
+
+    private List<Object> array() {
+      List<Object> list = new ArrayList<>();
+      pos++; // '['
+      skipWhitespace();
+      if (peek() == ']') {
+        pos++;
+        return list;
+      }
+      while (true) {
+        skipWhitespace();
+        list.add(value());
+        skipWhitespace();
+        if (peek() == ',') {
+          pos++;
+          continue;
+        }
+        expect(']');
+        return list;
+      }
+    }
+
+    private String string() {
+      pos++; // opening quote
+      StringBuilder sb = new StringBuilder();
+      while (pos < s.length()) {
+        char c = s.charAt(pos++);
+        if (c == '"') {
+          return sb.toString();
+        }
+        if (c != '\\') {
+          sb.append(c);
+          continue;
+        }
+        if (pos >= s.length()) {
+          break;
+        }
+        char e = s.charAt(pos++);
+        switch (e) {
+          case '"', '\\', '/' -> sb.append(e);
+          case 'b' -> sb.append('\b');
+          case 'f' -> sb.append('\f');
+          case 'n' -> sb.append('\n');
+          case 'r' -> sb.append('\r');
+          case 't' -> sb.append('\t');
+          case 'u' -> {
+            if (pos + 4 > s.length()) {
+              throw error("Truncated \\u escape");
+            }
+            sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+            pos += 4;
+          }
+          default -> throw error("Unknown escape '\\" + e + "'");
+        }
+      }
+      throw error("Unterminated string");
+    }
+
+    private Object number() {
+      int start = pos;
+      boolean integral = true;
+      while (pos < s.length()) {
+        char c = s.charAt(pos);
+        if (c == '.' || c == 'e' || c == 'E') {
+          integral = false;
+        } else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9'))) {
+          break;
+        }
+        pos++;
+      }
+      String text = s.substring(start, pos);
+      try {
+        return integral ? (Object) Long.parseLong(text) : (Object) Double.parseDouble(text);
+      } catch (NumberFormatException e) {
+        throw error("Malformed number '" + text + "'");
+      }
+    }
+
+    private Object literal(String word, Object value) {
+      if (!s.startsWith(word, pos)) {
+        throw error("Expected '" + word + "'");
+      }
+      pos += word.length();
+      return value;
+    }
+
+    private char peek() {
+      return pos < s.length() ? s.charAt(pos) : '\0';
+    }
+
+    private void expect(char c) {
+      if (peek() != c) {
+        throw error("Expected '" + c + "'");
+      }
+      pos++;
+    }
+
+    void skipWhitespace() {
+      while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) {
+        pos++;
+      }
+    }
+
+    IllegalArgumentException error(String message) {
+      return new IllegalArgumentException(message + " at offset " + pos + " of JSON input.");
+    }
+  }
+}
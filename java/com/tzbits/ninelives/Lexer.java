@@ -0,0 +1,111 @@
+package com.tzbits.ninelives;
+
+/**
+ * Classifies 9l source lines and finds the offsets of their leading
+ * token in a single pass over the characters, without regular
+ * expressions or boxing.
+ *
+ * <p>The leading token is the node id of a node header
+ * ({@code =id=}), the target of a choice ({@code >id/limit}) or the
+ * name of a command ({@code !name body}). See {@link SourceLine} for
+ * the accessors that slice these out.
+ */
+final class Lexer {
+  private Lexer() {}
+
+  static SourceLine scan(String line, int lineNumber) {
+    int len = line.length();
+    if (len == 0) {
+      return text(line, lineNumber);
+    }
+    return switch (line.charAt(0)) {
+      // An escaped line is always text, whatever its next character.
+      case '\\' -> text(line.substring(1), lineNumber);
+      case '=' -> {
+        int idEnd = nodeHeaderEnd(line);
+        // Anything else starting with '=' (e.g. "== win ? 'happy' :
+        // 'sad'} days ahead" continuing a ${}) is text.
+        yield idEnd == -1
+            ? text(line, lineNumber)
+            : new AutoValue_SourceLine(LineType.NODE, line, lineNumber, idEnd, -1);
+      }
+      case '>' -> {
+        int limitStart = -1;
+        int i = 1;
+        for (; i < len; i++) {
+          char c = line.charAt(i);
+          if (c == ' ') {
+            break;
+          }
+          if (c == '/') {
+            limitStart = i;
+          }
+        }
+        yield new AutoValue_SourceLine(LineType.CHOICE, line, lineNumber, i, limitStart);
+      }
+      case '!' -> {
+        int nameEnd = line.indexOf(' ');
+        yield new AutoValue_SourceLine(
+            LineType.COMMAND, line, lineNumber, nameEnd == -1 ? len : nameEnd, -1);
+      }
+      case '|' -> new AutoValue_SourceLine(LineType.CODE, line, lineNumber, 0, -1);
+      case '#' -> new AutoValue_SourceLine(LineType.COMMENT, line, lineNumber, 0, -1);
+      default -> text(line, lineNumber);
+    };
+  }
+
+  private static SourceLine text(String line, int lineNumber) {
+    return new AutoValue_SourceLine(LineType.TEXT, line, lineNumber, 0, -1);
+  }
+
+  /**
+   * Returns the offset of the closing '=' if {@code line} is a node
+   * header, or -1 if it isn't.
+   *
+   * <p>A header is '=', one or more of {@code [A-Za-z0-9_:-]}, '=',
+   * then either the end of the line or whitespace followed by a
+   * comment. This matches exactly what the regular expression
+   * {@code ^=[A-Za-z0-9_:-]+=(\s.*)?$} used to.
+   */
+  private static int nodeHeaderEnd(String line) {
+    int len = line.length();
+    int i = 1;
+    while (i < len && isIdChar(line.charAt(i))) {
+      i++;
+    }
+    if (i == 1 || i == len || line.charAt(i) != '=') {
+      return -1;
+    }
+    int idEnd = i;
+    if (++i == len) {
+      return idEnd;
+    }
+    if (!isRegexWhitespace(line.charAt(i))) {
+      return -1;
+    }
+    // The comment is matched by '.', which stops at line terminators.
+    for (i++; i < len; i++) {
+      if (isLineTerminator(line.charAt(i))) {
+        return -1;
+      }
+    }
+    return idEnd;
+  }
+
+  private static boolean isIdChar(char c) {
+    return (c >= 'a' && c <= 'z')
+        || (c >= 'A' && c <= 'Z')
+        || (c >= '0' && c <= '9')
+        || c == '_' || c == ':' || c == '-';
+  }
+
+  /** The characters matched by {@code \s} in a Java regex. */
+  private static boolean isRegexWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+  /** The characters not matched by {@code .} in a Java regex. */
+  static boolean isLineTerminator(char c) {
+    return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+  }
+}
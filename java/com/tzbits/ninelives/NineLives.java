@@ -3,27 +3,121 @@ package com.tzbits.ninelives;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class NineLives {
 
   @Parameter(names = "--in",
-             description = "The name of the input file.",
-             required = true)
-  private String inputFileName;
+             description = "The name of an input file. May be repeated, "
+                 + "paired in order with --out.")
+  private List<String> inputFileNames = new ArrayList<>();
 
   @Parameter(names = "--out",
-             description = "The name of the output file.",
-             required = true)
-  private String outputFileName;
+             description = "The name of an output file. May be repeated, "
+                 + "paired in order with --in.")
+  private List<String> outputFileNames = new ArrayList<>();
+
+  @Parameter(names = "--manifest",
+             description = "A file listing more files to transpile, one "
+                 + "<input><TAB><output> pair per line.")
+  private String manifestFileName;
+
+  @Parameter(names = "--jobs",
+             description = "How many files to transpile at once. "
+                 + "Defaults to the number of processors.")
+  private int jobs = Runtime.getRuntime().availableProcessors();
+
+  @Parameter(names = "--cache_dir",
+             description = "A directory in which to cache the JavaScript of "
+                 + "each node, so unchanged nodes aren't transpiled again.")
+  private String cacheDirName;
+
+  @Parameter(names = "--graph",
+             description = "A file to write the story graph to, as JSON: every "
+                 + "node, choice, inline link and image across the input files, "
+                 + "with what is reachable from =g:0=, unresolved targets and cycles.")
+  private String graphFileName;
+
+  @Parameter(names = "--drop_unreachable_nodes",
+             description = "Leave out of the JavaScript the nodes that no choice, "
+                 + "inline link or game.choice('=id=') call leads to from =g:0=, "
+                 + "other than those marked !keep. For release builds of a whole story.")
+  private boolean dropUnreachableNodes = false;
+
+  @Parameter(names = "--dropped_nodes_report",
+             description = "A file to list the nodes left out by "
+                 + "--drop_unreachable_nodes in, one file:line: =id= per line.")
+  private String droppedNodesReportFileName;
+
+  @Parameter(names = "--compact",
+             description = "Write smaller JavaScript that does the same: no comments, "
+                 + "repeated node ids in constants, no needless game.scope assignments "
+                 + "and short aliases for game calls.")
+  private boolean compact = false;
+
+  @Parameter(names = "--chunked",
+             description = "Write each output's nodes, other than =g:0=, to a chunk "
+                 + "next to it (story.9l.chunk.js for story.9l.js) that the browser "
+                 + "only loads when one of them is first needed.")
+  private boolean chunked = false;
+
+  @Parameter(names = "--instrument",
+             description = "Wrap each node's JavaScript in performance.mark and "
+                 + "performance.measure calls, so the time it takes shows up in the "
+                 + "browser's performance timeline. For development builds, not release.")
+  private boolean instrument = false;
+
+  @Parameter(names = "--stats",
+             description = "A file to write compile statistics to, as JSON: the time "
+                 + "spent reading, classifying, transpiling, escaping and writing, lines "
+                 + "by type, nodes, choices, the bytes emitted for each node (largest "
+                 + "first) and peak heap, across all the input files.")
+  private String statsFileName;
+
+  @Parameter(names = "--watch",
+             description = "Keep running and transpile each input file "
+                 + "again whenever it changes.")
+  private boolean watch = false;
+
+  @Parameter(names = "--serve",
+             description = "Serve this directory for playtesting instead of "
+                 + "writing the output files, transpiling each input on demand "
+                 + "and reloading browsers whenever a file changes.")
+  private String serveDirName;
+
+  @Parameter(names = "--port", description = "The port for --serve.")
+  private int port = 8080;
 
   @Parameter(names = "--debug", description = "Whether to print a stack trace.")
   private boolean debug = false;
 
   public static void main(String[] argv) {
+    if (Arrays.asList(argv).contains(PersistentWorker.FLAG)) {
+      // Started by Bazel as a persistent worker: keep this JVM (and
+      // its JIT) warm and take transpile requests over stdin.
+      System.exit(PersistentWorker.serve(System.in, System.out, NineLives::execute));
+    }
+    int exitCode = execute(argv);
+    if (exitCode != 0) {
+      System.exit(exitCode);
+    }
+  }
+
+  /**
+   * Parses {@code argv} and runs one invocation of the transpiler.
+   *
+   * <p>Never calls {@link System#exit} so that it can be run
+   * repeatedly by the persistent worker.
+   *
+   * @return the process exit code
+   */
+  static int execute(String[] argv) {
     NineLives nineLives = new NineLives();
     try {
       JCommander.newBuilder()
@@ -32,38 +126,199 @@ public class NineLives {
           .parse(argv);
     } catch (ParameterException e) {
       System.err.println(e.getMessage());
-      System.exit(-1);
+      return -1;
     }
-    nineLives.run();
+    return nineLives.run();
   }
 
-  private void run() {
+  private int run() {
+    ImmutableList<BatchTranspiler.Job> batch;
     try {
-      Files.writeString(
-          Path.of(outputFileName),
-          Transpiler.forFile(Path.of(inputFileName)).transpile(),
-          StandardOpenOption.CREATE,
-          StandardOpenOption.WRITE,
-          StandardOpenOption.TRUNCATE_EXISTING);
+      batch = batch();
+    } catch (IOException | IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      return -1;
+    }
+
+    NodeCache cache = cacheDirName == null
+        ? NodeCache.NONE
+        : NodeCache.inDirectory(Path.of(cacheDirName));
+    BatchTranspiler.Options.Builder builder = BatchTranspiler.Options.builder()
+        .cache(cache)
+        .compact(compact)
+        .chunked(chunked)
+        .instrument(instrument);
+    if (serveDirName != null) {
+      return serve(batch, builder.build());
+    }
+    builder.stats(statsFileName == null ? CompileStats.NONE : CompileStats.create());
+    if (dropUnreachableNodes) {
+      ImmutableSet<String> unreachable;
+      try {
+        unreachable = unreachableNodes(batch);
+      } catch (IOException | IllegalStateException e) {
+        System.err.println(e.getMessage());
+        return -1;
+      }
+      if (unreachable == null) {
+        return -1;
+      }
+      builder.omittedNodes(unreachable);
+    }
+    List<StoryGraph.FileBuilder> graphs = null;
+    if (graphFileName != null) {
+      graphs = fileGraphs(batch);
+      builder.graphs(graphs);
+    }
+    BatchTranspiler.Options options = builder.build();
+    ImmutableList<BatchTranspiler.Failure> failures = BatchTranspiler.run(batch, jobs, options);
+    report(batch, failures);
+    try {
+      if (graphs != null && failures.isEmpty()) {
+        writeGraph(StoryGraph.of(graphs));
+      }
+      writeStats(options.stats());
     } catch (IOException e) {
       System.err.println(e.getMessage());
-      if (debug) {
-          //noinspection CallToPrintStackTrace
-          e.printStackTrace();
+      return -1;
+    }
+    if (watch) {
+      // Reachability isn't worked out again as files change, so every
+      // node is kept from here on.
+      return watch(batch, options.toBuilder().graphs(null).omittedNodes(ImmutableSet.of()).build());
+    }
+    return failures.isEmpty() ? 0 : -1;
+  }
+
+  private static List<StoryGraph.FileBuilder> fileGraphs(ImmutableList<BatchTranspiler.Job> batch) {
+    List<StoryGraph.FileBuilder> graphs = new ArrayList<>();
+    for (BatchTranspiler.Job job : batch) {
+      graphs.add(new StoryGraph.FileBuilder(job.in().toString()));
+    }
+    return graphs;
+  }
+
+  /**
+   * Indexes the story and reports the nodes it can't reach, which is
+   * only sound when the batch is the whole story.
+   *
+   * @return the unreachable nodes, or null if the story couldn't be read
+   */
+  private ImmutableSet<String> unreachableNodes(ImmutableList<BatchTranspiler.Job> batch)
+      throws IOException {
+    List<StoryGraph.FileBuilder> graphs = fileGraphs(batch);
+    ImmutableList<BatchTranspiler.Failure> failures = BatchTranspiler.index(batch, jobs, graphs);
+    if (!failures.isEmpty()) {
+      report(batch, failures);
+      return null;
+    }
+    StoryGraph graph = StoryGraph.of(graphs);
+    if (graph.nodes().stream().noneMatch(node -> node.id().equals(StoryGraph.START))) {
+      // Everything would be unreachable, e.g. a story's files
+      // transpiled separately.
+      throw new IllegalStateException(String.format(
+          "No node %s, so can't tell which nodes are unreachable.", StoryGraph.START));
+    }
+    ImmutableSet<String> unreachable = graph.analyze().unreachable();
+
+    StringBuilder report = new StringBuilder();
+    report.append(String.format(
+        "Dropped %d of %d nodes:%n", unreachable.size(), graph.nodes().size()));
+    for (StoryGraph.Node node : graph.nodes()) {
+      if (unreachable.contains(node.id())) {
+        report.append(String.format("%s:%d: %s%n", node.file(), node.line(), node.id()));
       }
-      System.exit(-1);
-    } catch (IllegalStateException e) {
-      // fatalError already printed the message with its line number.
-      if (debug) {
-        //noinspection CallToPrintStackTrace
-        e.printStackTrace();
+    }
+    if (droppedNodesReportFileName != null) {
+      OutputFile.write(Path.of(droppedNodesReportFileName), writer -> writer.append(report));
+    }
+    if (!unreachable.isEmpty()) {
+      System.err.printf("Dropped %d unreachable of %d nodes.%n",
+          unreachable.size(), graph.nodes().size());
+    }
+    return unreachable;
+  }
+
+  private void writeGraph(StoryGraph graph) throws IOException {
+    StoryGraph.Analysis analysis = graph.analyze();
+    String json = graph.toJson(analysis);
+    OutputFile.write(Path.of(graphFileName), writer -> writer.write(json));
+    for (StoryGraph.Edge edge : analysis.unresolved()) {
+      System.err.printf("%s:%d: warning: No node %s.%n", edge.file(), edge.line(), edge.to());
+    }
+  }
+
+  private void writeStats(CompileStats stats) throws IOException {
+    if (statsFileName != null) {
+      String json = stats.toJson();
+      OutputFile.write(Path.of(statsFileName), writer -> writer.write(json));
+    }
+  }
+
+  private void report(
+      ImmutableList<BatchTranspiler.Job> batch, ImmutableList<BatchTranspiler.Failure> failures) {
+    for (BatchTranspiler.Failure failure : failures) {
+      System.err.println(failure.diagnostic(debug));
+    }
+    if (!failures.isEmpty() && batch.size() > 1) {
+      System.err.printf("%d of %d files failed to transpile.%n", failures.size(), batch.size());
+    }
+  }
+
+  private int serve(ImmutableList<BatchTranspiler.Job> batch, BatchTranspiler.Options options) {
+    try {
+      new DevServer(Path.of(serveDirName), port, batch, options).run();
+    } catch (IOException e) {
+      System.err.println(e.getMessage());
+      return -1;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return 0;
+  }
+
+  private int watch(ImmutableList<BatchTranspiler.Job> batch, BatchTranspiler.Options options) {
+    System.err.printf("Watching %d files for changes.%n", batch.size());
+    Watcher watcher = Watcher.transpiling(batch, jobs, options, (changed, failures, elapsed) -> {
+      report(changed, failures);
+      System.err.printf("Transpiled %d of %d files in %d ms.%n",
+          changed.size() - failures.size(), changed.size(), elapsed.toMillis());
+      try {
+        // Each file as it was last transpiled.
+        writeStats(options.stats());
+      } catch (IOException e) {
+        System.err.println(e.getMessage());
       }
-      System.exit(-1);
-    } catch (Exception e) {
+    });
+    try {
+      watcher.run();
+    } catch (IOException e) {
       System.err.println(e.getMessage());
-      //noinspection CallToPrintStackTrace
-      e.printStackTrace();
-      System.exit(-1);
+      return -1;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return 0;
+  }
+
+  private ImmutableList<BatchTranspiler.Job> batch() throws IOException {
+    if (inputFileNames.size() != outputFileNames.size()) {
+      throw new IllegalArgumentException(String.format(
+          "Got %d --in files but %d --out files; they must be given in pairs.",
+          inputFileNames.size(), outputFileNames.size()));
+    }
+    ImmutableList.Builder<BatchTranspiler.Job> jobs = ImmutableList.builder();
+    for (int i = 0; i < inputFileNames.size(); i++) {
+      jobs.add(new BatchTranspiler.Job(
+          Path.of(inputFileNames.get(i)), Path.of(outputFileNames.get(i))));
+    }
+    if (manifestFileName != null) {
+      jobs.addAll(BatchTranspiler.readManifest(Path.of(manifestFileName)));
+    }
+    ImmutableList<BatchTranspiler.Job> all = jobs.build();
+    if (all.isEmpty()) {
+      throw new IllegalArgumentException("Nothing to transpile: pass --in/--out or --manifest.");
     }
+    return all;
   }
 }
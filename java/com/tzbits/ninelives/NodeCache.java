@@ -0,0 +1,167 @@
+package com.tzbits.ninelives;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.CodeSource;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An on-disk, content-addressed cache of the JavaScript emitted for
+ * each node.
+ *
+ * <p>A node transpiles the same way wherever it appears, given the
+ * same source lines and the same incoming {@code scope} and choice
+ * wrap state, so those are the key. The value is the JavaScript and
+ * the state the node leaves behind for the next one. Entries are
+ * never invalidated, only superseded: the key also covers the
+ * transpiler itself, and the directory can be deleted at any time.
+ *
+ * <p>Safe to share between threads and processes.
+ */
+public final class NodeCache {
+
+  /** Bump whenever the emitted JavaScript changes for the same source. */
+  private static final int FORMAT_VERSION = 4;
+
+  /** Never hits and stores nothing. */
+  public static final NodeCache NONE = new NodeCache(null);
+
+  /** The JavaScript for a node, and the state it leaves behind. */
+  record Entry(String js, String scope, Boolean nextChoicesWrap) {}
+
+  private final Path dir;
+  private final AtomicInteger hits = new AtomicInteger();
+  private final AtomicInteger misses = new AtomicInteger();
+
+  private NodeCache(Path dir) {
+    this.dir = dir;
+  }
+
+  /** Returns a cache that keeps its entries under {@code dir}. */
+  public static NodeCache inDirectory(Path dir) {
+    return new NodeCache(dir);
+  }
+
+  boolean isEnabled() {
+    return dir != null;
+  }
+
+  public int hits() {
+    return hits.get();
+  }
+
+  public int misses() {
+    return misses.get();
+  }
+
+  /**
+   * Returns the key for {@code lines} transpiled in the given state.
+   *
+   * @param variant anything else the JavaScript depends on, such as
+   *     the output mode
+   */
+  static String key(
+      List<SourceLine> lines, String scope, Boolean nextChoicesWrap, String variant) {
+    Hasher hasher = Hashing.sha256().newHasher()
+        .putInt(FORMAT_VERSION)
+        .putString(TranspilerFingerprint.VALUE, StandardCharsets.UTF_8);
+    putString(hasher, variant);
+    putString(hasher, scope);
+    hasher.putByte(nextChoicesWrap == null ? (byte) 2 : nextChoicesWrap ? (byte) 1 : (byte) 0);
+    hasher.putInt(lines.size());
+    for (SourceLine line : lines) {
+      // The type can't always be recovered from the text: "\=a=" is
+      // stored as the text "=a=".
+      hasher.putChar(line.lineType().character());
+      putString(hasher, line.line());
+    }
+    return hasher.hash().toString();
+  }
+
+  private static void putString(Hasher hasher, String s) {
+    hasher.putInt(s.length()).putUnencodedChars(s);
+  }
+
+  /** Returns the entry for {@code key}, or empty if there isn't a usable one. */
+  Optional<Entry> get(String key) {
+    if (!isEnabled()) {
+      return Optional.empty();
+    }
+    String stored;
+    try {
+      stored = Files.readString(path(key), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      // Missing, or being replaced: either way, transpile it again.
+      misses.incrementAndGet();
+      return Optional.empty();
+    }
+    int scopeEnd = stored.indexOf('\n');
+    int wrapEnd = scopeEnd == -1 ? -1 : stored.indexOf('\n', scopeEnd + 1);
+    if (wrapEnd == -1) {
+      misses.incrementAndGet();
+      return Optional.empty();
+    }
+    Boolean wrap = switch (stored.substring(scopeEnd + 1, wrapEnd)) {
+      case "true" -> true;
+      case "false" -> false;
+      default -> null;
+    };
+    hits.incrementAndGet();
+    return Optional.of(
+        new Entry(stored.substring(wrapEnd + 1), stored.substring(0, scopeEnd), wrap));
+  }
+
+  /** Stores {@code entry} under {@code key}, replacing any earlier one. */
+  void put(String key, Entry entry) throws IOException {
+    if (!isEnabled()) {
+      return;
+    }
+    Path path = path(key);
+    Files.createDirectories(path.getParent());
+    OutputFile.write(path, writer -> {
+      writer.write(entry.scope());
+      writer.write('\n');
+      writer.write(String.valueOf(entry.nextChoicesWrap()));
+      writer.write('\n');
+      writer.write(entry.js());
+    });
+  }
+
+  private Path path(String key) {
+    // Fan out so no one directory gets too large.
+    return dir.resolve(key.substring(0, 2)).resolve(key);
+  }
+
+  /**
+   * A hash of the jar the transpiler was loaded from, so a rebuilt
+   * transpiler never reuses another build's output. Falls back to
+   * {@link #FORMAT_VERSION} alone when not running from a jar.
+   */
+  private static final class TranspilerFingerprint {
+    static final String VALUE = compute();
+
+    private static String compute() {
+      try {
+        CodeSource codeSource = Transpiler.class.getProtectionDomain().getCodeSource();
+        if (codeSource == null) {
+          return "";
+        }
+        Path location = Path.of(codeSource.getLocation().toURI());
+        if (!Files.isRegularFile(location)) {
+          return "";
+        }
+        return MoreFiles.asByteSource(location).hash(Hashing.sha256()).toString();
+      } catch (IOException | URISyntaxException | RuntimeException e) {
+        return "";
+      }
+    }
+  }
+}
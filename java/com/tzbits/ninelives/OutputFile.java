@@ -0,0 +1,51 @@
+package com.tzbits.ninelives;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+
+/**
+ * Writes an output file through a temporary sibling that replaces the
+ * real file only once writing has succeeded, so readers never see a
+ * partial file and a failed transpile leaves no output behind.
+ *
+ * <p>A file whose contents haven't changed is left alone, so its
+ * modification time doesn't trigger anything watching it.
+ */
+final class OutputFile {
+  private OutputFile() {}
+
+  /** Streams the contents of a file to a writer. */
+  interface Contents {
+    void writeTo(Writer writer) throws IOException;
+  }
+
+  static void write(Path out, Contents contents) throws IOException {
+    Path dir = out.toAbsolutePath().getParent();
+    // Not Files.createTempFile, which makes the file, and so the output
+    // moved over from it, readable by its owner only.
+    Path tmp = dir.resolve("." + out.getFileName() + "." + UUID.randomUUID() + ".tmp");
+    try {
+      try (Writer writer = Files.newBufferedWriter(
+          tmp, StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+        contents.writeTo(writer);
+      }
+      if (Files.isRegularFile(out) && Files.mismatch(tmp, out) == -1) {
+        return;
+      }
+      try {
+        Files.move(tmp, out, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp, out, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package com.tzbits.ninelives;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs a command line tool as a Bazel persistent worker so that one
+ * warm JVM serves many build actions.
+ *
+ * <p>Speaks the JSON flavour of the worker protocol: each line on
+ * stdin is a {@code WorkRequest} and each line written to stdout is
+ * the matching {@code WorkResponse}. Requests are handled one at a
+ * time. While a request runs, {@code System.out} and {@code
+ * System.err} are captured and returned as the response's output, so
+ * diagnostics reach the Bazel console instead of corrupting the
+ * protocol stream.
+ *
+ * <p>See https://bazel.build/remote/creating for the protocol.
+ */
+public final class PersistentWorker {
+
+  /** The flag Bazel passes to a binary to start it as a worker. */
+  public static final String FLAG = "--persistent_worker";
+
+  /** One invocation of the tool. Returns the process exit code. */
+  public interface Action {
+    int run(String[] args);
+  }
+
+  private PersistentWorker() {}
+
+  /**
+   * Serves work requests from {@code in} until it is closed.
+   *
+   * @return the exit code for the worker process
+   */
+  public static int serve(InputStream in, PrintStream out, Action action) {
+    PrintStream originalErr = System.err;
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isBlank()) {
+          continue;
+        }
+        out.print(handle(line, action));
+        out.print('\n');
+        out.flush();
+      }
+      return 0;
+    } catch (IOException e) {
+      originalErr.println("Worker input failed: " + e.getMessage());
+      return 1;
+    }
+  }
+
+  /** Runs one JSON {@code WorkRequest} and returns the JSON {@code WorkResponse}. */
+  static String handle(String requestJson, Action action) {
+    long requestId = 0;
+    int exitCode;
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    PrintStream originalOut = System.out;
+    PrintStream originalErr = System.err;
+    try (PrintStream capture = new PrintStream(output, true, StandardCharsets.UTF_8)) {
+      try {
+        Map<?, ?> request = (Map<?, ?>) Json.parse(requestJson);
+        if (request.get("requestId") instanceof Long id) {
+          requestId = id;
+        }
+        System.setOut(capture);
+        System.setErr(capture);
+        exitCode = action.run(arguments(request));
+      } catch (RuntimeException e) {
+        // Malformed requests and tool bugs fail this action only;
+        // the worker stays up for the next one.
+        e.printStackTrace(capture);
+        exitCode = 1;
+      } finally {
+        System.setOut(originalOut);
+        System.setErr(originalErr);
+      }
+    }
+
+    Map<String, Object> response = new LinkedHashMap<>();
+    response.put("exitCode", exitCode);
+    response.put("output", output.toString(StandardCharsets.UTF_8));
+    response.put("requestId", requestId);
+    return Json.write(response);
+  }
+
+  private static String[] arguments(Map<?, ?> request) {
+    Object args = request.get("arguments");
+    if (args == null) {
+      return new String[0];
+    }
+    if (!(args instanceof List<?> list)) {
+      throw new IllegalArgumentException("WorkRequest arguments must be a list.");
+    }
+    List<String> strings = new ArrayList<>(list.size());
+    for (Object arg : list) {
+      strings.add(String.valueOf(arg));
+    }
+    return strings.toArray(new String[0]);
+  }
+}
@@ -0,0 +1,407 @@
+package com.tzbits.ninelives;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.google.common.hash.Hashing;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Packs a story for release, so a static host can cache everything
+ * but {@code index.html} forever.
+ *
+ * <p>Each file that another refers to by name, in a quoted string
+ * such as {@code import "./game.js"} or {@code href="game.css"} or in
+ * a CSS {@code url()}, is renamed after a hash of its contents (e.g.
+ * {@code game.1f3870be27.js}) and those references are rewritten.
+ * Since a file's hash covers the names it refers to, changing a file
+ * renames everything that leads to it, up to {@code index.html},
+ * and nothing else. Files nothing refers to by name, such as images
+ * whose names are put together in code, keep their names, as do files
+ * that refer to each other in a cycle.
+ *
+ * <p>Text files get a gzipped sibling, e.g. {@code game.1f3870be27.js.gz},
+ * when that is smaller. {@link #MANIFEST} lists every file with its
+ * size, hash, type and how to cache it. The zip is the same, byte for
+ * byte, for the same files.
+ */
+public final class ReleasePackager {
+
+  /** The name of the asset manifest in the package. */
+  static final String MANIFEST = "asset-manifest.json";
+
+  static final String CACHE_FOREVER = "public, max-age=31536000, immutable";
+  static final String REVALIDATE = "no-cache";
+
+  /** The file the browser starts from, which always keeps its name. */
+  private static final String ENTRY = "index.html";
+
+  /** What references to other files are looked for in, by extension. */
+  private static final Set<String> REFERRING = Set.of("html", "htm", "js", "mjs", "css");
+
+  private static final Map<String, String> CONTENT_TYPES = Map.ofEntries(
+      Map.entry("html", "text/html; charset=utf-8"),
+      Map.entry("htm", "text/html; charset=utf-8"),
+      Map.entry("js", "text/javascript; charset=utf-8"),
+      Map.entry("mjs", "text/javascript; charset=utf-8"),
+      Map.entry("css", "text/css; charset=utf-8"),
+      Map.entry("json", "application/json"),
+      Map.entry("txt", "text/plain; charset=utf-8"),
+      Map.entry("svg", "image/svg+xml"),
+      Map.entry("xml", "application/xml"),
+      Map.entry("png", "image/png"),
+      Map.entry("jpg", "image/jpeg"),
+      Map.entry("jpeg", "image/jpeg"),
+      Map.entry("gif", "image/gif"),
+      Map.entry("webp", "image/webp"),
+      Map.entry("avif", "image/avif"),
+      Map.entry("ico", "image/x-icon"),
+      Map.entry("woff2", "font/woff2"),
+      Map.entry("mp3", "audio/mpeg"),
+      Map.entry("ogg", "audio/ogg"));
+
+  /** The types worth gzipping; the rest are compressed already. */
+  private static final Set<String> COMPRESSIBLE =
+      Set.of("html", "htm", "js", "mjs", "css", "json", "txt", "svg", "xml");
+
+  /** A quoted string or CSS url() that may name another file. */
+  private static final Pattern REFERENCE = Pattern.compile(
+      "([\"'`])((?:\\./)?[\\w./-]+)\\1|url\\(\\s*((?:\\./)?[\\w./-]+)\\s*\\)");
+
+  /** Zip entries' time, so the zip doesn't depend on when it was built. */
+  private static final LocalDateTime EPOCH = LocalDateTime.of(1980, 1, 1, 0, 0);
+
+  @Parameter(names = "--file",
+             description = "A file to package, as <path in the package>=<file>. "
+                 + "May be repeated.")
+  private List<String> files = new ArrayList<>();
+
+  @Parameter(names = "--dir",
+             description = "A directory of files to package at their paths in it. "
+                 + "May be repeated.")
+  private List<String> dirs = new ArrayList<>();
+
+  @Parameter(names = "--out", description = "The zip file to write.", required = true)
+  private String outFileName;
+
+  @Parameter(names = "--manifest",
+             description = "Also write the asset manifest to this file.")
+  private String manifestFileName;
+
+  /** A file as packaged, see {@link #MANIFEST}. */
+  record Asset(String source, String path, byte[] contents, boolean immutable) {}
+
+  private ReleasePackager() {}
+
+  public static void main(String[] argv) {
+    ReleasePackager packager = new ReleasePackager();
+    try {
+      JCommander.newBuilder()
+          .addObject(packager)
+          .build()
+          .parse(argv);
+    } catch (ParameterException e) {
+      System.err.println(e.getMessage());
+      System.exit(-1);
+    }
+    int exitCode = packager.run();
+    if (exitCode != 0) {
+      System.exit(exitCode);
+    }
+  }
+
+  private int run() {
+    try {
+      Map<String, byte[]> sources = new HashMap<>();
+      for (String file : files) {
+        int eq = file.indexOf('=');
+        if (eq <= 0) {
+          throw new IllegalArgumentException("Expected --file <path>=<file>, got: " + file);
+        }
+        add(sources, file.substring(0, eq), Path.of(file.substring(eq + 1)));
+      }
+      for (String dirName : dirs) {
+        Path dir = Path.of(dirName);
+        try (Stream<Path> walk = Files.walk(dir)) {
+          for (Path file : walk.filter(Files::isRegularFile).sorted().toList()) {
+            add(sources, dir.relativize(file).toString().replace('\\', '/'), file);
+          }
+        }
+      }
+      SortedMap<String, byte[]> release = pack(sources);
+      try (OutputStream out = Files.newOutputStream(Path.of(outFileName))) {
+        writeZip(release, out);
+      }
+      if (manifestFileName != null) {
+        Files.write(Path.of(manifestFileName), release.get(MANIFEST));
+      }
+    } catch (IOException | IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      return -1;
+    }
+    return 0;
+  }
+
+  private static void add(Map<String, byte[]> sources, String path, Path file) throws IOException {
+    if (sources.put(path, Files.readAllBytes(file)) != null) {
+      throw new IllegalArgumentException("Two files to package at " + path);
+    }
+  }
+
+  /**
+   * Returns the contents of the package by path: {@code sources}
+   * renamed after their hashes where they can be, with rewritten
+   * references, their gzipped siblings and the manifest.
+   */
+  static SortedMap<String, byte[]> pack(Map<String, byte[]> sources) {
+    SortedMap<String, byte[]> release = new TreeMap<>();
+    List<Asset> assets = hash(sources);
+    for (Asset asset : assets) {
+      release.put(asset.path(), asset.contents());
+    }
+
+    List<Object> entries = new ArrayList<>();
+    for (Asset asset : assets) {
+      String extension = extension(asset.path());
+      Map<String, Object> entry = new LinkedHashMap<>();
+      entry.put("path", asset.path());
+      entry.put("source", asset.source());
+      entry.put("bytes", asset.contents().length);
+      entry.put("sha256", Hashing.sha256().hashBytes(asset.contents()).toString());
+      entry.put("type", CONTENT_TYPES.getOrDefault(extension, "application/octet-stream"));
+      entry.put("cacheControl", asset.immutable() ? CACHE_FOREVER : REVALIDATE);
+      if (COMPRESSIBLE.contains(extension)) {
+        byte[] gzipped = gzip(asset.contents());
+        if (gzipped.length < asset.contents().length) {
+          release.put(asset.path() + ".gz", gzipped);
+          Map<String, Object> gzip = new LinkedHashMap<>();
+          gzip.put("path", asset.path() + ".gz");
+          gzip.put("bytes", gzipped.length);
+          entry.put("gzip", gzip);
+        }
+      }
+      entries.add(entry);
+    }
+    if (release.containsKey(MANIFEST)) {
+      throw new IllegalArgumentException("A file to package is named " + MANIFEST);
+    }
+    release.put(MANIFEST, Json.write(Map.of("files", entries)).getBytes(StandardCharsets.UTF_8));
+    return release;
+  }
+
+  /** Renames what can be renamed after its hash, leaves by path. */
+  private static List<Asset> hash(Map<String, byte[]> sources) {
+    // What each file refers to, and what is referred to at all.
+    Map<String, Set<String>> references = new HashMap<>();
+    Set<String> referenced = new HashSet<>();
+    for (Map.Entry<String, byte[]> source : sources.entrySet()) {
+      Set<String> refs = new TreeSet<>();
+      if (REFERRING.contains(extension(source.getKey()))) {
+        Matcher m = REFERENCE.matcher(text(source.getValue()));
+        while (m.find()) {
+          String path = resolve(source.getKey(), reference(m));
+          if (sources.containsKey(path) && !path.equals(source.getKey())) {
+            refs.add(path);
+          }
+        }
+      }
+      references.put(source.getKey(), refs);
+      referenced.addAll(refs);
+    }
+
+    // Files on a cycle keep their names, so references to them stay
+    // as they are. Name each other file once the files it refers to
+    // have been named; a file on a cycle is rewritten once the files
+    // it refers to off the cycle have been.
+    Set<String> cyclic = onCycles(references);
+    Map<String, Asset> assets = new TreeMap<>();
+    Set<String> left = new TreeSet<>(sources.keySet());
+    while (!left.isEmpty()) {
+      for (String path : List.copyOf(left)) {
+        if (!references.get(path).stream()
+            .allMatch(ref -> assets.containsKey(ref) || cyclic.contains(ref))) {
+          continue;
+        }
+        byte[] contents = rewrite(path, sources.get(path), references.get(path), assets);
+        boolean immutable =
+            referenced.contains(path) && !cyclic.contains(path) && !path.equals(ENTRY);
+        String name = immutable ? hashedName(path, contents) : path;
+        assets.put(path, new Asset(path, name, contents, immutable));
+        left.remove(path);
+      }
+    }
+
+    Map<String, String> paths = new HashMap<>();
+    for (Asset asset : assets.values()) {
+      if (paths.put(asset.path(), asset.source()) != null) {
+        throw new IllegalArgumentException("Two files to package at " + asset.path());
+      }
+    }
+    List<Asset> byPath = new ArrayList<>(assets.values());
+    byPath.sort((a, b) -> a.path().compareTo(b.path()));
+    return byPath;
+  }
+
+  /** Rewrites the references in a file to the new names of what they refer to. */
+  private static byte[] rewrite(
+      String path, byte[] contents, Set<String> refs, Map<String, Asset> assets) {
+    if (refs.isEmpty()) {
+      return contents;
+    }
+    Matcher m = REFERENCE.matcher(text(contents));
+    StringBuilder out = new StringBuilder();
+    while (m.find()) {
+      String reference = reference(m);
+      Asset asset = assets.get(resolve(path, reference));
+      if (asset == null || !refs.contains(asset.source())) {
+        m.appendReplacement(out, Matcher.quoteReplacement(m.group()));
+        continue;
+      }
+      String renamed = relativize(path, asset.path(), reference.startsWith("./"));
+      String group = m.group();
+      int start = (m.group(2) != null ? m.start(2) : m.start(3)) - m.start();
+      m.appendReplacement(out, Matcher.quoteReplacement(
+          group.substring(0, start) + renamed + group.substring(start + reference.length())));
+    }
+    m.appendTail(out);
+    return out.toString().getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Returns the files on a cycle of references: Tarjan's strongly
+   * connected components of more than one file. Files never refer to
+   * themselves, see {@link #hash}.
+   */
+  private static Set<String> onCycles(Map<String, Set<String>> references) {
+    Set<String> cyclic = new HashSet<>();
+    Map<String, Integer> index = new HashMap<>();
+    Map<String, Integer> low = new HashMap<>();
+    Deque<String> stack = new ArrayDeque<>();
+    for (String path : new TreeSet<>(references.keySet())) {
+      if (!index.containsKey(path)) {
+        connect(path, references, index, low, stack, cyclic);
+      }
+    }
+    return cyclic;
+  }
+
+  private static void connect(String path, Map<String, Set<String>> references,
+      Map<String, Integer> index, Map<String, Integer> low, Deque<String> stack,
+      Set<String> cyclic) {
+    index.put(path, index.size());
+    low.put(path, index.get(path));
+    stack.push(path);
+    for (String ref : references.get(path)) {
+      if (!index.containsKey(ref)) {
+        connect(ref, references, index, low, stack, cyclic);
+        low.put(path, Math.min(low.get(path), low.get(ref)));
+      } else if (stack.contains(ref)) {
+        low.put(path, Math.min(low.get(path), index.get(ref)));
+      }
+    }
+    if (low.get(path).equals(index.get(path))) {
+      List<String> component = new ArrayList<>();
+      String member;
+      do {
+        member = stack.pop();
+        component.add(member);
+      } while (!member.equals(path));
+      if (component.size() > 1) {
+        cyclic.addAll(component);
+      }
+    }
+  }
+
+  private static String reference(Matcher m) {
+    return m.group(2) != null ? m.group(2) : m.group(3);
+  }
+
+  /** The path a reference from the file at {@code from} leads to. */
+  private static String resolve(String from, String reference) {
+    return Path.of(from).resolveSibling(reference).normalize().toString().replace('\\', '/');
+  }
+
+  /** How the file at {@code from} refers to the file at {@code to}. */
+  private static String relativize(String from, String to, boolean dotSlash) {
+    Path dir = Path.of(from).getParent();
+    String relative = dir == null
+        ? to
+        : dir.relativize(Path.of(to)).toString().replace('\\', '/');
+    return dotSlash && !relative.startsWith("../") ? "./" + relative : relative;
+  }
+
+  /** {@code game.js} becomes {@code game.<hash>.js}. */
+  static String hashedName(String path, byte[] contents) {
+    String hash = Hashing.sha256().hashBytes(contents).toString().substring(0, 10);
+    int slash = path.lastIndexOf('/');
+    int dot = path.lastIndexOf('.');
+    return dot > slash + 1
+        ? path.substring(0, dot) + "." + hash + path.substring(dot)
+        : path + "." + hash;
+  }
+
+  private static String extension(String path) {
+    int slash = path.lastIndexOf('/');
+    int dot = path.lastIndexOf('.');
+    return dot > slash ? path.substring(dot + 1).toLowerCase(Locale.ROOT) : "";
+  }
+
+  /** Decodes text as Latin-1, which keeps every byte as it is through a rewrite. */
+  private static String text(byte[] contents) {
+    return new String(contents, StandardCharsets.ISO_8859_1);
+  }
+
+  private static byte[] gzip(byte[] contents) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(bytes) {
+      {
+        def.setLevel(Deflater.BEST_COMPRESSION);
+      }
+    }) {
+      out.write(contents);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /** Writes the files to a zip, in order and without timestamps of their own. */
+  static void writeZip(SortedMap<String, byte[]> files, OutputStream out) throws IOException {
+    try (ZipOutputStream zip = new ZipOutputStream(out)) {
+      zip.setLevel(Deflater.BEST_COMPRESSION);
+      for (Map.Entry<String, byte[]> file : files.entrySet()) {
+        ZipEntry entry = new ZipEntry(file.getKey());
+        entry.setTimeLocal(EPOCH);
+        zip.putNextEntry(entry);
+        zip.write(file.getValue());
+        zip.closeEntry();
+      }
+    }
+  }
+}
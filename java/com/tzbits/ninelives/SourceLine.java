@@ -11,21 +11,18 @@ public abstract class SourceLine {
 
   public abstract int lineNumber();
 
+  /**
+   * The offset just past the leading token: the closing '=' of a node
+   * header, or the first space (or end of line) of a choice or
+   * command. Zero for other line types.
+   */
+  abstract int headEnd();
+
+  /** The offset of the '/' before a choice's visit limit, or -1. */
+  abstract int limitStart();
+
   public static SourceLine newInstance(String line, int lineNumber) {
-    if (line.isEmpty()) {
-      return new AutoValue_SourceLine(LineType.TEXT, line, lineNumber);
-    }
-    if (line.charAt(0) == '\\') {
-      return new AutoValue_SourceLine(LineType.TEXT, line.substring(1), lineNumber);
-    }
-    // The node indicator, '=', is a special case: a node header is '=id='
-    // at the start of the line (optionally followed by a comment). Anything
-    // else starting with '=' (e.g. "== win ? 'happy' : 'sad'} days ahead"
-    // continuing a ${}) is text.
-    if (line.startsWith("=") && !line.matches("^=[A-Za-z0-9_:-]+=(\\s.*)?$")) {
-      return new AutoValue_SourceLine(LineType.TEXT, line, lineNumber);
-    }
-    return new AutoValue_SourceLine(LineType.forCharacter(line.charAt(0)), line, lineNumber);
+    return Lexer.scan(line, lineNumber);
   }
 
   public boolean isEmpty() {
@@ -36,14 +33,43 @@ public abstract class SourceLine {
     return lineType().equals(type);
   }
 
+  /** The unresolved id of a node header, e.g. "0" for "=0= Start". */
+  public String nodeId() {
+    return line().substring(1, headEnd());
+  }
+
+  /** The unresolved target node id of a choice, without any visit limit. */
+  public String choiceTarget() {
+    return line().substring(1, limitStart() == -1 ? headEnd() : limitStart());
+  }
+
+  /** The visit limit of a choice, e.g. "2" for ">id/2", or null. */
+  public String visitLimit() {
+    return limitStart() == -1 ? null : line().substring(limitStart() + 1, headEnd());
+  }
+
+  /** The name of a command, e.g. "img" for "!img banner.jpg". */
+  public String commandName() {
+    return line().substring(1, headEnd());
+  }
+
+  /** The trimmed text after the leading token of a choice or command. */
+  public String body() {
+    return line().substring(headEnd()).trim();
+  }
+
+  /**
+   * Returns an error for a mistake in the 9l source. The message is
+   * prefixed with the line number so callers can report it as
+   * {@code file:line: message}.
+   */
   public IllegalStateException fatalError(String message) {
-    System.err.printf("%d: %s%n", lineNumber(), message);
-    throw new IllegalStateException(message);
+    return new IllegalStateException(String.format("%d: %s", lineNumber(), message));
   }
 
+  /** Returns an error for a transpiler bug found while handling this line. */
   public RuntimeException bug(String message) {
-    System.err.printf("%d: Bug: %s%n", lineNumber(), message);
-    throw new RuntimeException(message);
+    return new RuntimeException(String.format("%d: Bug: %s", lineNumber(), message));
   }
 
 }
@@ -0,0 +1,497 @@
+package com.tzbits.ninelives;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The nodes of a story and the ways between them, indexed across all
+ * of its 9l files as they are transpiled, so tools can inspect the
+ * story without parsing it again.
+ *
+ * <p>Node ids are fully qualified, e.g. {@code =g:0=}, as they are in
+ * {@code game.gameNodes}.
+ */
+public final class StoryGraph {
+
+  /** Where every story begins; see Game.location in game.js. */
+  public static final String START = "=g:0=";
+
+  /** Matches an inline link the way applyMarkdown in game.js does. */
+  private static final Pattern INLINE_LINK = Pattern.compile("\\[(.*?)\\]\\(>(.*?)\\)");
+
+  /** Matches a {@code game.choice} call with a literal node id. */
+  private static final Pattern CHOICE_CALL =
+      Pattern.compile("game\\.choice\\(\\s*(['\"`])=([^'\"`=]+)=\\1");
+
+  public record Node(String id, String file, int line, String scope) {}
+
+  /** How one node leads to another. */
+  public enum EdgeKind {
+    /** A {@code >target} choice. */
+    CHOICE,
+    /** A {@code [text](>target)} inline link. */
+    LINK,
+    /**
+     * A {@code game.choice('=target=', ...)} call with a literal id, in
+     * a code line, condition or interpolation. Before the first node it
+     * is a way into the story, like {@link #START}.
+     */
+    CODE,
+  }
+
+  /**
+   * A way from one node to another.
+   *
+   * @param visitLimit the {@code /limit} of a choice, or null
+   * @param condition the {@code ? cond;} or {@code :if cond;} of a choice, or null
+   */
+  public record Edge(
+      String from, String to, EdgeKind kind, String file, int line,
+      String visitLimit, String condition) {}
+
+  /** An {@code !img}, and the node that shows it, or null before the first node. */
+  public record Image(String node, String src, String file, int line) {}
+
+  /** The results of {@link #analyze}. */
+  public record Analysis(
+      ImmutableMap<String, Integer> depths,
+      ImmutableSet<String> unreachable,
+      ImmutableList<Edge> unresolved,
+      ImmutableList<ImmutableList<String>> cycles,
+      ImmutableSet<String> duplicates) {}
+
+  /**
+   * Records the graph of one 9l file, chunk by chunk, as the
+   * transpiler reads it. Not thread-safe; use one per file.
+   */
+  public static final class FileBuilder {
+    private final String file;
+    private final List<Node> nodes = new ArrayList<>();
+    private final List<Edge> edges = new ArrayList<>();
+    private final List<Image> images = new ArrayList<>();
+    private final List<String> kept = new ArrayList<>();
+
+    public FileBuilder(String file) {
+      this.file = file;
+    }
+
+    /**
+     * Records the nodes, choices, links and images in {@code chunk},
+     * which starts out in {@code scope}. Reads the source lines
+     * directly so that a chunk is recorded the same way whether or not
+     * its JavaScript came from a {@link NodeCache}.
+     *
+     * @return the scope after the chunk
+     */
+    String record(List<SourceLine> chunk, String scope) {
+      String node = null;
+      for (SourceLine line : chunk) {
+        if (!line.isType(LineType.NODE)) {
+          recordChoiceCalls(node, line, scope);
+        }
+        switch (line.lineType()) {
+          case NODE -> {
+            node = Transpiler.resolveNodeId(line.nodeId(), scope);
+            nodes.add(new Node(node, file, line.lineNumber(), scope));
+          }
+          case CHOICE -> {
+            String body = line.body();
+            edges.add(new Edge(
+                node, Transpiler.resolveNodeId(line.choiceTarget(), scope), EdgeKind.CHOICE,
+                file, line.lineNumber(), line.visitLimit(), condition(body)));
+            recordLinks(node, line, body, scope);
+          }
+          case COMMAND -> {
+            String name = line.commandName();
+            if (name.equals("scope")) {
+              scope = line.body();
+            } else if (name.equals("img")) {
+              images.add(new Image(node, line.body(), file, line.lineNumber()));
+            } else if (name.equals("keep")) {
+              if (node != null) {
+                kept.add(node);
+              }
+            } else if (!name.equals("choices")) {
+              recordLinks(node, line, line.body(), scope);
+            }
+          }
+          case TEXT -> recordLinks(node, line, line.line(), scope);
+          default -> {}
+        }
+      }
+      return scope;
+    }
+
+    private void recordChoiceCalls(String node, SourceLine line, String scope) {
+      String text = line.line();
+      if (text.indexOf("game.choice(") == -1) {
+        return;
+      }
+      Matcher matcher = CHOICE_CALL.matcher(text);
+      while (matcher.find()) {
+        edges.add(new Edge(
+            node, Transpiler.resolveNodeId(matcher.group(2), scope), EdgeKind.CODE,
+            file, line.lineNumber(), null, null));
+      }
+    }
+
+    private void recordLinks(String node, SourceLine line, String text, String scope) {
+      if (node == null || text.indexOf("](>") == -1) {
+        return;
+      }
+      Matcher matcher = INLINE_LINK.matcher(text);
+      while (matcher.find()) {
+        edges.add(new Edge(
+            node, Transpiler.resolveNodeId(matcher.group(2), scope), EdgeKind.LINK,
+            file, line.lineNumber(), null, null));
+      }
+    }
+
+    private static String condition(String choiceBody) {
+      int start;
+      if (choiceBody.startsWith(":if ")) {
+        start = 4;
+      } else if (choiceBody.startsWith("?")) {
+        start = 1;
+      } else {
+        return null;
+      }
+      int end = choiceBody.indexOf(';');
+      return end == -1 ? null : choiceBody.substring(start, end).trim();
+    }
+  }
+
+  private final ImmutableList<String> files;
+  private final ImmutableList<Node> nodes;
+  private final ImmutableList<Edge> edges;
+  private final ImmutableList<Image> images;
+  private final ImmutableSet<String> kept;
+
+  private StoryGraph(
+      ImmutableList<String> files, ImmutableList<Node> nodes, ImmutableList<Edge> edges,
+      ImmutableList<Image> images, ImmutableSet<String> kept) {
+    this.files = files;
+    this.nodes = nodes;
+    this.edges = edges;
+    this.images = images;
+    this.kept = kept;
+  }
+
+  /** Joins the graphs of a story's files, in the order the story imports them. */
+  public static StoryGraph of(List<FileBuilder> fileGraphs) {
+    ImmutableList.Builder<String> files = ImmutableList.builder();
+    ImmutableList.Builder<Node> nodes = ImmutableList.builder();
+    ImmutableList.Builder<Edge> edges = ImmutableList.builder();
+    ImmutableList.Builder<Image> images = ImmutableList.builder();
+    ImmutableSet.Builder<String> kept = ImmutableSet.builder();
+    for (FileBuilder fileGraph : fileGraphs) {
+      files.add(fileGraph.file);
+      nodes.addAll(fileGraph.nodes);
+      edges.addAll(fileGraph.edges);
+      images.addAll(fileGraph.images);
+      kept.addAll(fileGraph.kept);
+    }
+    return new StoryGraph(
+        files.build(), nodes.build(), edges.build(), images.build(), kept.build());
+  }
+
+  public ImmutableList<Node> nodes() {
+    return nodes;
+  }
+
+  public ImmutableList<Edge> edges() {
+    return edges;
+  }
+
+  public ImmutableList<Image> images() {
+    return images;
+  }
+
+  /** The nodes marked {@code !keep}, as reached from hand-written JavaScript. */
+  public ImmutableSet<String> kept() {
+    return kept;
+  }
+
+  /**
+   * The nodes the player starts from: {@link #START}, the nodes marked
+   * {@code !keep}, and the {@code game.choice} targets before the
+   * first node of a file.
+   */
+  private ImmutableSet<String> roots() {
+    ImmutableSet.Builder<String> roots = ImmutableSet.builder();
+    roots.add(START);
+    roots.addAll(kept);
+    for (Edge edge : edges) {
+      if (edge.from() == null && edge.kind() == EdgeKind.CODE) {
+        roots.add(edge.to());
+      }
+    }
+    return roots.build();
+  }
+
+  /**
+   * Finds what the player can reach from {@link #START} and the other
+   * roots (see {@link #kept}) and how quickly, the choices and links
+   * that lead nowhere, the cycles, and the ids defined more than
+   * once. The independent parts run in parallel.
+   */
+  public Analysis analyze() {
+    Index index = new Index();
+    CompletableFuture<int[]> depths = CompletableFuture.supplyAsync(index::depths);
+    CompletableFuture<ImmutableList<Edge>> unresolved = CompletableFuture.supplyAsync(() ->
+        edges.parallelStream()
+            .filter(edge -> !index.ids.containsKey(edge.to()))
+            .collect(ImmutableList.toImmutableList()));
+    CompletableFuture<ImmutableList<ImmutableList<String>>> cycles =
+        CompletableFuture.supplyAsync(index::cycles);
+    ImmutableSet<String> duplicates = index.duplicates();
+
+    int[] depth = depths.join();
+    ImmutableMap.Builder<String, Integer> reachable = ImmutableMap.builder();
+    ImmutableSet.Builder<String> unreachable = ImmutableSet.builder();
+    for (int i = 0; i < depth.length; i++) {
+      if (depth[i] == -1) {
+        unreachable.add(index.idList.get(i));
+      } else {
+        reachable.put(index.idList.get(i), depth[i]);
+      }
+    }
+    return new Analysis(
+        reachable.buildOrThrow(), unreachable.build(), unresolved.join(), cycles.join(),
+        duplicates);
+  }
+
+  /** The nodes as dense ints, with each one's outgoing edges. */
+  private final class Index {
+    final Map<String, Integer> ids = new HashMap<>();
+    final List<String> idList = new ArrayList<>();
+    final int[][] successors;
+
+    Index() {
+      for (Node node : nodes) {
+        if (!ids.containsKey(node.id())) {
+          ids.put(node.id(), idList.size());
+          idList.add(node.id());
+        }
+      }
+      List<Set<Integer>> out = new ArrayList<>(idList.size());
+      for (int i = 0; i < idList.size(); i++) {
+        out.add(new LinkedHashSet<>());
+      }
+      for (Edge edge : edges) {
+        Integer from = edge.from() == null ? null : ids.get(edge.from());
+        Integer to = ids.get(edge.to());
+        if (from != null && to != null) {
+          out.get(from).add(to);
+        }
+      }
+      successors = new int[idList.size()][];
+      for (int i = 0; i < successors.length; i++) {
+        successors[i] = out.get(i).stream().mapToInt(Integer::intValue).toArray();
+      }
+    }
+
+    /** Breadth-first from the roots: each node's fewest steps, or -1. */
+    int[] depths() {
+      int[] depth = new int[idList.size()];
+      Arrays.fill(depth, -1);
+      ArrayDeque<Integer> queue = new ArrayDeque<>();
+      for (String root : roots()) {
+        Integer start = ids.get(root);
+        if (start != null && depth[start] == -1) {
+          depth[start] = 0;
+          queue.add(start);
+        }
+      }
+      while (!queue.isEmpty()) {
+        int node = queue.poll();
+        for (int next : successors[node]) {
+          if (depth[next] == -1) {
+            depth[next] = depth[node] + 1;
+            queue.add(next);
+          }
+        }
+      }
+      return depth;
+    }
+
+    /**
+     * The strongly connected components with a way back into
+     * themselves, by Tarjan's algorithm without recursion so that
+     * long chains of nodes can't overflow the stack.
+     */
+    ImmutableList<ImmutableList<String>> cycles() {
+      int n = idList.size();
+      int[] order = new int[n];
+      int[] low = new int[n];
+      boolean[] onStack = new boolean[n];
+      Arrays.fill(order, -1);
+      int[] stack = new int[n];
+      int stackSize = 0;
+      int[] callNode = new int[n];
+      int[] callEdge = new int[n];
+      int counter = 0;
+      ImmutableList.Builder<ImmutableList<String>> cycles = ImmutableList.builder();
+
+      for (int root = 0; root < n; root++) {
+        if (order[root] != -1) {
+          continue;
+        }
+        int depth = 0;
+        callNode[0] = root;
+        callEdge[0] = 0;
+        order[root] = low[root] = counter++;
+        stack[stackSize++] = root;
+        onStack[root] = true;
+        while (depth >= 0) {
+          int node = callNode[depth];
+          if (callEdge[depth] < successors[node].length) {
+            int next = successors[node][callEdge[depth]++];
+            if (order[next] == -1) {
+              order[next] = low[next] = counter++;
+              stack[stackSize++] = next;
+              onStack[next] = true;
+              depth++;
+              callNode[depth] = next;
+              callEdge[depth] = 0;
+            } else if (onStack[next]) {
+              low[node] = Math.min(low[node], order[next]);
+            }
+            continue;
+          }
+          if (low[node] == order[node]) {
+            List<String> component = new ArrayList<>();
+            int member;
+            do {
+              member = stack[--stackSize];
+              onStack[member] = false;
+              component.add(idList.get(member));
+            } while (member != node);
+            if (component.size() > 1 || hasSelfLoop(node)) {
+              cycles.add(ImmutableList.copyOf(component.reversed()));
+            }
+          }
+          depth--;
+          if (depth >= 0) {
+            int parent = callNode[depth];
+            low[parent] = Math.min(low[parent], low[node]);
+          }
+        }
+      }
+      return cycles.build();
+    }
+
+    private boolean hasSelfLoop(int node) {
+      for (int next : successors[node]) {
+        if (next == node) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    ImmutableSet<String> duplicates() {
+      Set<String> seen = new HashSet<>();
+      ImmutableSet.Builder<String> duplicates = ImmutableSet.builder();
+      for (Node node : nodes) {
+        if (!seen.add(node.id())) {
+          duplicates.add(node.id());
+        }
+      }
+      return duplicates.build();
+    }
+  }
+
+  /**
+   * Returns the graph and its analysis as compact JSON. Nodes are
+   * referred to by their index in {@code nodes} and files by their
+   * index in {@code files}; optional fields are left out.
+   */
+  public String toJson(Analysis analysis) {
+    Map<String, Integer> fileIndex = new HashMap<>();
+    for (String file : files) {
+      fileIndex.putIfAbsent(file, fileIndex.size());
+    }
+    Map<String, Integer> nodeIndex = new HashMap<>();
+    List<Object> nodeList = new ArrayList<>();
+    for (Node node : nodes) {
+      if (nodeIndex.putIfAbsent(node.id(), nodeList.size()) != null) {
+        continue;
+      }
+      Map<String, Object> json = new LinkedHashMap<>();
+      json.put("id", node.id());
+      json.put("file", fileIndex.get(node.file()));
+      json.put("line", node.line());
+      json.put("scope", node.scope());
+      Integer depth = analysis.depths().get(node.id());
+      if (depth != null) {
+        json.put("depth", depth);
+      }
+      nodeList.add(json);
+    }
+
+    List<Object> edgeList = new ArrayList<>();
+    for (Edge edge : edges) {
+      Map<String, Object> json = new LinkedHashMap<>();
+      json.put("from", edge.from() == null ? null : nodeIndex.get(edge.from()));
+      Integer to = nodeIndex.get(edge.to());
+      if (to != null) {
+        json.put("to", to);
+      } else {
+        json.put("target", edge.to());
+      }
+      json.put("kind", edge.kind().name().toLowerCase());
+      json.put("file", fileIndex.get(edge.file()));
+      json.put("line", edge.line());
+      if (edge.visitLimit() != null) {
+        json.put("limit", edge.visitLimit());
+      }
+      if (edge.condition() != null) {
+        json.put("if", edge.condition());
+      }
+      edgeList.add(json);
+    }
+
+    List<Object> imageList = new ArrayList<>();
+    for (Image image : images) {
+      Map<String, Object> json = new LinkedHashMap<>();
+      json.put("node", image.node() == null ? null : nodeIndex.get(image.node()));
+      json.put("src", image.src());
+      json.put("file", fileIndex.get(image.file()));
+      json.put("line", image.line());
+      imageList.add(json);
+    }
+
+    List<Object> cycles = new ArrayList<>();
+    for (ImmutableList<String> cycle : analysis.cycles()) {
+      cycles.add(cycle.stream().map(nodeIndex::get).toList());
+    }
+
+    Map<String, Object> json = new LinkedHashMap<>();
+    json.put("start", START);
+    json.put("files", files);
+    json.put("nodes", nodeList);
+    json.put("edges", edgeList);
+    json.put("images", imageList);
+    json.put("kept", kept.stream().map(nodeIndex::get).toList());
+    json.put("unreachable", analysis.unreachable().stream().map(nodeIndex::get).toList());
+    json.put("unresolved", analysis.unresolved().stream().map(Edge::to).distinct().toList());
+    json.put("cycles", cycles);
+    json.put("duplicates", analysis.duplicates().asList());
+    return Json.write(json);
+  }
+}
@@ -1,10 +1,28 @@
 package com.tzbits.ninelives;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.base.Utf8;
+import com.google.common.hash.Hashing;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Stream;
 
 public class Transpiler {
 
@@ -21,41 +39,493 @@ public class Transpiler {
    */
   private Boolean nextChoicesWrap = null;
 
-  private final ImmutableList<String> fileLines;
+  /** Opens the 9l source as a lazily read stream of lines. */
+  private interface LineSource {
+    Stream<String> open() throws IOException;
+  }
+
+  private final LineSource source;
+
+  /** Whether {@link #source} can be opened more than once. */
+  private final boolean rereadable;
+
+  /** The name of the source file for {@link #stats}, or "" if it isn't one. */
+  private final String sourceName;
+
+  private NodeCache cache = NodeCache.NONE;
+
+  private StoryGraph.FileBuilder graph = null;
+
+  private Set<String> omittedNodes = ImmutableSet.of();
+
+  private CompileStats stats = CompileStats.NONE;
+
+  /** What {@link #stats} is being given of the transpile in progress, or null. */
+  private CompileStats.File measured = null;
+
+  /** The names of the runtime calls in the output. */
+  private record Calls(
+      String say, String sayWith, String sayHtml, String sayWithHtml, String choice,
+      String choiceHtml, String choose, String chooseWrap, String chooseNowrap, String img,
+      String visitCount) {}
+
+  private static final Calls GAME_CALLS = new Calls(
+      "game.say", "game.sayWith", "game.sayHtml", "game.sayWithHtml", "game.choice",
+      "game.choiceHtml", "game.choose", "game.chooseWrap", "game.chooseNowrap", "game.img",
+      "game.visitCount");
+
+  /** The short aliases exported by game.js for compact output. */
+  private static final Calls COMPACT_CALLS =
+      new Calls("$s", "$w", "$h", "$wh", "$c", "$ch", "$o", "$ow", "$on", "$i", "$v");
+
+  private boolean compact = false;
+
+  private boolean instrument = false;
 
-  private Transpiler(ImmutableList<String> fileLines) {
-    this.fileLines = fileLines;
+  private Calls calls = GAME_CALLS;
+
+  /** In compact output, the constants that repeated node ids are hoisted into. */
+  private ImmutableMap<String, String> idConstants = ImmutableMap.of();
+
+  /** What, beyond the source, the cached JavaScript of a node depends on. */
+  private String cacheVariant = "";
+
+  /**
+   * In compact output, what {@code game.scope} is known to hold at
+   * this point of the JavaScript, or null if user code may have
+   * changed it.
+   */
+  private String runtimeScope = null;
+
+  /**
+   * In compact output, the scope the source has set but that hasn't
+   * been assigned yet, because nothing has read it; or null.
+   */
+  private String pendingScope = null;
+
+  private Transpiler(LineSource source, boolean rereadable, String sourceName) {
+    this.source = source;
+    this.rereadable = rereadable;
+    this.sourceName = sourceName;
   }
 
-  public static Transpiler forFile(Path inFile) throws IOException {
-    return new Transpiler(ImmutableList.copyOf(Files.readAllLines(inFile, StandardCharsets.UTF_8)));
+  /** Returns a transpiler that reads {@code inFile} as it goes. */
+  public static Transpiler forFile(Path inFile) {
+    return new Transpiler(
+        () -> Files.lines(inFile, StandardCharsets.UTF_8), true, inFile.toString());
   }
 
   public static Transpiler forSource(String sourceString) {
-    return new Transpiler(ImmutableList.copyOf(sourceString.split("\\R")));
+    return new Transpiler(() -> Arrays.stream(sourceString.split("\\R")), true, "");
+  }
+
+  /**
+   * Returns a transpiler that reads {@code reader} as it goes. The
+   * reader is consumed and closed by the first call to transpile.
+   */
+  public static Transpiler forReader(Reader reader) {
+    BufferedReader buffered = new BufferedReader(reader);
+    return new Transpiler(() -> buffered.lines().onClose(() -> {
+      try {
+        buffered.close();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }), false, "");
+  }
+
+  /**
+   * Reuses the JavaScript of nodes found in {@code cache}, and stores
+   * the JavaScript of nodes that aren't there yet.
+   */
+  public Transpiler withCache(NodeCache cache) {
+    this.cache = cache;
+    return this;
+  }
+
+  /** Records the nodes, choices, links and images into {@code graph}. */
+  public Transpiler withGraph(StoryGraph.FileBuilder graph) {
+    this.graph = graph;
+    return this;
+  }
+
+  /**
+   * Leaves the nodes with these fully qualified ids out of the
+   * JavaScript. They are still transpiled, so errors in them are
+   * reported and any {@code !scope} in them still applies.
+   */
+  public Transpiler withOmittedNodes(Set<String> omittedNodes) {
+    this.omittedNodes = omittedNodes;
+    return this;
+  }
+
+  /**
+   * Records where the time of each transpile goes and the size of
+   * each node's JavaScript into {@code stats}.
+   */
+  public Transpiler withStats(CompileStats stats) {
+    this.stats = stats;
+    return this;
+  }
+
+  /**
+   * Makes the output smaller without changing what it does: no
+   * comments, node ids used more than once hoisted into constants,
+   * {@code game.scope} only assigned before something can read it,
+   * and the short aliases for runtime calls that game.js exports.
+   *
+   * <p>The source is read twice, so this doesn't work with {@link
+   * #forReader}.
+   */
+  public Transpiler withCompact(boolean compact) {
+    this.compact = compact;
+    this.calls = compact ? COMPACT_CALLS : GAME_CALLS;
+    return this;
+  }
+
+  /**
+   * Wraps the JavaScript of each node in {@code performance.mark} and
+   * {@code performance.measure} calls named {@code 9l:node <id>}, so
+   * the time each node takes shows up in the browser's performance
+   * timeline. The mark is cleared once measured, so marks don't pile
+   * up as nodes run.
+   */
+  public Transpiler withInstrument(boolean instrument) {
+    this.instrument = instrument;
+    return this;
   }
 
   public String transpile() {
-    ImmutableList.Builder<SourceLine> builder = ImmutableList.builder();
-    for (int i = 0; i < fileLines.size(); i++) {
-      SourceLine sourceLine = SourceLine.newInstance(fileLines.get(i), i + 1);
-      if (sourceLine.lineType() != LineType.COMMENT) {
-        builder.add(sourceLine);
+    StringWriter out = new StringWriter();
+    try {
+      transpile(out);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toString();
+  }
+
+  /**
+   * Writes the transpiled JavaScript to {@code out}.
+   *
+   * <p>Source lines are pulled from the input and transpiled one node
+   * at a time, and each node's JavaScript is written as soon as the
+   * next node header is read. Memory use is bounded by the largest
+   * node, not the size of the story.
+   */
+  public void transpile(Writer out) throws IOException {
+    transpile(out, null, null);
+  }
+
+  /**
+   * Writes the transpiled JavaScript split in two, so that the browser
+   * only loads what the player gets to. {@code out} gets the code
+   * before the first node, the {@link StoryGraph#START} node, and a
+   * manifest of the other nodes, which go to {@code lazyOut}. game.js
+   * imports {@code lazyUrl}, relative to itself, the first time one
+   * of those nodes is needed.
+   *
+   * <p>A node in {@code lazyOut} couldn't see what code before the
+   * first node declares, so a source with such code is all written
+   * to {@code out}.
+   *
+   * @param lazyOut where to write the other nodes, or null to write
+   *     everything to {@code out}
+   */
+  public void transpile(Writer out, Writer lazyOut, String lazyUrl) throws IOException {
+    if (!stats.isEnabled()) {
+      transpileSource(out, lazyOut, lazyUrl);
+      return;
+    }
+    measured = new CompileStats.File(sourceName);
+    long start = System.nanoTime();
+    try {
+      transpileSource(out, lazyOut, lazyUrl);
+      measured.setTotal(System.nanoTime() - start);
+      stats.record(measured);
+    } finally {
+      measured = null;
+    }
+  }
+
+  /** Computed afresh by each transpile, since the hoisted ids follow the source. */
+  private String cacheVariant() {
+    String variant = compact
+        ? "compact " + Hashing.sha256().hashString(idConstants.toString(), StandardCharsets.UTF_8)
+        : "";
+    return instrument ? variant + " instrument" : variant;
+  }
+
+  private void transpileSource(Writer out, Writer lazyOut, String lazyUrl) throws IOException {
+    // Each transpile starts from the top of the source.
+    scope = "g";
+    nextChoicesWrap = null;
+    runtimeScope = null;
+    pendingScope = null;
+    if (compact) {
+      if (!rereadable) {
+        throw new IllegalStateException(
+            "Compact output reads the source twice, not from a Reader.");
       }
+      idConstants = hoistedIds();
+    }
+    cacheVariant = cacheVariant();
+    writeHeader(out);
+    if (lazyOut != null) {
+      writeHeader(lazyOut);
     }
-    ImmutableList<SourceLine> sourceLines = builder.build();
+    List<String> lazyNodes = new ArrayList<>();
+    Map<String, List<String>> nodeImages = new LinkedHashMap<>();
+    boolean[] split = {lazyOut != null};
+    forEachChunk(chunk -> {
+      Writer chunkOut = out;
+      if (!chunk.isEmpty() && !chunk.getFirst().isType(LineType.NODE)
+          && chunk.stream().anyMatch(line -> line.isType(LineType.CODE))) {
+        split[0] = false;
+      }
+      if (!chunk.isEmpty() && chunk.getFirst().isType(LineType.NODE)) {
+        String id = resolveNodeId(chunk.getFirst().nodeId());
+        List<String> images = chunk.stream()
+            .filter(line -> line.isType(LineType.COMMAND) && line.commandName().equals("img"))
+            .map(SourceLine::body)
+            .toList();
+        if (!images.isEmpty() && !omittedNodes.contains(id)) {
+          nodeImages.put(id, images);
+        }
+      }
+      if (split[0] && !chunk.isEmpty() && chunk.getFirst().isType(LineType.NODE)) {
+        String id = resolveNodeId(chunk.getFirst().nodeId());
+        if (!id.equals(StoryGraph.START)) {
+          chunkOut = lazyOut;
+          if (!omittedNodes.contains(id)) {
+            lazyNodes.add(id);
+          }
+        }
+      }
+      transpileChunk(chunkOut, chunk);
+    });
+    // restore scope to global at end of file.
+    out.write(compact ? "game.scope=\"g\";\n" : "game.scope = \"g\";\n");
+    if (!lazyNodes.isEmpty()) {
+      out.write("game.addChunk(\"" + JsStrings.forDoubleQuoted(lazyUrl) + "\", [");
+      for (int i = 0; i < lazyNodes.size(); i++) {
+        out.write((i == 0 ? "" : compact ? "," : ", ") + idExpression(lazyNodes.get(i)));
+      }
+      out.write("]);\n");
+    }
+    if (!nodeImages.isEmpty()) {
+      // The !img urls of each node, for game.js to prefetch before
+      // the node is chosen.
+      out.write("game.addImages({");
+      String separator = "";
+      for (Map.Entry<String, List<String>> node : nodeImages.entrySet()) {
+        String id = idExpression(node.getKey());
+        out.write(separator + (id.startsWith("\"") ? id : "[" + id + "]") + (compact ? ":[" : ": ["));
+        for (int i = 0; i < node.getValue().size(); i++) {
+          out.write((i == 0 ? "" : compact ? "," : ", ")
+              + "\"" + JsStrings.forDoubleQuoted(node.getValue().get(i)) + "\"");
+        }
+        out.write("]");
+        separator = compact ? "," : ", ";
+      }
+      out.write("});\n");
+    }
+  }
+
+  private void writeHeader(Writer out) throws IOException {
+    if (!compact) {
+      out.write("import {game, back, visited, GameNode} from \"./game.js\";\n");
+      out.write("import {story} from \"./story.js\";\n");
+      return;
+    }
+    out.write("import {game, back, visited, GameNode, $n, $s, $w, $h, $wh, $c, $ch, $o, $ow, $on,"
+        + " $i, $v} from \"./game.js\";\n");
+    out.write("import {story} from \"./story.js\";\n");
+    if (!idConstants.isEmpty()) {
+      out.write("const ");
+      String separator = "";
+      for (Map.Entry<String, String> constant : idConstants.entrySet()) {
+        out.write(separator + constant.getValue() + "=\""
+            + JsStrings.forDoubleQuoted(constant.getKey()) + "\"");
+        separator = ",";
+      }
+      out.write(";\n");
+    }
+  }
+
+  /**
+   * Names the node ids that the compact output would be smaller with
+   * as constants, in the order they first appear.
+   */
+  private ImmutableMap<String, String> hoistedIds() throws IOException {
+    StoryGraph.FileBuilder file = new StoryGraph.FileBuilder("");
+    new Transpiler(source, true, sourceName).index(file);
+    StoryGraph graph = StoryGraph.of(ImmutableList.of(file));
+    Map<String, Integer> uses = new LinkedHashMap<>();
+    for (StoryGraph.Node node : graph.nodes()) {
+      if (!omittedNodes.contains(node.id())) {
+        uses.merge(node.id(), 1, Integer::sum);
+      }
+    }
+    for (StoryGraph.Edge edge : graph.edges()) {
+      if (omittedNodes.contains(edge.from())) {
+        continue;
+      }
+      if (edge.kind() == StoryGraph.EdgeKind.CHOICE) {
+        uses.merge(edge.to(), edge.visitLimit() == null ? 1 : 2, Integer::sum);
+      } else if (edge.kind() == StoryGraph.EdgeKind.LINK) {
+        // The ids game.js prefetches for inline links.
+        uses.merge(edge.to(), 1, Integer::sum);
+      }
+    }
+    ImmutableMap.Builder<String, String> constants = ImmutableMap.builder();
+    int next = 0;
+    for (Map.Entry<String, Integer> id : uses.entrySet()) {
+      String name = "$" + next;
+      int literal = JsStrings.forDoubleQuoted(id.getKey()).length() + 2;
+      // Only if the uses save more than the declaration, name="id", costs.
+      if (id.getValue() * (literal - name.length()) > name.length() + literal + 2) {
+        constants.put(id.getKey(), name);
+        next++;
+      }
+    }
+    return constants.buildOrThrow();
+  }
 
-    StringBuilder out = new StringBuilder();
+  /** Returns {@code id}, fully qualified, as a JavaScript expression. */
+  private String idExpression(String id) {
+    String constant = idConstants.get(id);
+    return constant != null ? constant : "\"" + JsStrings.forDoubleQuoted(id) + "\"";
+  }
 
-    out.append("import {game, back, visited, GameNode} from \"./game.js\";\n");
-    out.append("import {story} from \"./story.js\";\n");
+  /**
+   * Records the story graph without transpiling, which is much
+   * cheaper, e.g. to find the nodes to omit before transpiling.
+   */
+  public void index(StoryGraph.FileBuilder graph) throws IOException {
+    forEachChunk(chunk -> scope = graph.record(chunk, scope));
+  }
 
-    ImmutableList<SourceLine> restLines = sourceLines;
+  private interface ChunkHandler {
+    void handle(List<SourceLine> chunk) throws IOException;
+  }
+
+  /**
+   * Calls {@code handler} with the lines before the first node, then
+   * with each node's lines, skipping comments. The list is reused.
+   */
+  private void forEachChunk(ChunkHandler handler) throws IOException {
+    List<SourceLine> chunk = new ArrayList<>();
+    try (Stream<String> lines = source.open()) {
+      int lineNumber = 0;
+      Iterator<String> it = lines.iterator();
+      long time = now();
+      while (it.hasNext()) {
+        String line = it.next();
+        time = lap(CompileStats.Phase.READ, time);
+        SourceLine sourceLine = SourceLine.newInstance(line, ++lineNumber);
+        time = lap(CompileStats.Phase.CLASSIFY, time);
+        if (measured != null) {
+          measured.lines[sourceLine.lineType().ordinal()]++;
+        }
+        if (sourceLine.isType(LineType.COMMENT)) {
+          continue;
+        }
+        // A node ends where the next one begins, so everything
+        // collected so far can be transpiled independently.
+        if (sourceLine.isType(LineType.NODE) && !chunk.isEmpty()) {
+          handler.handle(chunk);
+          chunk.clear();
+          time = now();
+        }
+        chunk.add(sourceLine);
+      }
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    handler.handle(chunk);
+  }
+
+  private void transpileChunk(Writer out, List<SourceLine> chunk) throws IOException {
+    if (graph != null) {
+      graph.record(chunk, scope);
+    }
+    boolean isNode = !chunk.isEmpty() && chunk.getFirst().isType(LineType.NODE);
+    String id = isNode ? resolveNodeId(chunk.getFirst().nodeId()) : null;
+    if (isNode && omittedNodes.contains(id)) {
+      out = Writer.nullWriter();
+      isNode = false;
+    }
+    String key = null;
+    if (cache.isEnabled() && !chunk.isEmpty()) {
+      key = NodeCache.key(chunk, scope, nextChoicesWrap, cacheVariant);
+      Optional<NodeCache.Entry> cached = cache.get(key);
+      if (cached.isPresent()) {
+        scope = cached.get().scope();
+        nextChoicesWrap = cached.get().nextChoicesWrap();
+        write(out, cached.get().js(), isNode ? id : null, chunk);
+        return;
+      }
+    }
+
+    StringBuilder js = new StringBuilder();
+    ImmutableList<SourceLine> restLines = ImmutableList.copyOf(chunk);
+    // Nothing between chunks runs when the module is loaded, so a
+    // scope set at the top level is only needed within its chunk.
+    runtimeScope = null;
+    pendingScope = null;
     while (!restLines.isEmpty()) {
-      restLines = transpileTopLevel(out, restLines);
+      restLines = transpileTopLevel(js, restLines);
     }
-    out.append("game.scope = \"g\";\n"); // restore scope to global at end of file.
-    return out.toString();
+    if (key != null) {
+      cache.put(key, new NodeCache.Entry(js.toString(), scope, nextChoicesWrap));
+    }
+    write(out, js, isNode ? id : null, chunk);
+  }
+
+  /**
+   * Writes the JavaScript of a chunk, measuring the time it takes and,
+   * for a node with the fully qualified {@code id}, its size.
+   */
+  private void write(Writer out, CharSequence js, String id, List<SourceLine> chunk)
+      throws IOException {
+    long start = now();
+    out.append(js);
+    lap(CompileStats.Phase.WRITE, start);
+    if (measured != null && id != null) {
+      measured.nodes.add(
+          new CompileStats.Node(id, chunk.getFirst().lineNumber(), Utf8.encodedLength(js)));
+    }
+  }
+
+  /** The time now, for {@link #lap}; 0 if nothing is being measured. */
+  private long now() {
+    return measured == null ? 0 : System.nanoTime();
+  }
+
+  /** Adds the time since {@code start} to {@code phase} and returns the time now. */
+  private long lap(CompileStats.Phase phase, long start) {
+    if (measured == null) {
+      return 0;
+    }
+    long now = System.nanoTime();
+    measured.add(phase, now - start);
+    return now;
+  }
+
+  /** Returns {@code text} prepared for a template literal, see {@link JsStrings}. */
+  private String templateLiteral(String text) {
+    long start = now();
+    String literal = JsStrings.forTemplateLiteral(text);
+    lap(CompileStats.Phase.ESCAPE, start);
+    return literal;
+  }
+
+  /** Appends {@code text} prepared for a template literal, see {@link JsStrings}. */
+  private void appendTemplateLiteral(StringBuilder out, CharSequence text) {
+    long start = now();
+    JsStrings.appendTemplateLiteral(out, text);
+    lap(CompileStats.Phase.ESCAPE, start);
   }
 
   public ImmutableList<SourceLine> transpileTopLevel(
@@ -105,11 +575,18 @@ public class Transpiler {
       StringBuilder out, ImmutableList<SourceLine> sourceLines) {
     SourceLine nodeLine = sourceLines.getFirst();
     ImmutableList<SourceLine> rest = sourceLines.subList(1, sourceLines.size());
+    if (compact) {
+      return transpileCompactNode(out, sourceLines);
+    }
     String id = JsStrings.forDoubleQuoted(parseNodeId(nodeLine));
 
     out.append(String.format("\n/* %s */\n", nodeLine.line()));
     out.append(String.format("game.gameNodes[\"%s\"] =\n", id));
     out.append(String.format("new GameNode(\"%s\").setExecFn(function(game, choice) {\n", id));
+    String mark = instrument ? "\"9l:node " + id + "\"" : null;
+    if (instrument) {
+      out.append(String.format("performance.mark(%s);\ntry {\n", mark));
+    }
     out.append(String.format("game.player.location = \"%s\";\n", id));
     out.append(String.format("game.scope = \"%s\";\n", JsStrings.forDoubleQuoted(scope)));
 
@@ -120,63 +597,132 @@ public class Transpiler {
       rest = transpileInNode(out, rest);
     }
     out.append("game.scope = \"g\";\n");
+    if (instrument) {
+      out.append(String.format(
+          "} finally {\nperformance.measure(%s, %s);\nperformance.clearMarks(%s);\n}\n",
+          mark, mark, mark));
+    }
+    out.append("});\n");
+
+    return rest;
+  }
+
+  private ImmutableList<SourceLine> transpileCompactNode(
+      StringBuilder out, ImmutableList<SourceLine> sourceLines) {
+    SourceLine nodeLine = sourceLines.getFirst();
+    ImmutableList<SourceLine> rest = sourceLines.subList(1, sourceLines.size());
+
+    // $n sets game.player.location.
+    String id = parseNodeId(nodeLine);
+    out.append("$n(").append(idExpression(id)).append(",function(game,choice){\n");
+    String mark = instrument ? "\"9l:node " + JsStrings.forDoubleQuoted(id) + "\"" : null;
+    if (instrument) {
+      out.append("performance.mark(").append(mark).append(");try{\n");
+    }
+    // The caller may have left any scope.
+    runtimeScope = null;
+    pendingScope = scope;
+
+    nextChoicesWrap = null;
+
+    while (!rest.isEmpty()
+           && !rest.getFirst().lineType().equals(LineType.NODE)) {
+      rest = transpileInNode(out, rest);
+    }
+    pendingScope = "g";
+    settleScope(out);
+    if (instrument) {
+      out.append("}finally{performance.measure(").append(mark).append(",").append(mark)
+          .append(");performance.clearMarks(").append(mark).append(")}\n");
+    }
     out.append("});\n");
 
     return rest;
   }
 
+  /**
+   * In compact output, assigns the scope the source set if {@code
+   * game.scope} may not hold it already. Called before anything that
+   * reads the scope; see {@link #beforeRuntimeRead} and {@link
+   * #beforeUserCode}.
+   */
+  private void settleScope(StringBuilder out) {
+    if (pendingScope != null && !pendingScope.equals(runtimeScope)) {
+      out.append("game.scope=\"").append(JsStrings.forDoubleQuoted(pendingScope)).append("\";\n");
+      runtimeScope = pendingScope;
+    }
+    pendingScope = null;
+  }
+
+  /**
+   * Settles the scope if {@code text} has interpolations, which are
+   * user code. That covers text whose inline links game.js resolves
+   * against {@code game.scope}, since only text with an interpolation
+   * is rendered there; see {@link #appendHtml}.
+   */
+  private void beforeRuntimeRead(StringBuilder out, CharSequence text) {
+    if (!compact) {
+      return;
+    }
+    if (text.toString().contains("${")) {
+      beforeUserCode(out);
+    }
+  }
+
+  /** Settles the scope before user code, which may also change it. */
+  private void beforeUserCode(StringBuilder out) {
+    if (!compact) {
+      return;
+    }
+    settleScope(out);
+    runtimeScope = null;
+  }
+
   private String parseNodeId(SourceLine nodeLine) {
-    String line = nodeLine.line();
-    int secondEquals = line.indexOf('=', 1);
-    if (!nodeLine.isType(LineType.NODE) || !line.startsWith("=") || secondEquals == -1) {
+    if (!nodeLine.isType(LineType.NODE)) {
       throw nodeLine.bug("Expected node line of the form =id=.");
     }
-    return resolveNodeId(line.substring(1, secondEquals));
+    return resolveNodeId(nodeLine.nodeId());
   }
 
   private ImmutableList<SourceLine> transpileChoice(
       StringBuilder out, ImmutableList<SourceLine> sourceLines) {
-    String methodName = "choose";
+    String methodName = calls.choose();
     if (nextChoicesWrap != null) {
-      methodName = nextChoicesWrap ? "chooseWrap" : "chooseNowrap";
+      methodName = nextChoicesWrap ? calls.chooseWrap() : calls.chooseNowrap();
       nextChoicesWrap = null;
     }
-    out.append("game.").append(methodName).append("(");
+    StringBuilder choices = new StringBuilder();
+    choices.append(methodName).append("(");
     int len = sourceLines.size();
-    for (int i = 0; i < len; i++) {
+    int i = 0;
+    for (; i < len; i++) {
       SourceLine sourceLine = sourceLines.get(i);
 
       if (!sourceLine.isType(LineType.CHOICE)) {
-        out.append(");\n");
-        return sourceLines.subList(i, sourceLines.size());
+        break;
       }
 
       boolean isLast = i == len - 1 || !sourceLines.get(i + 1).isType(LineType.CHOICE);
-      out.append("\n").append(renderChoice(sourceLine, isLast));
+      choices.append("\n").append(renderChoice(out, sourceLine, isLast));
     }
 
-    out.append(");\n");
-    return ImmutableList.of();
+    choices.append(");\n");
+    out.append(choices);
+    return sourceLines.subList(i, sourceLines.size());
   }
 
-  private String renderChoice(SourceLine sourceLine, boolean isLast) {
+  /**
+   * Renders one choice of a block. {@code out} is where the block
+   * will go, for anything that must come before it.
+   */
+  private String renderChoice(StringBuilder out, SourceLine sourceLine, boolean isLast) {
     // Format:
     //  >some-node-id go there
     //  >some-node-id ? isThisTrue(foo); "go there"
-    String line = sourceLine.line();
-    int spacePos = line.indexOf(' ');
-    int idEnd = spacePos == -1 ? line.length() : spacePos;
-    String rawId = line.substring(1, idEnd);
-    
-    String visitLimit = null;
-    int slashPos = rawId.lastIndexOf('/');
-    if (slashPos != -1) {
-      visitLimit = rawId.substring(slashPos + 1);
-      rawId = rawId.substring(0, slashPos);
-    }
-
-    String nodeId = JsStrings.forDoubleQuoted(resolveNodeId(rawId));
-    String rest = line.substring(idEnd).trim();
+    String visitLimit = sourceLine.visitLimit();
+    String nodeId = idExpression(resolveNodeId(sourceLine.choiceTarget()));
+    String rest = sourceLine.body();
     String comma = isLast ? "" : ",";
 
     String condition = null;
@@ -211,27 +757,35 @@ public class Transpiler {
         }
       }
 
+      StringBuilder html = new StringBuilder();
+      boolean isHtml = appendHtml(html, choiceText, new ArrayList<>());
       String choiceExpr;
       if (choiceData != null) {
-        choiceExpr = String.format("game.choice(\"%s\", `%s`, %s)",
+        beforeUserCode(out);
+        choiceExpr = String.format("%s(%s, `%s`, %s)",
+                             isHtml ? calls.choiceHtml() : calls.choice(),
                              nodeId,
-                             JsStrings.forTemplateLiteral(choiceText),
+                             isHtml ? html : templateLiteral(choiceText),
                              choiceData);
       } else {
-        choiceExpr = String.format("game.choice(\"%s\", `%s`)",
+        beforeRuntimeRead(out, choiceText);
+        choiceExpr = String.format("%s(%s, `%s`)",
+                             isHtml ? calls.choiceHtml() : calls.choice(),
                              nodeId,
-                             JsStrings.forTemplateLiteral(choiceText));
+                             isHtml ? html : templateLiteral(choiceText));
       }
 
       if (visitLimit != null) {
-          return String.format("(game.visitCount(\"%s\") < %s) ? %s : false%s",
-                  nodeId, visitLimit, choiceExpr, comma);
+          return String.format("(%s(%s) < %s) ? %s : false%s",
+                  calls.visitCount(), nodeId, visitLimit, choiceExpr, comma);
       }
       return choiceExpr + comma;
     }
 
+    beforeUserCode(out);
     if (visitLimit != null) {
-        condition = String.format("game.visitCount(\"%s\") < %s && %s", nodeId, visitLimit, condition);
+        condition = String.format(
+            "%s(%s) < %s && %s", calls.visitCount(), nodeId, visitLimit, condition);
     }
 
     String choiceData = null;
@@ -248,16 +802,18 @@ public class Transpiler {
     // so the user can put js expressions there.
     if (choiceData != null) {
       return String.format(
-          "(%s) ? game.choice(\"%s\", %s, %s) : false%s",
+          "(%s) ? %s(%s, %s, %s) : false%s",
           condition,
+          calls.choice(),
           nodeId,
           txt,
           choiceData,
           comma);
     } else {
       return String.format(
-          "(%s) ? game.choice(\"%s\", %s) : false%s",
+          "(%s) ? %s(%s, %s) : false%s",
           condition,
+          calls.choice(),
           nodeId,
           txt,
           comma);
@@ -266,6 +822,7 @@ public class Transpiler {
 
   private ImmutableList<SourceLine> transpileCode(
       StringBuilder out, ImmutableList<SourceLine> sourceLines) {
+    beforeUserCode(out);
     for (int i = 0; i < sourceLines.size(); i++) {
       SourceLine sourceLine = sourceLines.get(i);
       if (!sourceLine.lineType().equals(LineType.CODE)) {
@@ -286,12 +843,17 @@ public class Transpiler {
 
   private ImmutableList<SourceLine> transpileCommand(
       StringBuilder out, ImmutableList<SourceLine> sourceLines, int level) {
-    String line = sourceLines.getFirst().line();
-    Cmd cmd = parseCmd(line);
+    SourceLine sourceLine = sourceLines.getFirst();
+    Cmd cmd = new Cmd(sourceLine.commandName(), sourceLine.body());
 
     if (cmd.name.equals("img")) {
-      String fmt = "game.img(\"%s\");\n";
-      out.append(String.format(fmt, JsStrings.forDoubleQuoted(cmd.body)));
+      String fmt = "%s(\"%s\");\n";
+      out.append(String.format(fmt, calls.img(), JsStrings.forDoubleQuoted(cmd.body)));
+      return sourceLines.subList(1, sourceLines.size());
+    }
+
+    if (cmd.name.equals("keep")) {
+      // Only read by StoryGraph: the node is reached from JavaScript.
       return sourceLines.subList(1, sourceLines.size());
     }
 
@@ -307,58 +869,126 @@ public class Transpiler {
 
     if (cmd.name.equals("scope")) {
       scope = cmd.body;
+      if (compact) {
+        pendingScope = cmd.body;
+        return sourceLines.subList(1, sourceLines.size());
+      }
       String fmt = "game.scope = \"%s\";\n";
       out.append(String.format(fmt, cmd.body));
       return sourceLines.subList(1, sourceLines.size());
     }
 
-    String fmt = "game.sayWith(\"%s\", `%s`);\n";
-    out.append(String.format(fmt,
-        JsStrings.forDoubleQuoted(cmd.name), JsStrings.forTemplateLiteral(cmd.body)));
+    StringBuilder html = new StringBuilder();
+    List<String> linkTargets = new ArrayList<>();
+    beforeRuntimeRead(out, cmd.body);
+    if (appendHtml(html, cmd.body, linkTargets)) {
+      out.append(calls.sayWithHtml()).append("(\"").append(JsStrings.forDoubleQuoted(cmd.name))
+          .append("\", `").append(html).append("`");
+      appendLinkTargets(out, linkTargets);
+      out.append(");\n");
+      return sourceLines.subList(1, sourceLines.size());
+    }
+    out.append(calls.sayWith()).append("(\"").append(JsStrings.forDoubleQuoted(cmd.name))
+        .append("\", `");
+    appendTemplateLiteral(out, cmd.body);
+    out.append("`);\n");
     return sourceLines.subList(1, sourceLines.size());
   }
 
-  private static Cmd parseCmd(String line) {
-    int len = line.length();
-    int cmdEnd = line.indexOf(' ');
-    String name = cmdEnd == -1
-        ? line.substring(1, len)
-        : line.substring(1, cmdEnd);
-    String body = cmdEnd == -1
-        ? ""
-        : line.substring(cmdEnd, len).trim();
-    return new Cmd(name, body);
-  }
-
   private ImmutableList<SourceLine> transpileText(
       StringBuilder out, ImmutableList<SourceLine> sourceLines) {
-    int j = firstNonEmpty(sourceLines);
+    // Paragraphs in a row are said with one call, one DOM write.
+    StringBuilder html = new StringBuilder();
+    List<String> linkTargets = new ArrayList<>();
+    ImmutableList<SourceLine> rest = sourceLines;
+    while (true) {
+      int j = firstNonEmpty(rest);
+      if (j == rest.size() || !rest.get(j).isType(LineType.TEXT)) {
+        rest = rest.subList(j, rest.size());
+        break;
+      }
 
-    if (j == sourceLines.size() || !sourceLines.get(j).isType(LineType.TEXT)) {
-      // Nothing to say.
-      return sourceLines.subList(j, sourceLines.size());
-    }
+      StringBuilder textContent = new StringBuilder();
+      int i = j;
+      for (; i < rest.size(); i++) {
+        SourceLine line = rest.get(i);
 
-    StringBuilder textContent = new StringBuilder();
-    int i = j;
-    for (; i < sourceLines.size(); i++) {
-      SourceLine line = sourceLines.get(i);
+        if (!line.isType(LineType.TEXT) || line.isEmpty()) {
+          break;
+        }
 
-      if (!line.isType(LineType.TEXT) || line.isEmpty()) {
-        break;
+        if (i != j) {
+          textContent.append("\n");
+        }
+        textContent.append(line.line());
       }
+      rest = rest.subList(i, rest.size());
 
-      if (i != j) {
-        textContent.append("\n");
+      beforeRuntimeRead(out, textContent);
+      int start = html.length();
+      html.append("<p>");
+      if (appendHtml(html, textContent, linkTargets)) {
+        html.append("</p>");
+        continue;
       }
-      textContent.append(line.line());
+      html.setLength(start);
+      writeSayHtml(out, html, linkTargets);
+      out.append(calls.say()).append("(`");
+      appendTemplateLiteral(out, textContent);
+      out.append("`);\n");
     }
+    writeSayHtml(out, html, linkTargets);
+    return rest;
+  }
 
-    out.append("game.say(`");
-    out.append(JsStrings.forTemplateLiteral(textContent.toString()));
-    out.append("`);\n");
+  /**
+   * Appends {@code text} as the content of a template literal of
+   * HTML, with its markdown and inline links rendered, and adds the
+   * targets of the links to {@code linkTargets}.
+   *
+   * @return false, having appended nothing, if the text has to be
+   *     rendered at runtime because it has an interpolation, whose
+   *     value may have markdown or an inline link of its own
+   */
+  private boolean appendHtml(StringBuilder html, CharSequence text, List<String> linkTargets) {
+    if (text.toString().contains("${")) {
+      return false;
+    }
+    int start = html.length();
+    int targets = linkTargets.size();
+    long time = now();
+    JsStrings.appendHtml(html, text, scope, linkTargets);
+    lap(CompileStats.Phase.ESCAPE, time);
+    if (html.indexOf("](>", start) == -1) {
+      return true;
+    }
+    html.setLength(start);
+    linkTargets.subList(targets, linkTargets.size()).clear();
+    return false;
+  }
 
-    return sourceLines.subList(i, sourceLines.size());
+  /** Says and clears the paragraphs in {@code html}, if any. */
+  private void writeSayHtml(StringBuilder out, StringBuilder html, List<String> linkTargets) {
+    if (html.isEmpty()) {
+      return;
+    }
+    out.append(calls.sayHtml()).append("(`").append(html).append("`");
+    appendLinkTargets(out, linkTargets);
+    out.append(");\n");
+    html.setLength(0);
+    linkTargets.clear();
+  }
+
+  /** Appends the ids of inline link targets, for game.js to prefetch, as a last argument. */
+  private void appendLinkTargets(StringBuilder out, List<String> linkTargets) {
+    if (linkTargets.isEmpty()) {
+      return;
+    }
+    out.append(compact ? ",[" : ", [");
+    for (int i = 0; i < linkTargets.size(); i++) {
+      out.append(i == 0 ? "" : compact ? "," : ", ").append(idExpression(linkTargets.get(i)));
+    }
+    out.append("]");
   }
 
   private static int firstNonEmpty(ImmutableList<SourceLine> sourceLines) {
@@ -379,6 +1009,11 @@ public class Transpiler {
    * Game.gameNodes JavaScript object.
    */
   public String resolveNodeId(String id) {
+    return resolveNodeId(id, scope);
+  }
+
+  /** Returns {@code id} in fully qualified form, as used in {@code scope}. */
+  static String resolveNodeId(String id, String scope) {
     int sep = id.indexOf(':');
     if (sep != -1) {
       // already fully qualified.
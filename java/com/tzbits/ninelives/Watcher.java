@@ -0,0 +1,146 @@
+package com.tzbits.ninelives;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multimaps;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches files in one long-lived JVM and reacts as they change.
+ *
+ * <p>Events are debounced, since editors often save a file in several
+ * steps (write, rename, touch), so each save is handled once.
+ */
+public final class Watcher {
+
+  /** How long the files must be quiet before the handler is called. */
+  static final Duration DEBOUNCE = Duration.ofMillis(50);
+
+  /** Called with the files that changed, once they are quiet. */
+  public interface ChangeHandler {
+    void changed(ImmutableSet<Path> files);
+  }
+
+  /** Told about each round of transpiling. */
+  public interface Listener {
+    void transpiled(
+        ImmutableList<BatchTranspiler.Job> jobs,
+        ImmutableList<BatchTranspiler.Failure> failures,
+        Duration elapsed);
+  }
+
+  private final ImmutableSet<Path> files;
+  private final ChangeHandler handler;
+
+  /**
+   * Returns a watcher for {@code files}. Each path is made absolute,
+   * and the handler is given paths in that form.
+   */
+  public Watcher(Collection<Path> files, ChangeHandler handler) {
+    ImmutableSet.Builder<Path> canonical = ImmutableSet.builder();
+    for (Path file : files) {
+      canonical.add(canonical(file));
+    }
+    this.files = canonical.build();
+    this.handler = handler;
+  }
+
+  /**
+   * Returns a watcher that retranspiles only the jobs whose input
+   * changed. Outputs are written atomically by {@link
+   * BatchTranspiler}, so anything serving them never sees a partial
+   * file.
+   *
+   * @param options how to transpile; its graphs must be null, since
+   *     only some of the jobs are run each time
+   */
+  public static Watcher transpiling(
+      List<BatchTranspiler.Job> jobs, int parallelism, BatchTranspiler.Options options,
+      Listener listener) {
+    ImmutableListMultimap<Path, BatchTranspiler.Job> jobsByInput =
+        Multimaps.index(jobs, job -> canonical(job.in()));
+    return new Watcher(jobsByInput.keySet(), changed -> {
+      ImmutableList.Builder<BatchTranspiler.Job> toTranspile = ImmutableList.builder();
+      for (Path file : changed) {
+        toTranspile.addAll(jobsByInput.get(file));
+      }
+      transpile(toTranspile.build(), parallelism, options, listener);
+    });
+  }
+
+  /** Transpiles {@code jobs} and tells the listener how it went. */
+  static void transpile(
+      ImmutableList<BatchTranspiler.Job> jobs, int parallelism, BatchTranspiler.Options options,
+      Listener listener) {
+    long start = System.nanoTime();
+    ImmutableList<BatchTranspiler.Failure> failures =
+        BatchTranspiler.run(jobs, parallelism, options);
+    listener.transpiled(jobs, failures, Duration.ofNanos(System.nanoTime() - start));
+  }
+
+  /** Watches the files until the thread is interrupted. */
+  public void run() throws IOException, InterruptedException {
+    try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+      for (Path dir : directories()) {
+        // Editors that save by renaming a temporary file over the
+        // original only create it, never modify it.
+        dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+      }
+      while (true) {
+        Set<Path> changed = new LinkedHashSet<>();
+        collect(watchService.take(), changed);
+        WatchKey key;
+        while ((key = watchService.poll(DEBOUNCE.toMillis(), TimeUnit.MILLISECONDS)) != null) {
+          collect(key, changed);
+        }
+        if (!changed.isEmpty()) {
+          handler.changed(ImmutableSet.copyOf(changed));
+        }
+      }
+    }
+  }
+
+  private Set<Path> directories() {
+    Set<Path> dirs = new LinkedHashSet<>();
+    for (Path file : files) {
+      dirs.add(file.getParent());
+    }
+    return dirs;
+  }
+
+  private void collect(WatchKey key, Set<Path> changed) {
+    Path dir = (Path) key.watchable();
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == OVERFLOW) {
+        // Events were lost, so any file might have changed.
+        changed.addAll(files);
+        continue;
+      }
+      Path file = dir.resolve((Path) event.context());
+      if (files.contains(file)) {
+        changed.add(file);
+      }
+    }
+    key.reset();
+  }
+
+  private static Path canonical(Path path) {
+    return path.toAbsolutePath().normalize();
+  }
+}
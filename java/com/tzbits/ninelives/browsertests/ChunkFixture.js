@@ -0,0 +1,10 @@
+// A chunk of nodes as written by NineLives --chunked, for TestChunkLoading.js.
+import {game, GameNode} from "/java/com/tzbits/ninelives/data/game.js";
+
+game.gameNodes["=g:lazy1="] = new GameNode("=g:lazy1=").setExecFn(function (game, choice) {
+  game.say("Lazy 1");
+  game.state.lazy1 = true;
+});
+game.gameNodes["=g:lazy2="] = new GameNode("=g:lazy2=").setExecFn(function (game, choice) {
+  game.say("Lazy 2");
+});
@@ -0,0 +1,49 @@
+import {assert, logToScreen} from "/browsertests/TestUtil.js";
+import {game} from "/java/com/tzbits/ninelives/data/game.js";
+
+logToScreen("Starting Chunk Loading Test");
+
+// Mocking some game elements for headless test
+if (!document.getElementById('story')) {
+    const storyDiv = document.createElement('div');
+    storyDiv.id = 'story';
+    document.body.appendChild(storyDiv);
+}
+
+// Initialize the game view's story reference if it's null
+if (!game.gameView.story) {
+    game.gameView.story = document.getElementById('story');
+}
+
+game.config.gameName = "ChunkTest";
+localStorage.clear();
+
+game.gameNodes['=g:0='] = {
+    exec: (g) => {
+        g.say("Start node");
+    }
+};
+// Relative to game.js.
+const url = "../browsertests/ChunkFixture.js";
+game.addChunk(url, ['=g:lazy1=', '=g:lazy2=']);
+
+logToScreen("Checking nodes in a chunk that isn't loaded...");
+assert(!('=g:lazy1=' in game.gameNodes), "The chunk should not be loaded yet");
+assert(game.visitCount('=g:lazy1=') === 0, "An unloaded node should count as not visited");
+
+game.startNew();
+assert(game.currentNode() === '=g:0=', "Loaded nodes should be stepped into right away");
+
+logToScreen("Stepping into a node in the chunk...");
+const stepped = game.step(game.choice('=g:lazy1=', 'Go'));
+assert(stepped instanceof Promise, "Stepping into an unloaded node should wait for its chunk");
+assert(game.currentNode() === '=g:0=', "Nothing should happen before the chunk loads");
+await stepped;
+assert(game.currentNode() === '=g:lazy1=', "Should be at =g:lazy1= once loaded, but was at " + game.currentNode());
+assert(game.state.lazy1 === true, "The node should have run");
+
+logToScreen("Stepping into another node of the loaded chunk...");
+assert(game.step(game.choice('=g:lazy2=', 'Go')) === undefined, "A loaded node should be stepped into right away");
+assert(game.currentNode() === '=g:lazy2=', "Should be at =g:lazy2=");
+
+logToScreen("Chunk Loading Test PASSED!");
@@ -0,0 +1,64 @@
+import {assert, logToScreen} from "/browsertests/TestUtil.js";
+import {game} from "/java/com/tzbits/ninelives/data/game.js";
+
+logToScreen("Starting Delegated Clicks Test");
+
+if (!document.getElementById('story')) {
+    const storyDiv = document.createElement('div');
+    storyDiv.id = 'story';
+    document.body.appendChild(storyDiv);
+}
+
+if (!game.gameView.story) {
+    game.gameView.story = document.getElementById('story');
+}
+
+game.gameNodes['=g:0='] = {
+    exec: (g) => {
+        for (let i = 0; i < 50; i++) {
+            g.say(`Paragraph ${i} with **bold** text.`);
+        }
+        g.say("Or go [next door](>next).");
+        g.choose(g.choice('=next=', 'Next'), g.choice('=0=', 'Stay'));
+    }
+};
+game.gameNodes['=g:next='] = {
+    exec: (g) => {
+        g.state.went = (g.state.went || 0) + 1;
+        g.say("Next");
+        g.choose(g.choice('=0=', 'Back'));
+    }
+};
+
+game.config.gameName = "DelegatedClicksTest";
+localStorage.clear();
+game.reset();
+game.startNew();
+
+const story = game.gameView.story;
+assert(story.querySelectorAll('p').length === 51, "Every paragraph should be shown");
+assert(story.querySelector('b') !== null, "Markdown should be rendered");
+assert(story.querySelector('[onclick]') === null, "Nothing should have its own onclick");
+
+logToScreen("Clicking a choice...");
+const next = Array.from(story.querySelectorAll('[data-choice]')).find((elt) => elt.textContent === 'Next');
+assert(next, "The choices should be shown");
+next.click();
+assert(game.nodeHistory.at(-1).nodeId === '=g:next=', "Clicking a choice should step into its node");
+assert(game.state.went === 1, "One click should step once, but went is " + game.state.went);
+assert(story.textContent.includes("Next"), "The next node should be shown");
+
+logToScreen("Clicking an inline link...");
+story.querySelector('[data-choice]').click();
+const link = story.querySelector('.inline-link');
+assert(link && link.dataset.node === '=g:next=', "The inline link should name its node");
+link.click();
+assert(game.nodeHistory.at(-1).nodeId === '=g:next=', "Clicking a link should step into its node");
+assert(game.nodeHistory.at(-1).txt === 'next door', "The choice should get the link text");
+assert(game.state.went === 2, "One click should step once, but went is " + game.state.went);
+
+logToScreen("Saying after the node is shown...");
+game.say("Later");
+assert(game.gameView.storyElt.textContent.endsWith("Later"), "Text said later should go straight in");
+
+logToScreen("Delegated Clicks Test PASSED!");
@@ -0,0 +1,87 @@
+import {assert, logToScreen} from "/browsertests/TestUtil.js";
+import {game} from "/java/com/tzbits/ninelives/data/game.js";
+
+logToScreen("Starting Headless Replay Test");
+
+// Mocking some game elements for headless test
+if (!document.getElementById('story')) {
+    const storyDiv = document.createElement('div');
+    storyDiv.id = 'story';
+    document.body.appendChild(storyDiv);
+}
+
+// Initialize the game view's story reference if it's null
+if (!game.gameView.story) {
+    game.gameView.story = document.getElementById('story');
+}
+
+game.gameNodes['=g:0='] = {
+    exec: (g) => {
+        g.img("start.png");
+        g.say("Start");
+        g.choose(g.choice('=tick=', 'Tick'));
+    }
+};
+game.gameNodes['=g:tick='] = {
+    exec: (g) => {
+        g.state.ticks = (g.state.ticks || 0) + 1;
+        g.say(`Tick ${g.state.ticks}`);
+        g.choose(g.choice('=tick=', 'Tick'));
+    }
+};
+
+game.config.gameName = "HeadlessReplayTest";
+localStorage.clear();
+
+// Counts what reaches the real view.
+const calls = {startStoryElt: 0, showStoryElt: 0, sayHtml: 0, displayChoices: 0};
+const images = [];
+const view = game.gameView;
+for (const name in calls) {
+    const original = view[name].bind(view);
+    view[name] = (...args) => {
+        calls[name]++;
+        return original(...args);
+    };
+}
+view.img = (url) => images.push(url);
+function resetCalls() {
+    for (const name in calls) {
+        calls[name] = 0;
+    }
+    images.length = 0;
+}
+
+game.startNew();
+for (let i = 0; i < 2000; i++) {
+    game.step(game.choice('=tick=', 'Tick'));
+}
+const expectedState = JSON.stringify(game.state);
+
+logToScreen("Restoring 2000 choices...");
+game.reset();
+resetCalls();
+const start = performance.now();
+assert(game.restoreFromStorage(), "There should be a session to restore");
+logToScreen(`Restored in ${Math.round(performance.now() - start)} ms`);
+assert(JSON.stringify(game.state) === expectedState, "Restoring should end in the same state");
+assert(game.gameView === view, "The real view should be back after replaying");
+assert(calls.startStoryElt === 1 && calls.showStoryElt === 1,
+    `Only the last node should be rendered, but got ${JSON.stringify(calls)}`);
+// Its paragraph and its choices.
+assert(calls.sayHtml === 2 && calls.displayChoices === 1,
+    `Only the last node should say anything, but got ${JSON.stringify(calls)}`);
+assert(view.storyElt.innerHTML.includes("Tick 2000"), "The last node should be on screen");
+assert(images.length === 1 && images[0] === "start.png",
+    "The banner an earlier node set should be shown, but got " + JSON.stringify(images));
+
+logToScreen("Running nodes...");
+game.reset();
+resetCalls();
+game.runNodes([game.choice('=0=', ''), game.choice('=tick=', 'Tick'), game.choice('=tick=', 'Tick')]);
+assert(game.state.ticks === 2, "runNodes should step through every node, but ticks is " + game.state.ticks);
+assert(calls.startStoryElt === 1 && calls.sayHtml === 2,
+    `runNodes should only render the last node, but got ${JSON.stringify(calls)}`);
+assert(game.nodeHistory.length === 3, "runNodes should add every node to the history");
+
+logToScreen("Headless Replay Test PASSED!");
@@ -0,0 +1,76 @@
+import {assert, logToScreen} from "/browsertests/TestUtil.js";
+import {game} from "/java/com/tzbits/ninelives/data/game.js";
+
+logToScreen("Starting Image Prefetch Test");
+
+// Mocking some game elements for headless test
+if (!document.getElementById('story')) {
+    const storyDiv = document.createElement('div');
+    storyDiv.id = 'story';
+    document.body.appendChild(storyDiv);
+}
+
+// Initialize the game view's story reference if it's null
+if (!game.gameView.story) {
+    game.gameView.story = document.getElementById('story');
+}
+
+// Images that decode when the test says so.
+const images = [];
+window.Image = class {
+    src = '';
+    decode() {
+        return new Promise((resolve, reject) => {
+            this.resolve = resolve;
+            this.reject = reject;
+            images.push(this);
+        });
+    }
+};
+const srcs = () => images.map((image) => image.src);
+const settle = () => new Promise((resolve) => setTimeout(resolve, 0));
+
+game.gameNodes['=g:0='] = {
+    exec: (g) => {
+        g.choose(g.choice('=a=', 'A'), g.choice('=b=', 'B'), g.choice('=c=', 'C'));
+    }
+};
+for (const id of ['a', 'b', 'c', 'd']) {
+    game.gameNodes[`=g:${id}=`] = {
+        exec: (g) => {
+            g.img(`${id}.png`);
+            g.choose(g.choice('=d=', 'D'));
+        }
+    };
+}
+game.addImages({'=g:a=': ['a.png'], '=g:b=': ['b.png'], '=g:c=': ['c.png'], '=g:d=': ['d.png']});
+game.config.gameName = "ImagePrefetchTest";
+game.config.imagePrefetchLimit = 2;
+game.config.imageCacheSize = 2;
+localStorage.clear();
+
+logToScreen("Prefetching the images the choices lead to...");
+game.startNew();
+await settle();
+assert(srcs().join() === 'a.png,b.png', "Only two should load at once, but loading " + srcs().join());
+
+images[0].resolve();
+await settle();
+assert(srcs().join() === 'a.png,b.png,c.png', "The next should load once one is done, but loaded " + srcs().join());
+assert(game.imagePrefetcher.decoded.has('a.png'), "a.png should be kept decoded");
+
+logToScreen("Keeping only the most recently used...");
+images[1].resolve();
+images[2].resolve();
+await settle();
+assert([...game.imagePrefetcher.decoded.keys()].join() === 'b.png,c.png', "a.png should be evicted");
+
+logToScreen("Moving on forgets what was waiting...");
+game.imagePrefetcher.queue = ['stale.png'];
+game.step(game.choice('=b=', 'B'));
+await settle();
+assert(!srcs().includes('stale.png'), "What the last node led to shouldn't load");
+assert(srcs().at(-1) === 'd.png', "What the new node leads to should load");
+assert([...game.imagePrefetcher.decoded.keys()].at(-1) === 'b.png', "Showing b.png should keep it longest");
+
+logToScreen("Image Prefetch Test PASSED!");
@@ -0,0 +1,81 @@
+import {assert, logToScreen} from "/browsertests/TestUtil.js";
+import {game} from "/java/com/tzbits/ninelives/data/game.js";
+
+logToScreen("Starting Image Variants Test");
+
+// Mocking some game elements for headless test
+if (!document.getElementById('story')) {
+    const storyDiv = document.createElement('div');
+    storyDiv.id = 'story';
+    document.body.appendChild(storyDiv);
+}
+if (!document.getElementById('banner')) {
+    const banner = document.createElement('img');
+    banner.id = 'banner';
+    banner.setAttribute('sizes', '600px');
+    document.body.appendChild(banner);
+}
+
+// Initialize the game view's story reference if it's null
+if (!game.gameView.story) {
+    game.gameView.story = document.getElementById('story');
+}
+
+// Images that never finish loading.
+const images = [];
+window.Image = class {
+    decode() {
+        images.push(this);
+        return new Promise(() => {});
+    }
+};
+
+game.gameNodes['=g:0='] = {
+    exec: (g) => {
+        g.choose(g.choice('=a=', 'A'));
+    }
+};
+game.gameNodes['=g:a='] = {
+    exec: (g) => {
+        g.img('a.png');
+        g.choose(g.choice('=plain=', 'Plain'));
+    }
+};
+game.gameNodes['=g:plain='] = {
+    exec: (g) => {
+        g.img('plain.png');
+    }
+};
+game.addImages({'=g:a=': ['a.png']});
+// As written by ImageOptimizer into image-variants.js.
+game.addImageVariants({'a.png': [[480, 'a.w480.jpg'], [600, 'a.w600.jpg']]});
+game.config.gameName = "ImageVariantsTest";
+localStorage.clear();
+
+const srcset = 'a.w480.jpg 480w, a.w600.jpg 600w';
+assert(game.srcset('a.png') === srcset, "Expected the variants' srcset, got " + game.srcset('a.png'));
+assert(game.srcset('plain.png') === '', "An image without variants has no srcset");
+
+logToScreen("Prefetching picks the variant the banner will...");
+game.startNew();
+assert(images.length === 1, "a.png should be prefetched");
+assert(images[0].srcset === srcset, "The prefetch should have the srcset, got " + images[0].srcset);
+assert(images[0].sizes === '600px', "The prefetch should have the banner's sizes, got " + images[0].sizes);
+assert(images[0].src === 'a.png', "The prefetch should fall back to a.png");
+
+logToScreen("Showing an image with variants...");
+const banner = document.getElementById('banner');
+game.step(game.choice('=a=', 'A'));
+assert(banner.getAttribute('srcset') === srcset, "The banner should get the srcset");
+assert(banner.getAttribute('src') === 'a.png', "The banner should fall back to a.png");
+
+logToScreen("Showing an image without...");
+game.step(game.choice('=plain=', 'Plain'));
+assert(banner.getAttribute('srcset') === null, "The srcset of a.png shouldn't stay");
+assert(banner.getAttribute('src') === 'plain.png', "The banner should show plain.png");
+
+logToScreen("Replaying without rendering keeps the variants...");
+game.withoutRendering(() => game.img('a.png'));
+assert(banner.getAttribute('srcset') === srcset, "The replayed banner should get the srcset");
+
+logToScreen("Image Variants Test PASSED!");
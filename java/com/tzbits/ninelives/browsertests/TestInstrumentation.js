@@ -0,0 +1,73 @@
+import {assert, logToScreen} from "/browsertests/TestUtil.js";
+import {game} from "/java/com/tzbits/ninelives/data/game.js";
+
+logToScreen("Starting Instrumentation Test");
+
+// Mocking some game elements for headless test
+if (!document.getElementById('story')) {
+    const storyDiv = document.createElement('div');
+    storyDiv.id = 'story';
+    document.body.appendChild(storyDiv);
+}
+
+// Initialize the game view's story reference if it's null
+if (!game.gameView.story) {
+    game.gameView.story = document.getElementById('story');
+}
+
+game.gameNodes['=g:0='] = {
+    exec: (g) => {
+        g.say("Start");
+    }
+};
+game.gameNodes['=g:tick='] = {
+    exec: (g) => {
+        g.state.ticks = (g.state.ticks || 0) + 1;
+    }
+};
+
+game.config.gameName = "InstrumentationTest";
+localStorage.clear();
+
+logToScreen("Stepping with instrumentation off...");
+game.startNew();
+game.step(game.choice('=tick=', 'Tick'));
+assert(game.metrics.steps.length === 0, "Nothing should be recorded with instrumentation off");
+assert(game.metrics.timeToFirstNode === null, "Nothing should be recorded with instrumentation off");
+
+logToScreen("Stepping with instrumentation on...");
+game.config.instrument = true;
+const streamed = [];
+const unsubscribe = game.metrics.subscribe((record) => streamed.push(record));
+game.reset();
+game.startNew();
+for (let i = 0; i < 3; i++) {
+    game.step(game.choice('=tick=', 'Tick'));
+}
+const steps = game.metrics.steps;
+assert(steps.length === 4, "Every step should be recorded, but got " + steps.length);
+assert(streamed.length === 4, "Every step should be streamed to subscribers");
+const last = steps[3];
+assert(last.nodeId === '=g:tick=', "A record should name its node");
+for (const key of ['exec', 'persist', 'render']) {
+    assert(typeof last[key] === 'number' && last[key] >= 0, `A record should have its ${key} time`);
+}
+assert(last.states === 4, "A record should have the length of stateHistory");
+assert(last.stateBytes === JSON.stringify(game.stateHistory).length,
+    "A record should have the size of stateHistory as JSON");
+assert(game.metrics.timeToFirstNode !== null, "The time to the first node should be recorded");
+assert(performance.getEntriesByName('9l:step').length >= 4, "Steps should be on the performance timeline");
+unsubscribe();
+game.step(game.choice('=tick=', 'Tick'));
+assert(streamed.length === 4, "An unsubscribed listener shouldn't be called");
+
+logToScreen("Replaying...");
+game.metrics.clear();
+assert(performance.getEntriesByName('9l:step').length === 0, "Clearing should take the steps off the timeline");
+game.reset();
+assert(game.restoreFromStorage(), "There should be a session to restore");
+assert(game.metrics.replay && game.metrics.replay.nodes === 5, "The replay should be recorded");
+assert(game.metrics.steps.length === 0, "A replay is timed as a whole, not per step");
+assert(game.metrics.summary().steps === 0, "The summary should count the steps");
+
+logToScreen("Instrumentation Test PASSED!");
@@ -0,0 +1,133 @@
+import {assert, logToScreen} from "/browsertests/TestUtil.js";
+import {game} from "/java/com/tzbits/ninelives/data/game.js";
+
+logToScreen("Starting Log Persistence Test");
+
+// Mocking some game elements for headless test
+if (!document.getElementById('story')) {
+    const storyDiv = document.createElement('div');
+    storyDiv.id = 'story';
+    document.body.appendChild(storyDiv);
+}
+
+// Initialize the game view's story reference if it's null
+if (!game.gameView.story) {
+    game.gameView.story = document.getElementById('story');
+}
+
+game.gameNodes['=g:0='] = {
+    exec: (g) => {
+        g.say("Start");
+    }
+};
+game.gameNodes['=g:tick='] = {
+    exec: (g) => {
+        g.state.ticks = (g.state.ticks || 0) + 1;
+    }
+};
+
+game.config.gameName = "LogPersistenceTest";
+game.config.persistence = 'log';
+game.config.logCompactInterval = 8;
+localStorage.clear();
+
+function histories() {
+    return JSON.stringify({
+        nodeHistory: game.nodeHistory,
+        stateHistory: game.stateHistory,
+        redoHistory: game.redoHistory,
+        redoStateHistory: game.redoStateHistory,
+        initialState: game.initialState,
+    });
+}
+
+// What the log holds once written, as loadHistoryFromStorage reads it.
+async function savedHistories() {
+    await game.flushHistory();
+    return JSON.stringify(await game.loadHistoryFromStorage());
+}
+
+game.state.ticks = 0;
+game.startNew();
+for (let i = 0; i < 5; i++) {
+    game.step(game.choice('=tick=', 'Tick'));
+}
+assert(localStorage.getItem(`${game.getStoragePrefix()}nodeHistory`) === null,
+    "The log shouldn't rewrite the histories");
+assert(await savedHistories() === histories(), "The log should add up to the histories after steps");
+
+logToScreen("Undoing and redoing...");
+game.undo();
+game.undo();
+game.undo();
+game.redo();
+assert(await savedHistories() === histories(), "The log should add up to the histories after undo and redo");
+
+logToScreen("Taking another branch...");
+game.step(game.choice('=0=', 'Restart'));
+assert(game.redoHistory.length === 0, "A new branch should drop the redo history");
+assert(await savedHistories() === histories(), "The log should drop the redo history too");
+
+logToScreen("Compacting...");
+for (let i = 0; i < 20; i++) {
+    game.step(game.choice('=tick=', 'Tick'));
+}
+game.undo();
+assert(await savedHistories() === histories(), "The log should add up to the histories after compacting");
+assert(game.historyLog.length <= 8, "The log should have been compacted, but has " + game.historyLog.length);
+
+logToScreen("Restoring...");
+const expectedState = JSON.stringify(game.state);
+const expectedHistories = histories();
+game.reset();
+game.historyLog = null;  // As if the page were loaded again.
+assert(game.hasSavedSession(), "There should be a saved session");
+assert(game.restoreFromStorage(), "There should be a session to restore");
+await game.restoring;
+assert(JSON.stringify(game.state) === expectedState, "Restoring should end in the same state");
+assert(histories() === expectedHistories, "Restoring should bring back the same histories");
+game.redo();
+assert(game.state.ticks === 23, "Redo should work after restoring, but ticks is " + game.state.ticks);
+
+logToScreen("Resetting...");
+game.reset();
+game.startNew();
+assert(await savedHistories() === histories(), "A new session should start the log over");
+assert(game.nodeHistory.length === 1, "The new session should only have the start node");
+
+logToScreen("Moving a snapshot session into the log...");
+game.config.persistence = 'snapshot';
+game.config.gameName = "LogPersistenceMoveTest";
+game.reset();
+game.startNew();
+game.step(game.choice('=tick=', 'Tick'));
+const snapshotHistories = histories();
+game.reset();
+game.config.persistence = 'log';
+assert(game.restoreFromStorage(), "The snapshot session should be restored");
+await game.restoring;
+assert(histories() === snapshotHistories, "The snapshot session should be restored as it was");
+assert(await savedHistories() === snapshotHistories, "The snapshot session should be in the log");
+
+logToScreen("Falling back to localStorage...");
+const open = indexedDB.open;
+indexedDB.open = () => {
+    const request = {error: new Error("IndexedDB is unavailable in this test")};
+    setTimeout(() => request.onerror());
+    return request;
+};
+game.config.gameName = "LogPersistenceFallbackTest";
+game.reset();
+game.startNew();
+game.step(game.choice('=tick=', 'Tick'));
+game.step(game.choice('=tick=', 'Tick'));
+const fallbackHistories = histories();
+assert(await savedHistories() === fallbackHistories, "The log should be in localStorage once IndexedDB fails");
+indexedDB.open = open;
+game.reset();
+game.historyLog = null;
+assert(game.restoreFromStorage(), "The session in localStorage should be restored");
+await game.restoring;
+assert(histories() === fallbackHistories, "The session in localStorage should be restored as it was");
+
+logToScreen("Log Persistence Test PASSED!");
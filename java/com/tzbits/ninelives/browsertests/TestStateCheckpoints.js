@@ -0,0 +1,98 @@
+import {assert, logToScreen} from "/browsertests/TestUtil.js";
+import {game} from "/java/com/tzbits/ninelives/data/game.js";
+
+logToScreen("Starting State Checkpoints Test");
+
+// Mocking some game elements for headless test
+if (!document.getElementById('story')) {
+    const storyDiv = document.createElement('div');
+    storyDiv.id = 'story';
+    document.body.appendChild(storyDiv);
+}
+
+// Initialize the game view's story reference if it's null
+if (!game.gameView.story) {
+    game.gameView.story = document.getElementById('story');
+}
+
+game.gameNodes['=g:0='] = {
+    exec: (g) => {
+        g.say("Start");
+    }
+};
+// Counts, keeps the last few counts in a rotating key and deletes one.
+game.gameNodes['=g:tick='] = {
+    exec: (g) => {
+        g.state.ticks = (g.state.ticks || 0) + 1;
+        g.state[`k${g.state.ticks % 5}`] = g.state.ticks;
+        if (g.state.ticks % 7 === 0) {
+            delete g.state.first;
+        }
+    }
+};
+
+game.config.gameName = "CheckpointTest";
+game.config.checkpointInterval = 4;
+localStorage.clear();
+
+// What step rebuilds without checkpoints: every diff from the first.
+function rebuiltState() {
+    const state = Object.assign({}, game.initialState);
+    for (const diff of game.stateHistory) {
+        Object.assign(state, diff);
+    }
+    return state;
+}
+
+function assertConsistent(when) {
+    assert(JSON.stringify(game.state) === JSON.stringify(rebuiltState()),
+        `${when}: state ${JSON.stringify(game.state)} should be ${JSON.stringify(rebuiltState())}`);
+    assert(game.stateCheckpoints.length <= Math.floor(game.stateHistory.length / 4),
+        `${when}: no checkpoint should be past the history`);
+}
+
+game.state.first = true;
+game.startNew();
+logToScreen("Stepping past several checkpoints...");
+for (let i = 1; i <= 30; i++) {
+    game.step(game.choice('=tick=', 'Tick'));
+    assertConsistent(`After tick ${i}`);
+}
+assert(game.state.ticks === 30, "Should have ticked 30 times");
+assert(!('first' in game.state) || game.state.first === undefined, "A deleted key should stay deleted");
+assert(game.stateCheckpoints.length >= 6, "Checkpoints should have been taken");
+
+logToScreen("Undoing across checkpoints...");
+for (let i = 0; i < 10; i++) {
+    game.undo();
+    assertConsistent(`After undo ${i + 1}`);
+}
+assert(game.state.ticks === 20, "Undo should take back ticks, but ticks is " + game.state.ticks);
+
+logToScreen("Taking another branch after undo...");
+game.step(game.choice('=0=', 'Restart'));
+game.step(game.choice('=tick=', 'Tick'));
+assertConsistent("After a new branch");
+assert(game.state.ticks === 21, "The new branch should build on the undone state");
+
+logToScreen("Undoing and redoing...");
+game.undo();
+game.undo();
+game.redo();
+game.redo();
+assertConsistent("After redo");
+assert(game.state.ticks === 21, "Redo should restore the ticks");
+
+logToScreen("Replaying...");
+const expected = JSON.stringify(game.state);
+game.replay(game.nodeHistory.slice(), game.stateHistory.slice());
+assertConsistent("After replay");
+assert(JSON.stringify(game.state) === expected, "Replay should end in the same state");
+
+logToScreen("Restoring from storage...");
+game.reset();
+assert(game.stateCheckpoints.length === 0, "Reset should drop the checkpoints");
+assert(game.restoreFromStorage(), "There should be a session to restore");
+assert(JSON.stringify(game.state) === expected, "Restoring should end in the same state");
+
+logToScreen("State Checkpoints Test PASSED!");
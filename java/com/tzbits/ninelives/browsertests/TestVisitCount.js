@@ -0,0 +1,83 @@
+import {assert, logToScreen} from "/browsertests/TestUtil.js";
+import {game, visited} from "/java/com/tzbits/ninelives/data/game.js";
+
+logToScreen("Starting Visit Count Test");
+
+// Mocking some game elements for headless test
+if (!document.getElementById('story')) {
+    const storyDiv = document.createElement('div');
+    storyDiv.id = 'story';
+    document.body.appendChild(storyDiv);
+}
+
+// Initialize the game view's story reference if it's null
+if (!game.gameView.story) {
+    game.gameView.story = document.getElementById('story');
+}
+
+// Each node records what visitCount says while it runs.
+const seen = [];
+for (const id of ['=g:0=', '=g:a=', '=g:b=']) {
+    game.gameNodes[id] = {
+        exec: (g) => {
+            seen.push([id, g.visitCount(id)]);
+            g.say(id);
+        }
+    };
+}
+
+game.config.gameName = "VisitCountTest";
+localStorage.clear();
+
+// The counts nodeHistory implies, which visitCount must agree with.
+function assertCounts(when) {
+    for (const id of ['=g:0=', '=g:a=', '=g:b=']) {
+        const expected = game.nodeHistory.filter((choice) => choice.nodeId === id).length;
+        assert(game.visitCount(id) === expected,
+            `${when}: visitCount('${id}') should be ${expected} but was ${game.visitCount(id)}`);
+        assert(game.isVisited(id) === expected > 0, `${when}: isVisited('${id}') should be ${expected > 0}`);
+    }
+}
+
+logToScreen("Stepping through the nodes...");
+game.startNew();
+game.step(game.choice('=a=', 'A'));
+game.step(game.choice('=b=', 'B'));
+game.step(game.choice('=a=', 'A again'));
+assertCounts("After stepping");
+assert(game.visitCount('=a=') === 2, "=g:a= should have been visited twice");
+assert(game.visitCount() === 2, "visitCount() should count the current node");
+assert(visited('=b='), "visited() should see =g:b=");
+assert(seen[seen.length - 1][1] === 2, "A node should see its own visit while it runs");
+
+logToScreen("Undoing...");
+game.undo();
+assertCounts("After one undo");
+assert(game.visitCount('=a=') === 1, "Undo should take back a visit to =g:a=");
+assert(game.currentNode() === '=g:b=', "Undo should go back to =g:b=");
+assert(seen[seen.length - 1][1] === 1, "A node run again by undo should not count itself twice");
+game.undo();
+game.undo();
+assertCounts("After three undos");
+assert(game.visitCount('=b=') === 0, "=g:b= should no longer be visited");
+assert(!visited('=b='), "visited() should agree");
+
+logToScreen("Redoing...");
+game.redo();
+game.redo();
+assertCounts("After two redos");
+assert(game.visitCount('=b=') === 1, "Redo should count =g:b= again");
+
+logToScreen("Replaying...");
+game.replay(game.nodeHistory.slice(), game.stateHistory.slice());
+assertCounts("After replay");
+assert(game.visitCount('=a=') === 1 && game.visitCount('=0=') === 1, "Replay should count each visit once");
+
+logToScreen("Restoring from storage...");
+game.reset();
+assert(game.visitCount('=a=') === 0, "Reset should clear the counts");
+assert(game.restoreFromStorage(), "There should be a session to restore");
+assertCounts("After restoring");
+assert(game.visitCount('=b=') === 1, "Restoring should count the saved visits");
+
+logToScreen("Visit Count Test PASSED!");
@@ -15,6 +15,21 @@ class GameView {
    * @description An "offscreen" buffer, created by startStoryElt.
    */
   storyElt;
+  /**
+   * @private {!Array<string>}
+   * @description The HTML said since startStoryElt, added to {@link storyElt} at once by
+   * showStoryElt.
+   */
+  html = [];
+  /** @private Whether showStoryElt has shown {@link storyElt}, so HTML goes straight in. */
+  shown = false;
+  /**
+   * @private {!Array<Choice>}
+   * @description The choices displayed since startStoryElt, by their data-choice.
+   */
+  choices = [];
+  /** @private {HTMLDivElement|null} The element {@link onClick} listens to. */
+  listeningTo = null;
 
   constructor() {
     this.story = document.getElementById('story');
@@ -30,12 +45,24 @@ class GameView {
     elt.setAttribute('id', eltId)
     elt.classList.add('StoryElt', 'hidden')
     this.storyElt = elt;
+    this.html = [];
+    this.shown = false;
+    this.choices = [];
   }
 
   /**
    * Clears {@link story} and appends {@link storyElt}.
    */
   showStoryElt() {
+    if (this.listeningTo !== this.story) {
+      // One listener for every choice and inline link, found by their data attributes.
+      this.story.addEventListener('click', (event) => this.onClick(event));
+      this.listeningTo = this.story;
+    }
+    // Everything said, in one parse and layout.
+    this.storyElt.innerHTML = this.html.join('');
+    this.html = [];
+    this.shown = true;
     this.story.innerHTML = "";
     window.scrollTo(0, 0);
     this.story.append(this.storyElt);
@@ -48,7 +75,20 @@ class GameView {
 
   /** Append a paragraph of text to {@link storyElt}. */
   say(txt) {
-    this.storyElt.innerHTML += `<p>${applyMarkdown(txt)}</p>`
+    this.sayHtml(`<p>${applyMarkdown(txt)}</p>`)
+  }
+
+  /**
+   * Append paragraphs of HTML, e.g. text whose markdown the transpiler
+   * has already rendered, to {@link storyElt}.
+   * @param {string} html
+   */
+  sayHtml(html) {
+    if (this.shown) {
+      this.storyElt.insertAdjacentHTML('beforeend', html)
+    } else {
+      this.html.push(html)
+    }
   }
 
   /**
@@ -57,8 +97,16 @@ class GameView {
    * @param {string} text
    */
   sayWith(styleCode, text) {
-    this.storyElt.innerHTML += `<p class='${this.codeToStyle(
-        styleCode)}'>${applyMarkdown(text)}</p>`
+    this.sayWithHtml(styleCode, applyMarkdown(text))
+  }
+
+  /**
+   * Append a paragraph of HTML to {@link storyElt} with a style.
+   * @param {string} styleCode
+   * @param {string} html
+   */
+  sayWithHtml(styleCode, html) {
+    this.sayHtml(`<p class='${this.codeToStyle(styleCode)}'>${html}</p>`)
   }
 
   /** @param {string} styleCode */
@@ -81,10 +129,8 @@ class GameView {
    * @param {Choice[]} choices
    */
   displayChoices(game, choices, wrapChoices) {
-    const gameView = this
-    const choicesElt = document.createElement("div")
     const wrap = (typeof wrapChoices === 'boolean') ? wrapChoices : game.wrapChoices;
-    choicesElt.classList.add(wrap ? 'wrapped-choices' : 'choices')
+    let html = `<div class="${wrap ? 'wrapped-choices' : 'choices'}">`
     if (game.useRandomChoiceOrder) {
       choices.sort(function () {
         // ignoring args a & b.
@@ -95,23 +141,34 @@ class GameView {
       if (!choice || !choice.nodeId) {
         continue
       }
-      const choiceElt = document.createElement("div")
-      choiceElt.classList.add('choice')
-      const linkElt = document.createElement("span")
-      linkElt.classList.add('link')
       let text = `${choice.txt}`;
       if (game.enableDebug && game.debugVerbosity > 0) {
         text += ` (${choice.nodeId})`;
       }
-      linkElt.innerHTML = applyMarkdown(text);
-      linkElt.onclick = function () {
-        choicesElt.remove()
-        game.step(choice)
-      }
-      choiceElt.append(linkElt)
-      choicesElt.append(choiceElt)
+      html += `<div class="choice"><span class="link" data-choice="${this.choices.length}">`
+          + `${choice.html ? text : applyMarkdown(text)}</span></div>`
+      this.choices.push(choice)
+    }
+    this.sayHtml(html + '</div>')
+  }
+
+  /**
+   * Steps into the choice or inline link clicked on in {@link story}.
+   * @private
+   */
+  onClick(event) {
+    const link = event.target.closest('[data-choice], [data-node]')
+    if (!link) {
+      return
+    }
+    if (link.dataset.choice !== undefined) {
+      const choice = this.choices[Number(link.dataset.choice)]
+      link.closest('.choices, .wrapped-choices').remove()
+      game.step(choice)
+    } else {
+      // The choice gets the link text as shown, like choice text.
+      game.step(game.choice(link.dataset.node, link.innerHTML))
     }
-    gameView.storyElt.append(choicesElt)
   }
 
   /**
@@ -124,13 +181,61 @@ class GameView {
     }
   }
 
-  /** Changes the src image of the image element with the id, 'banner'. */
-  img(url) {
+  /**
+   * Changes the src image of the image element with the id, 'banner',
+   * and the srcset of narrower variants it picks from, if there is one.
+   */
+  img(url, srcset = '') {
     let bannerElt = document.getElementById('banner');
     if (bannerElt !== null) {
+      if (srcset) {
+        bannerElt.setAttribute('srcset', srcset);
+      } else {
+        bannerElt.removeAttribute('srcset');
+      }
       bannerElt.setAttribute('src', url);
     }
   }
+
+  /** The sizes attribute of the banner, so a prefetch picks the variant it will. */
+  bannerSizes() {
+    const bannerElt = document.getElementById('banner');
+    return bannerElt !== null ? bannerElt.getAttribute('sizes') || '' : '';
+  }
+}
+
+/**
+ * A view that shows nothing, for stepping through nodes whose output
+ * would only be replaced, like all but the last node of a replay.
+ * Remembers the banner image, which outlasts the node that sets it.
+ */
+class HeadlessView extends GameView {
+  /** @type {string|null} The url last passed to {@link img}. */
+  imgUrl = null;
+
+  /** @type {string} The srcset last passed to {@link img}. */
+  imgSrcset = '';
+
+  startStoryElt(timeStep) {}
+
+  showStoryElt() {}
+
+  say(txt) {}
+
+  sayHtml(html) {}
+
+  sayWith(styleCode, text) {}
+
+  sayWithHtml(styleCode, html) {}
+
+  displayChoices(game, choices, wrapChoices) {}
+
+  removeChoices() {}
+
+  img(url, srcset = '') {
+    this.imgUrl = url;
+    this.imgSrcset = srcset;
+  }
 }
 
 export class AbstractGameNode {
@@ -221,11 +326,465 @@ class Choice {
   /** @type {string} */
   txt;
   data = [];
+  /**
+   * @type {boolean}
+   * @description Whether {@link txt} is HTML with its markdown rendered.
+   */
+  html = false;
 
-  constructor(toNodeId, txt, data = []) {
+  constructor(toNodeId, txt, data = [], html = false) {
     this.nodeId = toNodeId;
     this.txt = txt;
     this.data = data;
+    this.html = html;
+  }
+}
+
+/**
+ * An append-only log of how the histories change, for
+ * config.persistence 'log': each step, undo and redo adds a small
+ * record instead of rewriting every history, and the records are
+ * written in batches when the browser is idle. Once there are more
+ * than config.logCompactInterval records the log is replaced by one
+ * snapshot of the histories.
+ */
+class HistoryLog {
+  /** @type {string} */
+  prefix;
+
+  /** How many records the log may have before it is compacted. */
+  compactInterval;
+
+  /** @private {function(): !Object} Returns the histories to compact the log into. */
+  snapshot;
+
+  /** @private {!LocalStorageLog|!IndexedDbLog} */
+  backend;
+
+  /** @private {!Array<string>} Records, as JSON, not written yet. */
+  pending = [];
+
+  /** @private Whether the pending records replace the whole log. */
+  replacing = false;
+
+  /** @private How many records the log has, written or not. */
+  length = 0;
+
+  /** @private */
+  flushScheduled = false;
+
+  constructor(prefix, compactInterval, snapshot) {
+    this.prefix = prefix;
+    this.compactInterval = compactInterval;
+    this.snapshot = snapshot;
+    const head = localStorage.getItem(`${prefix}log`);
+    const inIndexedDb = head ? JSON.parse(head).indexedDB : IndexedDbLog.isAvailable();
+    this.backend = inIndexedDb ? new IndexedDbLog(prefix) : new LocalStorageLog(prefix);
+    if (typeof window !== 'undefined') {
+      // Idle time may never come before the tab goes away.
+      window.addEventListener('pagehide', () => this.flush());
+    }
+  }
+
+  /** Whether anything has been written to the log. */
+  exists() {
+    return localStorage.getItem(`${this.prefix}log`) !== null;
+  }
+
+  append(record) {
+    this.pending.push(JSON.stringify(record));
+    this.length++;
+    if (this.length > this.compactInterval) {
+      this.compact();
+    } else {
+      this.scheduleFlush();
+    }
+  }
+
+  /** Replaces the log, including the records not written yet, with a snapshot. */
+  compact() {
+    this.pending = [JSON.stringify(Object.assign({op: 'snapshot'}, this.snapshot()))];
+    this.replacing = true;
+    this.length = 1;
+    this.scheduleFlush();
+  }
+
+  /** @private */
+  scheduleFlush() {
+    if (this.flushScheduled) {
+      return;
+    }
+    this.flushScheduled = true;
+    if (typeof requestIdleCallback === 'function') {
+      requestIdleCallback(() => this.flush(), {timeout: 1000});
+    } else {
+      setTimeout(() => this.flush(), 0);
+    }
+  }
+
+  /**
+   * Writes the pending records.
+   * @return {!Promise} resolves once they are written
+   */
+  flush() {
+    this.flushScheduled = false;
+    if (this.pending.length === 0) {
+      return Promise.resolve();
+    }
+    const records = this.pending;
+    const replace = this.replacing;
+    this.pending = [];
+    this.replacing = false;
+    const written = this.backend.write(records, replace);
+    if (!(written instanceof Promise)) {
+      return Promise.resolve();
+    }
+    return written.catch((e) => {
+      console.warn(`Falling back to localStorage for the history log: ${e}`);
+      // The head says the log is in IndexedDB; the snapshot starts it over.
+      localStorage.removeItem(`${this.prefix}log`);
+      this.backend = new LocalStorageLog(this.prefix);
+      this.compact();
+      return this.flush();
+    });
+  }
+
+  /**
+   * Reads the log back into histories shaped like those
+   * Game.loadHistoryFromStorage returns.
+   * @return {!Object|!Promise<!Object>} a Promise when the log is in IndexedDB
+   */
+  load() {
+    this.flush();
+    const records = this.backend.load();
+    const fold = (records) => {
+      this.length = records.length;
+      return HistoryLog.fold(records);
+    };
+    return records instanceof Promise ? records.then(fold) : fold(records);
+  }
+
+  /** Applies the records in order, the way Game.step, undo and redo change the histories. */
+  static fold(records) {
+    let nodeHistory = [], stateHistory = [], redoHistory = [], redoStateHistory = [];
+    let initialState = {};
+    let withStates = true;
+    for (const record of records) {
+      switch (record.op) {
+        case 'snapshot':
+          nodeHistory = record.nodeHistory;
+          redoHistory = record.redoHistory;
+          initialState = record.initialState;
+          withStates = Array.isArray(record.stateHistory);
+          stateHistory = record.stateHistory || [];
+          redoStateHistory = record.redoStateHistory || [];
+          break;
+        case 'step':
+          if (!record.redo) {
+            redoHistory = [];
+            redoStateHistory = [];
+          }
+          nodeHistory.push(record.choice);
+          stateHistory.push(record.diff || {});
+          withStates = withStates && 'diff' in record;
+          break;
+        case 'undo':
+          redoHistory.push(nodeHistory.pop());
+          redoStateHistory.push(stateHistory.pop());
+          nodeHistory.pop();
+          stateHistory.pop();
+          break;
+        case 'redo':
+          redoHistory.pop();
+          redoStateHistory.pop();
+          break;
+      }
+    }
+    return {
+      nodeHistory,
+      stateHistory: withStates ? stateHistory : null,
+      redoHistory,
+      redoStateHistory: withStates ? redoStateHistory : null,
+      initialState,
+    };
+  }
+}
+
+/**
+ * Keeps a HistoryLog in localStorage: each batch of records under its
+ * own key, `<prefix>log:<n>`, and which batches make up the log
+ * under `<prefix>log`.
+ */
+class LocalStorageLog {
+  /** @private {string} */
+  key;
+
+  constructor(prefix) {
+    this.key = `${prefix}log`;
+  }
+
+  /** @private Which batches make up the log; none unless the head is this log's own. */
+  head() {
+    const head = JSON.parse(localStorage.getItem(this.key));
+    const valid = head && Number.isInteger(head.first) && Number.isInteger(head.next);
+    return valid ? head : {first: 0, next: 0};
+  }
+
+  write(records, replace) {
+    const {first, next} = this.head();
+    localStorage.setItem(`${this.key}:${next}`, `[${records.join(',')}]`);
+    localStorage.setItem(this.key, JSON.stringify({first: replace ? next : first, next: next + 1}));
+    if (replace) {
+      for (let i = first; i < next; i++) {
+        localStorage.removeItem(`${this.key}:${i}`);
+      }
+    }
+  }
+
+  load() {
+    const {first, next} = this.head();
+    const records = [];
+    for (let i = first; i < next; i++) {
+      const batch = localStorage.getItem(`${this.key}:${i}`);
+      if (batch) {
+        records.push(...JSON.parse(batch));
+      }
+    }
+    return records;
+  }
+}
+
+/**
+ * Keeps a HistoryLog in an IndexedDB database of its own, noting in
+ * localStorage that it's there so a saved session can be found
+ * without waiting on IndexedDB.
+ */
+class IndexedDbLog {
+  /** @private {string} */
+  prefix;
+
+  /** @private {!Promise<!IDBDatabase>} */
+  db;
+
+  static isAvailable() {
+    return typeof indexedDB !== 'undefined';
+  }
+
+  constructor(prefix) {
+    this.prefix = prefix;
+    this.db = new Promise((resolve, reject) => {
+      const request = indexedDB.open(`${prefix}log`, 1);
+      request.onupgradeneeded = () => request.result.createObjectStore('records', {autoIncrement: true});
+      request.onsuccess = () => resolve(request.result);
+      request.onerror = () => reject(request.error);
+    });
+  }
+
+  write(records, replace) {
+    localStorage.setItem(`${this.prefix}log`, JSON.stringify({indexedDB: true}));
+    return this.transact('readwrite', (store) => {
+      if (replace) {
+        store.clear();
+      }
+      for (const record of records) {
+        store.add(record);
+      }
+    });
+  }
+
+  load() {
+    return this.transact('readonly', (store) => store.getAll())
+        .then((records) => records.map((record) => JSON.parse(record)));
+  }
+
+  /**
+   * Runs `fn` on the store in a transaction. Transactions start in the
+   * order they're asked for, so writes and loads stay in order.
+   * @private
+   */
+  transact(mode, fn) {
+    return this.db.then((db) => new Promise((resolve, reject) => {
+      const transaction = db.transaction('records', mode);
+      const request = fn(transaction.objectStore('records'));
+      transaction.oncomplete = () => resolve(request ? request.result : undefined);
+      transaction.onerror = transaction.onabort = () => reject(transaction.error);
+    }));
+  }
+}
+
+/**
+ * What playing costs, recorded by Game when config.instrument is set.
+ * Each record is also put on the browser's performance timeline as a
+ * `9l:step` or `9l:replay` measure with the record as its detail, for
+ * a PerformanceObserver to pick up.
+ */
+class GameMetrics {
+  /**
+   * One record per step: the node, and the milliseconds it took to
+   * run (`exec`), to work out and save what it changed (`persist`)
+   * and to show (`render`), with the length of stateHistory after it
+   * (`states`) and the length of stateHistory as JSON (`stateBytes`).
+   * @type {!Array<!Object>}
+   */
+  steps = [];
+
+  /**
+   * Milliseconds from the start of navigation until the first node
+   * was shown, or null.
+   * @type {number|null}
+   */
+  timeToFirstNode = null;
+
+  /**
+   * How long the last replay took in milliseconds (`ms`) and how many
+   * nodes it replayed (`nodes`), or null.
+   * @type {Object|null}
+   */
+  replay = null;
+
+  /** @private {!Array<function(!Object)>} */
+  listeners = [];
+
+  /**
+   * Calls `listener` with each step's record as it's made.
+   * @return {function()} stops calling it
+   */
+  subscribe(listener) {
+    this.listeners.push(listener);
+    return () => {
+      this.listeners = this.listeners.filter((l) => l !== listener);
+    };
+  }
+
+  /** Records a step Game timed from `start`. */
+  addStep(record, start) {
+    this.steps.push(record);
+    performance.measure('9l:step', {start, end: performance.now(), detail: record});
+    for (const listener of this.listeners) {
+      listener(record);
+    }
+  }
+
+  /** Records a replay of `nodes` nodes Game timed from `start`. */
+  addReplay(nodes, start) {
+    const end = performance.now();
+    this.replay = {nodes, ms: end - start};
+    performance.measure('9l:replay', {start, end, detail: this.replay});
+  }
+
+  /** Called by Game each time it shows a node. */
+  firstNodeShown() {
+    if (this.timeToFirstNode === null) {
+      this.timeToFirstNode = performance.now();
+      performance.mark('9l:first-node');
+    }
+  }
+
+  /** Sums up the steps: how many, and the total and slowest of each time. */
+  summary() {
+    const summary = {steps: this.steps.length, timeToFirstNode: this.timeToFirstNode, replay: this.replay};
+    for (const key of ['exec', 'persist', 'render']) {
+      const times = this.steps.map((step) => step[key]);
+      summary[key] = {
+        total: times.reduce((a, b) => a + b, 0),
+        max: times.length ? Math.max(...times) : 0,
+      };
+    }
+    return summary;
+  }
+
+  clear() {
+    this.steps = [];
+    this.replay = null;
+    // The timeline keeps every measure until it's cleared, and there is
+    // one for each node run with --instrument.
+    const names = new Set(performance.getEntriesByType('measure')
+        .map((entry) => entry.name)
+        .filter((name) => name.startsWith('9l:')));
+    for (const name of names) {
+      performance.clearMeasures(name);
+    }
+  }
+}
+
+/**
+ * Loads and decodes images before they are shown, e.g. the banners of
+ * the nodes the choices on screen lead to, so that choosing one
+ * doesn't leave the banner blank while its image downloads.
+ *
+ * At most `limit` images load at once; the rest wait their turn, and
+ * are forgotten once the player moves on to another node. The last
+ * `capacity` images decoded are kept so the browser keeps them decoded.
+ */
+class ImagePrefetcher {
+  /** @private {!Array<string>} The urls waiting to load, in order. */
+  queue = [];
+
+  /** @private {!Set<string>} The urls loading. */
+  loading = new Set();
+
+  /**
+   * @private {!Map<string, !HTMLImageElement>} The images decoded, the
+   *     least recently used first.
+   */
+  decoded = new Map();
+
+  /**
+   * @param {function(!HTMLImageElement, string)} prepare sets up an
+   *     image before its url is loaded, e.g. with a srcset
+   */
+  constructor(limit, capacity, prepare) {
+    this.limit = limit;
+    this.capacity = capacity;
+    this.prepare = prepare;
+  }
+
+  /** Queues the urls not loaded, loading or queued already. */
+  prefetch(urls) {
+    for (const url of urls) {
+      if (this.decoded.has(url)) {
+        this.touch(url);
+      } else if (!this.loading.has(url) && !this.queue.includes(url)) {
+        this.queue.push(url);
+      }
+    }
+    this.pump();
+  }
+
+  /** Forgets the urls waiting to load; those loading finish. */
+  clearQueue() {
+    this.queue = [];
+  }
+
+  /** Notes that the image at `url` was used, so it is kept longer. */
+  touch(url) {
+    const image = this.decoded.get(url);
+    if (image) {
+      this.decoded.delete(url);
+      this.decoded.set(url, image);
+    }
+  }
+
+  /** @private */
+  pump() {
+    while (this.loading.size < this.limit && this.queue.length > 0) {
+      const url = this.queue.shift();
+      this.loading.add(url);
+      const image = new Image();
+      this.prepare(image, url);
+      image.src = url;
+      image.decode().then(() => {
+        this.decoded.set(url, image);
+        while (this.decoded.size > this.capacity) {
+          this.decoded.delete(this.decoded.keys().next().value);
+        }
+      }, () => {
+        // Left for the banner to load, or fail, when it is shown.
+      }).finally(() => {
+        this.loading.delete(url);
+        this.pump();
+      });
+    }
   }
 }
 
@@ -287,9 +846,28 @@ class Game {
   config = {
     gameName: 'ninelives-game',
     gameVersion: '0.0.1',
-    persistStateHistory: true
+    persistStateHistory: true,
+    /** How many diffs of stateHistory apart to checkpoint the state. */
+    checkpointInterval: 32,
+    /**
+     * How the histories are saved: 'snapshot' writes each of them to
+     * localStorage after every step; 'log' appends what changed to a
+     * HistoryLog, in IndexedDB where there is one.
+     */
+    persistence: 'snapshot',
+    /** For persistence 'log': how many records to let the log grow to before compacting it. */
+    logCompactInterval: 256,
+    /** Whether to record {@link metrics}. Off by default, when it costs nothing. */
+    instrument: false,
+    /** How many images to prefetch at once. */
+    imagePrefetchLimit: 4,
+    /** How many prefetched images to keep decoded. */
+    imageCacheSize: 16
   };
 
+  /** What each step costs, when config.instrument is set. */
+  metrics = new GameMetrics();
+
   /** Set this function to run on load and take control of stepping through a path in the story. */
   debugOnLoadFn = null
 
@@ -302,12 +880,29 @@ class Game {
   /** Node ids are added to this array as they are stepped into. */
   nodeHistory = []
 
+  /**
+   * How many times each node id is in nodeHistory, kept up to date by
+   * pushHistory and popHistory so visitCount doesn't scan the history.
+   * @private {!Map<string, number>}
+   */
+  visitCounts = new Map()
+
   /**
    * Parallel array to nodeHistory containing diff objects of state changes.
    * @type {object[]}
    */
   stateHistory = []
 
+  /**
+   * Snapshots of the state that initialState and the first
+   * `(i + 1) * config.checkpointInterval` diffs of stateHistory add up
+   * to, so that rebuilding the state starts from the latest one
+   * instead of the first diff. Derived from stateHistory, so not
+   * persisted.
+   * @private {!Array<!Object>}
+   */
+  stateCheckpoints = []
+
   /**
    * State properties set before any node runs.
    * @type {object}
@@ -317,13 +912,56 @@ class Game {
   /** Place to hold game items. */
   items = {}
 
+  /**
+   * For chunked output: the url of the chunk that defines each node
+   * not loaded yet, relative to game.js.
+   * @private {!Object<string, string>}
+   */
+  chunkOfNode = {}
+
+  /** @private {!Object<string, Promise>} The chunks being loaded or loaded, by url. */
+  chunkLoads = {}
+
+  /** @private {!Set<string>} The urls of the chunks that have loaded. */
+  loadedChunks = new Set()
+
+  /**
+   * The !img urls of each node, to prefetch while a choice or inline
+   * link on screen leads there. Filled in by the transpiled files.
+   * @type {!Object<string, !Array<string>>}
+   */
+  nodeImages = {}
+
+  /** @private {ImagePrefetcher} Created when first needed, from config. */
+  imagePrefetcher = null
+
+  /**
+   * The narrower variants of images, by url, as [width, url] pairs
+   * from the narrowest to one at full width. Filled in by the
+   * image-variants.js of release builds.
+   * @type {!Object<string, !Array<!Array>>}
+   */
+  imageVariants = {}
+
+  /** @private {HistoryLog} For config.persistence 'log', created when first needed. */
+  historyLog = null
+
+  /**
+   * Resolves once restoreFromStorage has restored the session, which
+   * may wait for nodes or the history log to load.
+   * @type {Promise|null}
+   */
+  restoring = null
+
   constructor() {
     this.gameNodes = {'=g:player=': /** @type {AbstractGameNode} */ this.player}
   }
 
   reset() {
     this.nodeHistory = [];
+    this.visitCounts = new Map();
     this.stateHistory = [];
+    this.stateCheckpoints = [];
     this.redoHistory = [];
     this.redoStateHistory = [];
     this.timeStep = 0;
@@ -355,6 +993,12 @@ class Game {
    * @param {Choice} choice
    */
   step(choice, isRedo = false) {
+    const loading = this.loadNodes([choice.nodeId]);
+    if (loading) {
+      // Nothing has happened yet, so step once the node is here.
+      return loading.then(() => this.step(choice, isRedo));
+    }
+
     if (this.enableDebug) {
       this.outputDebugInfo(choice)
     }
@@ -368,35 +1012,36 @@ class Game {
       this.initialState = Object.assign({}, this.state);
     }
 
-    this.state = Object.assign({}, this.initialState);
-    this.preState = {};
-    // During replay, step() is called for the i-th node.
-    // this.stateHistory already contains diffs for [0...i].
-    // BUT wait, the i-th node's diff was produced AFTER it ran.
-    // Re-reading design: "reconstructs game.state by iterating through the state history from oldest to newest... After this step both objects are identical snapshots of accumulated state. ... Runs the node function. ... Diffs game.state against preState. ... Pushes the diff object onto the state history."
-    
-    // So for the i-th node, it should only see diffs from [0...i-1].
-    const currentDiffs = this.replaying ? this.stateHistory.slice(0, -1) : this.stateHistory;
-
-    for (const diff of currentDiffs) {
-      Object.assign(this.state, diff);
-    }
-    Object.assign(this.preState, this.state);
+    // During replay, step() is called for the i-th node and
+    // this.stateHistory already contains diffs for [0...i], but the
+    // i-th node's diff was produced AFTER it ran. So the i-th node
+    // should only see diffs from [0...i-1].
+    this.state = this.stateAfter(this.stateHistory.length - (this.replaying ? 1 : 0));
+    this.preState = Object.assign({}, this.state);
 
     let toNodeId = this.resolveScope(choice.nodeId)
     choice.nodeId = toNodeId; // Ensure the stored choice has the resolved ID
-    this.nodeHistory.push(choice)
+    this.pushHistory(choice)
     this.timeStep = this.timeStep + 1
 
     this.gameView.startStoryElt(this.timeStep)
+    if (this.imagePrefetcher) {
+      // What the last node led to is no longer on screen.
+      this.imagePrefetcher.clearQueue();
+    }
 
     if (!(toNodeId in this.gameNodes)) {
       throw `The node ${toNodeId} was not found by game.step`
     }
 
+    // A replay is timed as a whole.
+    const timing = this.config.instrument && !this.replaying;
+    const start = timing ? performance.now() : 0;
+
     // @type {AbstractGameNode}
     const nd = this.gameNodes[toNodeId];
     nd.exec(this, choice);
+    const executed = timing ? performance.now() : 0;
 
     if (!this.replaying) {
       // Persist state change history
@@ -414,10 +1059,30 @@ class Game {
       }
       this.stateHistory.push(diff);
 
+      if (this.nodeHistory.length === 1) {
+        // A new session, so any log of the last one goes.
+        this.compactHistoryLog();
+      } else {
+        this.logHistory({op: 'step', choice, diff, redo: isRedo});
+      }
       this.persist();
     }
+    const persisted = timing ? performance.now() : 0;
 
     this.gameView.showStoryElt();
+    if (this.config.instrument && !(this.gameView instanceof HeadlessView)) {
+      this.metrics.firstNodeShown();
+    }
+    if (timing) {
+      this.metrics.addStep({
+        nodeId: toNodeId,
+        exec: executed - start,
+        persist: persisted - executed,
+        render: performance.now() - persisted,
+        states: this.stateHistory.length,
+        stateBytes: JSON.stringify(this.stateHistory).length,
+      }, start);
+    }
   }
 
   getStoragePrefix() {
@@ -425,6 +1090,10 @@ class Game {
   }
 
   persist() {
+    if (this.config.persistence === 'log') {
+      // step, undo and redo log what they change instead.
+      return;
+    }
     const prefix = this.getStoragePrefix();
     localStorage.setItem(`${prefix}nodeHistory`, JSON.stringify(this.nodeHistory));
     localStorage.setItem(`${prefix}redoHistory`, JSON.stringify(this.redoHistory));
@@ -435,7 +1104,65 @@ class Game {
     }
   }
 
+  /** @private Returns the HistoryLog for the current game name and version. */
+  getHistoryLog() {
+    const prefix = this.getStoragePrefix();
+    if (!this.historyLog || this.historyLog.prefix !== prefix) {
+      this.historyLog = new HistoryLog(
+          prefix, this.config.logCompactInterval, () => this.historySnapshot());
+    }
+    return this.historyLog;
+  }
+
+  /** @private Returns the histories as persist() would save them. */
+  historySnapshot() {
+    const snapshot = {
+      nodeHistory: this.nodeHistory,
+      redoHistory: this.redoHistory,
+      initialState: this.initialState,
+    };
+    if (this.config.persistStateHistory) {
+      snapshot.stateHistory = this.stateHistory;
+      snapshot.redoStateHistory = this.redoStateHistory;
+    }
+    return snapshot;
+  }
+
+  /** @private Appends `record` to the history log, for config.persistence 'log'. */
+  logHistory(record) {
+    if (this.config.persistence !== 'log') {
+      return;
+    }
+    if (!this.config.persistStateHistory) {
+      delete record.diff;
+    }
+    this.getHistoryLog().append(record);
+  }
+
+  /** @private Starts the history log over from the histories as they are. */
+  compactHistoryLog() {
+    if (this.config.persistence === 'log') {
+      this.getHistoryLog().compact();
+    }
+  }
+
+  /**
+   * Writes what the history log has yet to, rather than waiting for
+   * the browser to be idle.
+   * @return {!Promise} resolves once it is written
+   */
+  flushHistory() {
+    return this.config.persistence === 'log' ? this.getHistoryLog().flush() : Promise.resolve();
+  }
+
+  /**
+   * Returns the saved histories; with config.persistence 'log', a
+   * Promise of them if the log is in IndexedDB.
+   */
   loadHistoryFromStorage() {
+    if (this.config.persistence === 'log' && this.getHistoryLog().exists()) {
+      return this.getHistoryLog().load();
+    }
     const prefix = this.getStoragePrefix();
     const nodes = localStorage.getItem(`${prefix}nodeHistory`);
     const states = localStorage.getItem(`${prefix}stateHistory`);
@@ -452,20 +1179,56 @@ class Game {
   }
 
   hasSavedSession() {
-    const { nodeHistory } = this.loadHistoryFromStorage();
+    const histories = this.loadHistoryFromStorage();
+    if (histories instanceof Promise) {
+      // The log is only written once there's a session.
+      return true;
+    }
+    const { nodeHistory } = histories;
     return Array.isArray(nodeHistory) && nodeHistory.length > 0;
   }
 
   restoreFromStorage() {
-    const { nodeHistory, stateHistory, redoHistory, redoStateHistory, initialState } = this.loadHistoryFromStorage();
-    if (nodeHistory && nodeHistory.length > 0) {
-      this.initialState = initialState || {};
-      this.replay(nodeHistory, Array.isArray(stateHistory) ? stateHistory : []);
-      this.redoHistory = Array.isArray(redoHistory) ? redoHistory : [];
-      this.redoStateHistory = Array.isArray(redoStateHistory) ? redoStateHistory : [];
+    const histories = this.loadHistoryFromStorage();
+    if (histories instanceof Promise) {
+      // The log is only written once there's a session, so say there
+      // is one and restore it once it's read.
+      this.restoring = histories.then(
+          (loaded) => this.restoreHistories(loaded) || this.startNew(),
+          () => this.startNew());
       return true;
     }
-    return false;
+    this.restoring = this.restoreHistories(histories);
+    return this.restoring !== null;
+  }
+
+  /**
+   * Restores the session in the histories, if there is one.
+   * @return {Promise} resolves once restored, or null if there's no session
+   * @private
+   */
+  restoreHistories({ nodeHistory, stateHistory, redoHistory, redoStateHistory, initialState }) {
+    if (nodeHistory && nodeHistory.length > 0) {
+      const restore = () => {
+        this.initialState = initialState || {};
+        this.replay(nodeHistory, Array.isArray(stateHistory) ? stateHistory : []);
+        this.redoHistory = Array.isArray(redoHistory) ? redoHistory : [];
+        this.redoStateHistory = Array.isArray(redoStateHistory) ? redoStateHistory : [];
+        // Also moves a session saved by persist() into the log.
+        this.compactHistoryLog();
+      };
+      // Replaying steps through every node at once, so they must all
+      // be here first.
+      const ids = nodeHistory.concat(Array.isArray(redoHistory) ? redoHistory : [])
+          .map((choice) => choice.nodeId);
+      const loading = this.loadNodes(ids);
+      if (loading) {
+        return loading.then(restore);
+      }
+      restore();
+      return Promise.resolve();
+    }
+    return null;
   }
 
   startNew() {
@@ -473,30 +1236,42 @@ class Game {
   }
 
   replay(history, states = []) {
+    const start = this.config.instrument ? performance.now() : 0;
     this.replaying = true;
     try {
       this.reset();
-      for (let i = 0; i < history.length; i++) {
-        const choice = history[i];
-        const diff = states[i] || {};
+      const replayStep = (i) => {
         // Note: step() will not update state history when replaying == true.
-        this.stateHistory.push(diff);
-        this.step(choice);
+        this.stateHistory.push(states[i] || {});
+        this.step(history[i]);
+      };
+      // Only the last node ends up on screen.
+      this.withoutRendering(() => {
+        for (let i = 0; i < history.length - 1; i++) {
+          replayStep(i);
+        }
+      });
+      if (history.length > 0) {
+        replayStep(history.length - 1);
       }
     } finally {
       this.replaying = false;
     }
+    if (this.config.instrument) {
+      this.metrics.addReplay(history.length, start);
+    }
   }
 
   undo() {
     if (this.nodeHistory.length > 1) {
-      const currentChoice = this.nodeHistory.pop();
+      const currentChoice = this.popHistory();
       const currentDiff = this.stateHistory.pop();
       this.redoHistory.push(currentChoice);
       this.redoStateHistory.push(currentDiff);
 
-      const lastChoice = this.nodeHistory.pop();
+      const lastChoice = this.popHistory();
       this.stateHistory.pop();
+      this.logHistory({op: 'undo'});
       // Re-run the last node
       this.step(lastChoice, /*isRedo=*/ true);
     }
@@ -507,11 +1282,156 @@ class Game {
     if (this.redoHistory.length > 0) {
       const choice = this.redoHistory.pop();
       const diff = this.redoStateHistory.pop();
+      this.logHistory({op: 'redo'});
       this.step(choice, /*isRedo=*/ true);
       this.persist();
     }
   }
 
+  /**
+   * Returns a new object with the state that initialState and the
+   * first `n` diffs of stateHistory add up to, adding the checkpoints
+   * it passes.
+   * @private
+   */
+  stateAfter(n) {
+    const interval = this.config.checkpointInterval || Infinity;
+    // Those past n may be of diffs undone since.
+    this.stateCheckpoints.length = Math.min(this.stateCheckpoints.length, Math.floor(n / interval));
+    const checkpoints = this.stateCheckpoints.length;
+    const state = Object.assign(
+        {}, checkpoints > 0 ? this.stateCheckpoints[checkpoints - 1] : this.initialState);
+    for (let i = checkpoints * interval; i < n; i++) {
+      Object.assign(state, this.stateHistory[i]);
+      if ((i + 1) % interval === 0) {
+        this.stateCheckpoints.push(Object.assign({}, state));
+      }
+    }
+    return state;
+  }
+
+  /**
+   * Appends `choice` to nodeHistory and counts the visit.
+   * @private
+   */
+  pushHistory(choice) {
+    this.nodeHistory.push(choice);
+    this.visitCounts.set(choice.nodeId, (this.visitCounts.get(choice.nodeId) || 0) + 1);
+  }
+
+  /**
+   * Removes the last choice from nodeHistory, and its visit from the
+   * counts.
+   * @private
+   */
+  popHistory() {
+    const choice = this.nodeHistory.pop();
+    const count = this.visitCounts.get(choice.nodeId) - 1;
+    if (count > 0) {
+      this.visitCounts.set(choice.nodeId, count);
+    } else {
+      this.visitCounts.delete(choice.nodeId);
+    }
+    return choice;
+  }
+
+  /**
+   * Notes that the nodes `nodeIds` are defined by the chunk at `url`,
+   * relative to game.js, which is imported when one is first needed.
+   * Called by the transpiler's chunked output.
+   */
+  addChunk(url, nodeIds) {
+    for (const id of nodeIds) {
+      this.chunkOfNode[id] = url;
+    }
+  }
+
+  /**
+   * Starts loading the chunks defining any of `nodeIds` that aren't
+   * loaded yet.
+   * @return {Promise|null} resolved once they are loaded, or null if
+   *     they are all here already
+   */
+  loadNodes(nodeIds) {
+    const loads = new Set();
+    for (const nodeId of nodeIds) {
+      const id = this.resolveScope(nodeId);
+      const url = this.chunkOfNode[id];
+      if (url && !(id in this.gameNodes) && !this.loadedChunks.has(url)) {
+        loads.add(this.loadChunk(url));
+      }
+    }
+    return loads.size > 0 ? Promise.all(loads) : null;
+  }
+
+  /** @private */
+  loadChunk(url) {
+    if (!this.chunkLoads[url]) {
+      this.chunkLoads[url] = import(url).then(
+          () => { this.loadedChunks.add(url); },
+          (e) => {
+            // Let the next step try again.
+            delete this.chunkLoads[url];
+            throw e;
+          });
+    }
+    return this.chunkLoads[url];
+  }
+
+  /**
+   * Notes the !img urls of nodes, by node id. Called by the transpiled
+   * files.
+   */
+  addImages(nodeImages) {
+    Object.assign(this.nodeImages, nodeImages);
+  }
+
+  /** Notes the variants of images, by url. Called by image-variants.js. */
+  addImageVariants(imageVariants) {
+    Object.assign(this.imageVariants, imageVariants);
+  }
+
+  /**
+   * Returns the srcset listing the variants of the image at `url`, or
+   * '' if it has none.
+   */
+  srcset(url) {
+    const variants = this.imageVariants[url];
+    return variants ? variants.map(([width, variant]) => `${variant} ${width}w`).join(', ') : '';
+  }
+
+  /**
+   * Loads the chunks and images of `nodeIds` in the background, e.g.
+   * for the choices on screen.
+   */
+  prefetch(nodeIds) {
+    if (this.gameView instanceof HeadlessView) {
+      // Nothing on screen to click.
+      return;
+    }
+    const loading = this.loadNodes(nodeIds);
+    if (loading) {
+      loading.catch(() => {});
+    }
+    if (typeof Image === 'undefined') {
+      return;
+    }
+    const urls = nodeIds.flatMap((id) => this.nodeImages[this.resolveScope(id)] || []);
+    if (urls.length > 0) {
+      if (!this.imagePrefetcher) {
+        this.imagePrefetcher = new ImagePrefetcher(
+            this.config.imagePrefetchLimit, this.config.imageCacheSize, (image, url) => {
+              const srcset = this.srcset(url);
+              if (srcset) {
+                image.sizes = this.gameView.bannerSizes();
+                image.srcset = srcset;
+              }
+            });
+      }
+      this.imagePrefetcher.prefetch(urls);
+    }
+  }
+
   getNode(id) {
     return this.gameNodes[this.resolveScope(id)];
   }
@@ -531,13 +1451,13 @@ class Game {
   }
 
   visitCount(nodeId) {
-    const countVisits = (id) => this.nodeHistory.filter((choice) => choice.nodeId === id).length;
+    const countVisits = (id) => this.visitCounts.get(id) || 0;
     if (nodeId === undefined) {
       return countVisits(this.currentNode())
     }
     const id = this.resolveScope(nodeId);
     const nd = this.gameNodes[id];
-    if (!nd) {
+    if (!nd && !(id in this.chunkOfNode)) {
       throw `${nodeId} (${id}) not found.`;
     }
     return countVisits(id);
@@ -546,22 +1466,46 @@ class Game {
   isVisited(nodeId) {
     const id = this.resolveScope(nodeId);
     const nd = this.gameNodes[id];
-    if (!nd) {
+    if (!nd && !(id in this.chunkOfNode)) {
       throw `${nodeId} (${id}) not found.`;
     }
     return this.visitCount(id) > 0
   }
 
   runNodes(choiceList) {
-    for (let choice of choiceList.slice(0, -1)) {
-      this.step(choice)
-      this.gameView.removeChoices()
+    const loading = this.loadNodes(choiceList.map((choice) => choice.nodeId));
+    if (loading) {
+      return loading.then(() => this.runNodes(choiceList));
     }
-    if (choiceList) {
+    this.withoutRendering(() => {
+      for (let choice of choiceList.slice(0, -1)) {
+        this.step(choice)
+      }
+    })
+    if (choiceList.length > 0) {
       this.step(choiceList.slice(-1)[0])
     }
   }
 
+  /**
+   * Runs `fn` with a view that shows nothing, then brings the real
+   * view up to date with the banner image.
+   * @private
+   */
+  withoutRendering(fn) {
+    const view = this.gameView;
+    const headless = new HeadlessView();
+    this.gameView = headless;
+    try {
+      fn();
+    } finally {
+      this.gameView = view;
+      if (headless.imgUrl !== null) {
+        view.img(headless.imgUrl, headless.imgSrcset);
+      }
+    }
+  }
+
   /**
    * @param {Choice} choice
    */
@@ -585,12 +1529,34 @@ class Game {
     this.gameView.sayWith(styleCode, txt)
   }
 
+  /**
+   * Says paragraphs of HTML as is, for text the transpiler has
+   * already rendered.
+   * @param {string} html
+   * @param {string[]} linkTargets the nodes the inline links in html go to
+   */
+  sayHtml(html, linkTargets = []) {
+    this.prefetch(linkTargets)
+    this.gameView.sayHtml(html)
+  }
+
+  sayWithHtml(styleCode, html, linkTargets = []) {
+    this.prefetch(linkTargets)
+    this.gameView.sayWithHtml(styleCode, html)
+  }
+
   choice(nodeId, txt, data = []) {
     return new Choice(this.resolveScope(nodeId), txt, data)
   }
 
+  /** Like {@link choice}, for text the transpiler has already rendered. */
+  choiceHtml(nodeId, html, data = []) {
+    return new Choice(this.resolveScope(nodeId), html, data, true)
+  }
+
   chooseFrom(choices, wrapChoices) {
     const game = this
+    this.prefetch(choices.filter((choice) => choice && choice.nodeId).map((choice) => choice.nodeId))
     this.gameView.displayChoices(game, choices, wrapChoices)
   }
 
@@ -607,7 +1573,10 @@ class Game {
   }
 
   img(url) {
-    this.gameView.img(url)
+    if (this.imagePrefetcher) {
+      this.imagePrefetcher.touch(url);
+    }
+    this.gameView.img(url, this.srcset(url))
   }
 
   inventory(returnToNodeId) {
@@ -628,6 +1597,28 @@ class Game {
 export const game = new Game();
 window.game = game;
 
+// Short names for the calls in the transpiler's --compact output. Each
+// does exactly what the long form in the normal output does.
+
+/** Defines the node `id`, which puts the player there and runs `execFn`. */
+export function $n(id, execFn) {
+  game.gameNodes[id] = new GameNode(id).setExecFn(function (game, choice) {
+    game.player.location = id;
+    return execFn.call(this, game, choice);
+  });
+}
+export const $s = (txt) => game.say(txt);
+export const $w = (styleCode, txt) => game.sayWith(styleCode, txt);
+export const $h = (html, linkTargets) => game.sayHtml(html, linkTargets);
+export const $wh = (styleCode, html, linkTargets) => game.sayWithHtml(styleCode, html, linkTargets);
+export const $c = (...args) => game.choice(...args);
+export const $ch = (...args) => game.choiceHtml(...args);
+export const $o = (...choices) => game.choose(...choices);
+export const $ow = (...choices) => game.chooseWrap(...choices);
+export const $on = (...choices) => game.chooseNowrap(...choices);
+export const $i = (url) => game.img(url);
+export const $v = (nodeId) => game.visitCount(nodeId);
+
 export function visited(nodeId) {
   return game.isVisited(nodeId)
 }
@@ -644,7 +1635,8 @@ function applyMarkdown(s) {
           .replace(/~~(.*?)~~/g, '<del>$1</del>')
           .replace(/\[(.*?)\]\(>(.*?)\)/g, (match, text, nodeId) => {
             const resolvedId = game.resolveScope('=' + nodeId + '=');
-            return `<span class="inline-link" onclick="game.step(game.choice('${resolvedId}', '${text.replace(/'/g, "\\'")}'))">${text}</span>`;
+            game.prefetch([resolvedId]);
+            return `<span class="inline-link" data-node="${resolvedId}">${text}</span>`;
           });
 }
 
@@ -3,36 +3,109 @@
 
 load("@rules_python//python:py_binary.bzl", "py_binary")
 load("@rules_pkg//pkg:tar.bzl", "pkg_tar")
-load("@rules_pkg//pkg:zip.bzl", "pkg_zip")
-load("@rules_pkg//pkg:mappings.bzl", "pkg_files", "strip_prefix")
 load("@rules_shell//shell:sh_binary.bzl", "sh_binary")
 
 ## Transpile
 
-def _transpile_impl(ctx):
+# Run the transpiler as a persistent worker speaking the JSON worker
+# protocol, so a warm JVM handles every .9l file instead of paying for
+# a cold start (and Guava/JCommander class loading) per file.
+_WORKER_REQUIREMENTS = {
+    "supports-workers": "1",
+    "requires-worker-protocol": "json",
+}
+
+def _add_transpile_args(ctx, args, prefix):
+    # Adds the sources, and their JavaScript declared under prefix, and
+    # the flags of how to transpile them. Returns the JavaScript.
     outputs = []
     for src in ctx.files.srcs:
         # Declare the output file with the .js extension.
         # Use `src.basename` to get just the filename,
         # preventing the path from being duplicated.
-        out = ctx.actions.declare_file(src.basename + ".js")
-
-        # Register an action to run the `NineLives` command.
-        ctx.actions.run(
-            executable = ctx.executable._transpiler,
-            inputs = [src, ctx.executable._transpiler],
-            outputs = [out],
-            arguments = [
-                "--in",
-                src.path,
-                "--out",
-                out.path,
-            ],
-        )
+        out = ctx.actions.declare_file(prefix + src.basename + ".js")
+        args.add("--in", src)
+        args.add("--out", out)
         outputs.append(out)
+        if ctx.attr.chunked:
+            # Named by NineLives; see BatchTranspiler.chunkPath.
+            outputs.append(ctx.actions.declare_file(prefix + src.basename + ".chunk.js"))
+
+    if ctx.attr.compact:
+        args.add("--compact")
+    if ctx.attr.chunked:
+        args.add("--chunked")
+    if ctx.attr.instrument:
+        args.add("--instrument")
+    if ctx.attr.drop_unreachable_nodes:
+        args.add("--drop_unreachable_nodes")
+
+    # Persistent workers receive their arguments through a flag file,
+    # which NineLives (via JCommander's @file expansion) also accepts
+    # when the action runs without a worker.
+    args.use_param_file("@%s", use_always = True)
+    args.set_param_file_format("multiline")
+    return outputs
 
-    # Return a DefaultInfo provider with the generated files.
-    return [DefaultInfo(files = depset(outputs))]
+def _transpile_impl(ctx):
+    # A single action transpiles the whole story; NineLives compiles the
+    # files in parallel and reports every file's errors together.
+    args = ctx.actions.args()
+
+    # Release builds are in a directory of their own so their files
+    # keep the names the story imports.
+    prefix = ctx.label.name + "/" if ctx.attr.drop_unreachable_nodes else ""
+    outputs = _add_transpile_args(ctx, args, prefix)
+
+    if ctx.attr.drop_unreachable_nodes:
+        # What was left out, and where it is in the sources.
+        report = ctx.actions.declare_file(ctx.label.name + ".dropped.txt")
+        args.add("--dropped_nodes_report", report)
+        output_groups = {"dropped_nodes": depset([report])}
+    else:
+        # The story graph, for tools; see "Story Graph" in doc/reference.md.
+        report = ctx.actions.declare_file(ctx.label.name + ".graph.json")
+        args.add("--graph", report)
+        output_groups = {"graph": depset([report])}
+
+    # Register an action to run the `NineLives` command.
+    ctx.actions.run(
+        executable = ctx.executable._transpiler,
+        inputs = ctx.files.srcs,
+        outputs = outputs + [report],
+        arguments = [args],
+        mnemonic = "NineLivesTranspile",
+        progress_message = "Transpiling %d files for %%{label}" % len(outputs),
+        execution_requirements = _WORKER_REQUIREMENTS,
+    )
+
+    # Where the time went and how big each node came out; see --stats.
+    # Measured by a transpile of its own, whose JavaScript is thrown
+    # away, so that only builds asking for the stats pay for timing
+    # each line: Bazel runs it for --output_groups=stats alone.
+    stats_args = ctx.actions.args()
+    stats_outputs = _add_transpile_args(ctx, stats_args, ctx.label.name + ".stats/")
+    stats = ctx.actions.declare_file(ctx.label.name + ".stats.json")
+    stats_args.add("--stats", stats)
+    output_groups["stats"] = depset([stats])
+    ctx.actions.run(
+        executable = ctx.executable._transpiler,
+        inputs = ctx.files.srcs,
+        outputs = stats_outputs + [stats],
+        arguments = [stats_args],
+        mnemonic = "NineLivesTranspileStats",
+        progress_message = "Measuring the transpiling of %{label}",
+        execution_requirements = _WORKER_REQUIREMENTS,
+    )
+
+    # Return a DefaultInfo provider with the generated files. The graph
+    # or report come from the same action but are only requested by
+    # tools, with --output_groups=graph or dropped_nodes; the stats
+    # with --output_groups=stats.
+    return [
+        DefaultInfo(files = depset(outputs)),
+        OutputGroupInfo(**output_groups),
+    ]
 
 
 _transpile = rule(
@@ -43,6 +116,22 @@ _transpile = rule(
             mandatory = True,
             doc = "The list of 9c files to transpile",
         ),
+        "drop_unreachable_nodes": attr.bool(
+            default = False,
+            doc = "Leave out the nodes nothing leads to. srcs must be the whole story.",
+        ),
+        "compact": attr.bool(
+            default = False,
+            doc = "Write smaller JavaScript that does the same, for release.",
+        ),
+        "chunked": attr.bool(
+            default = False,
+            doc = "Put all but the first node in a .chunk.js per file, loaded on demand.",
+        ),
+        "instrument": attr.bool(
+            default = False,
+            doc = "Time each node with performance marks, for development.",
+        ),
         "_transpiler": attr.label(
             executable = True,
             cfg = "exec",
@@ -52,7 +141,10 @@ _transpile = rule(
 )
 
 def _story_imports_runfile_impl(ctx):
-    out = ctx.actions.declare_file("story-imports.js")
+    # In a directory of its own if asked, so a package can have more
+    # than one story-imports.js.
+    prefix = ctx.label.name + "/" if ctx.attr.own_dir else ""
+    out = ctx.actions.declare_file(prefix + "story-imports.js")
 
     # 1. Gather the depset of all files from dependencies.
     # This  flattens the list of depsets into a single depset of File objects.
@@ -66,9 +158,12 @@ def _story_imports_runfile_impl(ctx):
     # 2. Use a list comprehension to create a list of all import statements.
     #    We use `f.basename` to get just the file name, since the story-imports.js
     #    file is in the same package next to the transpiled sources.
+    #    Chunks are left out: game.js imports them when they are needed.
+    #    So is anything that isn't a module, like a directory of images.
     import_statements = [
         """import \"./%s\";""" % f.basename
         for f in files_list
+        if f.basename.endswith(".js") and not f.basename.endswith(".chunk.js")
     ]
 
     # 3. Join the statements into a single string.
@@ -95,6 +190,10 @@ _story_imports_runfile = rule(
             mandatory = True,
             doc = "The js files generate imports for.",
         ),
+        "own_dir": attr.bool(
+            default = False,
+            doc = "Write story-imports.js in a directory named after the target.",
+        ),
     }
 )
 
@@ -108,9 +207,15 @@ def _game_html_runfiles_impl(ctx):
 window.GAME_CONFIG = {
   gameName: "%s",
   gameVersion: "%s",
-  persistStateHistory: %s
+  persistStateHistory: %s,
+  instrument: %s
 };
-""" % (ctx.attr.game_name, ctx.attr.game_version, "true" if ctx.attr.persist_state_history else "false")
+""" % (
+        ctx.attr.game_name,
+        ctx.attr.game_version,
+        "true" if ctx.attr.persist_state_history else "false",
+        "true" if ctx.attr.instrument else "false",
+    )
     ctx.actions.write(env_js, content)
     outputs.append(env_js)
 
@@ -136,12 +241,197 @@ _game_html_runfiles = rule(
         "game_name": attr.string(mandatory = True),
         "game_version": attr.string(default = "1.0.0"),
         "persist_state_history": attr.bool(default = True),
+        "instrument": attr.bool(default = False),
+    },
+)
+
+## Release
+
+# The static files ImageOptimizer makes smaller.
+_IMAGE_EXTENSIONS = ["png", "jpg", "jpeg"]
+
+def _package_path(f):
+    # Where a static file goes in the package: relative to the package
+    # that owns it, as pkg_files' strip_prefix.from_pkg() would put it.
+    package = f.owner.package
+    if package and f.short_path.startswith(package + "/"):
+        return f.short_path[len(package) + 1:]
+    return f.basename
+
+def _optimize_images_impl(ctx):
+    images = [f for f in ctx.files.srcs if f.extension.lower() in _IMAGE_EXTENSIONS]
+
+    # The images and their variants, at their paths in the story; which
+    # variants there are depends on the images.
+    out_dir = ctx.actions.declare_directory(ctx.label.name)
+    variants_js = ctx.actions.declare_file(ctx.label.name + "_variants/image-variants.js")
+    args = ctx.actions.args()
+    for f in images:
+        args.add("--image", "%s=%s" % (_package_path(f), f.path))
+    args.add("--out_dir", out_dir.path)
+    args.add("--variants_js", variants_js)
+    args.add("--quality", str(ctx.attr.quality / 100))
+    args.add("--widths", ",".join([str(w) for w in ctx.attr.widths]))
+
+    ctx.actions.run(
+        executable = ctx.executable._optimizer,
+        inputs = images,
+        outputs = [out_dir, variants_js],
+        arguments = [args],
+        mnemonic = "NineLivesOptimizeImages",
+        progress_message = "Optimizing %d images for %%{label}" % len(images),
+    )
+    return [
+        DefaultInfo(files = depset([out_dir, variants_js])),
+        # Just the images, for a release whose image-variants.js is
+        # bundled.
+        OutputGroupInfo(images = depset([out_dir])),
+    ]
+
+_optimize_images = rule(
+    implementation = _optimize_images_impl,
+    attrs = {
+        "srcs": attr.label_list(
+            allow_files = True,
+            doc = "The static files; the PNG and JPEG images among them are optimized.",
+        ),
+        "quality": attr.int(
+            default = 80,
+            doc = "The quality of JPEGs, from 0 to 100.",
+        ),
+        "widths": attr.int_list(
+            default = [480, 960],
+            doc = "The widths of the smaller variants of each image, in pixels.",
+        ),
+        "_optimizer": attr.label(
+            executable = True,
+            cfg = "exec",
+            default = "//java/com/tzbits/ninelives:ImageOptimizer",
+        ),
+    },
+)
+
+def _release_package_impl(ctx):
+    out = ctx.actions.declare_file(ctx.label.name + ".zip")
+    manifest = ctx.actions.declare_file(ctx.label.name + ".asset-manifest.json")
+    args = ctx.actions.args()
+    for f in ctx.files.static:
+        if ctx.attr.images and f.extension.lower() in _IMAGE_EXTENSIONS:
+            # Packaged optimized instead.
+            continue
+        args.add("--file", "%s=%s" % (_package_path(f), f.path))
+    for f in ctx.files.srcs + ctx.files.images:
+        if f.is_directory:
+            args.add("--dir", f.path)
+        else:
+            # The transpiled files, story-imports.js, image-variants.js
+            # and the game files all go next to index.html.
+            args.add("--file", "%s=%s" % (f.basename, f.path))
+    args.add("--out", out)
+    args.add("--manifest", manifest)
+
+    ctx.actions.run(
+        executable = ctx.executable._packager,
+        inputs = ctx.files.static + ctx.files.srcs + ctx.files.images,
+        outputs = [out, manifest],
+        arguments = [args],
+        mnemonic = "NineLivesPackage",
+        progress_message = "Packaging %{label}",
+    )
+    return [
+        DefaultInfo(files = depset([out])),
+        OutputGroupInfo(manifest = depset([manifest])),
+    ]
+
+_release_package = rule(
+    implementation = _release_package_impl,
+    attrs = {
+        "static": attr.label_list(
+            allow_files = True,
+            doc = "Files that keep their paths relative to their package.",
+        ),
+        "srcs": attr.label_list(
+            allow_files = True,
+            mandatory = True,
+            doc = "Files that go next to index.html.",
+        ),
+        "images": attr.label(
+            doc = "Optimized images, replacing the static ones; see _optimize_images.",
+        ),
+        "_packager": attr.label(
+            executable = True,
+            cfg = "exec",
+            default = "//java/com/tzbits/ninelives:ReleasePackager",
+        ),
+    },
+)
+
+def _bundle_impl(ctx):
+    # The page, the bundle unless it is inlined, and the files Bundler
+    # copies as they are, like game.css.
+    index = ctx.actions.declare_file(ctx.label.name + "/index.html")
+    outputs = [index]
+    if not ctx.attr.inline:
+        outputs.append(ctx.actions.declare_file(ctx.label.name + "/bundle.js"))
+    args = ctx.actions.args()
+    inputs = []
+    for f in ctx.files.srcs:
+        if f.is_directory:
+            # Images; packaged next to the bundle instead.
+            continue
+        inputs.append(f)
+        args.add("--file", "%s=%s" % (f.basename, f.path))
+        if f.extension not in ["js", "html"]:
+            outputs.append(ctx.actions.declare_file(ctx.label.name + "/" + f.basename))
+    args.add("--out_dir", index.dirname)
+    if ctx.attr.inline:
+        args.add("--inline")
+
+    ctx.actions.run(
+        executable = ctx.executable._bundler,
+        inputs = inputs,
+        outputs = outputs,
+        arguments = [args],
+        mnemonic = "NineLivesBundle",
+        progress_message = "Bundling %{label}",
+    )
+    return [DefaultInfo(files = depset(outputs))]
+
+_bundle = rule(
+    implementation = _bundle_impl,
+    attrs = {
+        "srcs": attr.label_list(
+            allow_files = True,
+            mandatory = True,
+            doc = "index.html, the modules it imports and the files that go next to it.",
+        ),
+        "inline": attr.bool(
+            default = False,
+            doc = "Put the bundle in index.html instead of bundle.js.",
+        ),
+        "_bundler": attr.label(
+            executable = True,
+            cfg = "exec",
+            default = "//java/com/tzbits/ninelives:Bundler",
+        ),
     },
 )
 
 ## Story macro
 
-def _ninelives_story_macro_impl(name, visibility, srcs, static, story_js=None, game_version="1.0.0"):
+def _ninelives_story_macro_impl(
+        name,
+        visibility,
+        srcs,
+        static,
+        story_js=None,
+        game_version="1.0.0",
+        instrument=False,
+        optimize_images=True,
+        image_quality=80,
+        image_widths=[480, 960],
+        bundle=False,
+        bundle_inline=False):
     """
     Args:
         name: The name of the story.
@@ -149,11 +439,32 @@ def _ninelives_story_macro_impl(name, visibility, srcs, static, story_js=None, g
         static: A list of static files (e.g., HTML, CSS, images).
         story_js: Optional custom story code that is loaded by the index.html file.
         game_version: Version string for the game.
+        instrument: Whether the development builds record game.metrics
+            and time each node. Release builds never do.
+        optimize_images: Whether to recompress the PNG and JPEG images
+            in static for release and make narrower variants of them.
+        image_quality: The quality of the JPEGs that makes, from 0 to 100.
+        image_widths: The widths of the narrower variants, in pixels.
+        bundle: Whether the release zip has the story's modules bundled
+            into one bundle.js, which <name>_bundle builds either way.
+        bundle_inline: Whether the bundle goes in index.html instead.
     """
     transpiled_target = ":" + name + "_transpiled"
     _transpile(
         name = transpiled_target[1:],
         srcs = srcs,
+        instrument = instrument,
+    )
+
+    # The same files, compacted and chunked, without the nodes the
+    # player can never reach.
+    release_transpiled_target = ":" + name + "_release_transpiled"
+    _transpile(
+        name = release_transpiled_target[1:],
+        srcs = srcs,
+        drop_unreachable_nodes = True,
+        compact = True,
+        chunked = True,
     )
 
     story_imports_runfile_target = ":" + name + "_story_imports_js"
@@ -187,6 +498,7 @@ def _ninelives_story_macro_impl(name, visibility, srcs, static, story_js=None, g
         game_name = name,
         game_version = game_version,
         persist_state_history = False,
+        instrument = instrument,
     )
 
     # Define a filegroup to collect all files to be accessed as runfiles
@@ -201,23 +513,6 @@ def _ninelives_story_macro_impl(name, visibility, srcs, static, story_js=None, g
         ],
     )
 
-    static_files_target = ":" + name + "_static_files"
-    pkg_files(
-        name = static_files_target[1:],
-        srcs = static,
-        strip_prefix = strip_prefix.from_pkg(),
-    )
-
-    release_files_target = ":" + name + "_release_files"
-    pkg_files(
-        name = release_files_target[1:],
-        srcs = [
-            transpiled_target,
-            story_imports_runfile_target,
-            story_game_html_runfiles_target,
-        ],
-    )
-
     dev_runfiles_target = ":" + name + "_dev_story"
     native.filegroup(
         name = dev_runfiles_target[1:],
@@ -260,26 +555,98 @@ def _ninelives_story_macro_impl(name, visibility, srcs, static, story_js=None, g
         ],
     )
 
-    # Define the dev server using entr for automatic reloads.
+    # Define the dev server, which serves the dev build from NineLives
+    # --serve, transpiling the workspace sources as they change and
+    # reloading the page.
     sh_binary(
         name = name + "_dev_server",
         srcs = ["//tools:local_dev_server_bin.sh"],
         data = [
-            "//third_party:entr_tool",
-            ":" + name + "_dev_local_server",
+            "//java/com/tzbits/ninelives:NineLives",
+            dev_runfiles_target,
+            story_imports_runfile_target,
         ] + srcs + ([story_js] if story_js else []),
         args = [
-            "$(rootpath //third_party:entr_tool)",
-            "//%s:%s_dev_local_server" % (native.package_name(), name),
-        ] + ["$(location %s)" % s for s in srcs] + (["$(location %s)" % story_js] if story_js else []),
+            "$(rootpath //java/com/tzbits/ninelives:NineLives)",
+            "$(rootpath %s)" % story_imports_runfile_target,
+        ] + (["--instrument"] if instrument else []) +
+        ["$(location %s)" % s for s in srcs] + (["$(location %s)" % story_js] if story_js else []),
     )
 
-    pkg_zip(
-    name = name + "_release",
-    srcs = [
-        static_files_target,
-        release_files_target,
-    ],
+    release_images_target = None
+    release_story_imports_target = story_imports_runfile_target
+    if optimize_images:
+        # The images, smaller, with narrower variants listed in
+        # image-variants.js, which the release story-imports.js imports.
+        release_images_target = ":" + name + "_release_images"
+        _optimize_images(
+            name = release_images_target[1:],
+            srcs = static,
+            quality = image_quality,
+            widths = image_widths,
+        )
+        release_story_imports_target = ":" + name + "_release_story_imports_js"
+        _story_imports_runfile(
+            name = release_story_imports_target[1:],
+            deps = [
+                release_transpiled_target,
+                release_images_target,
+            ],
+            own_dir = True,
+        )
+
+    # The story's modules linked into one script, for one request
+    # instead of one per module; see Bundler. Not chunked, since chunks
+    # are modules of their own that would import a second game.js.
+    bundle_transpiled_target = ":" + name + "_bundle_transpiled"
+    _transpile(
+        name = bundle_transpiled_target[1:],
+        srcs = srcs,
+        drop_unreachable_nodes = True,
+        compact = True,
+    )
+    bundle_story_imports_target = ":" + name + "_bundle_story_imports_js"
+    _story_imports_runfile(
+        name = bundle_story_imports_target[1:],
+        deps = [bundle_transpiled_target] + (
+            [release_images_target] if optimize_images else []),
+        own_dir = True,
+    )
+    bundle_target = ":" + name + "_bundle"
+    _bundle(
+        name = bundle_target[1:],
+        srcs = [
+            bundle_transpiled_target,
+            bundle_story_imports_target,
+            story_game_html_runfiles_target,
+        ] + ([release_images_target] if optimize_images else []),
+        inline = bundle_inline,
+    )
+
+    release_srcs = [
+        release_transpiled_target,
+        release_story_imports_target,
+        story_game_html_runfiles_target,
+    ]
+    release_images = release_images_target
+    if bundle:
+        release_srcs = [bundle_target]
+        if optimize_images:
+            # The images alone: their image-variants.js is in the bundle.
+            release_images = ":" + name + "_bundle_images"
+            native.filegroup(
+                name = release_images[1:],
+                srcs = [release_images_target],
+                output_group = "images",
+            )
+
+    # The zip to deploy, with content-hashed names, gzipped siblings
+    # and an asset manifest; see ReleasePackager.
+    _release_package(
+        name = name + "_release",
+        static = static,
+        srcs = release_srcs,
+        images = release_images,
     )
 
 
@@ -304,6 +671,30 @@ ninelives_story = macro(
             default = "1.0.0",
             configurable = False,
         ),
+        "instrument": attr.bool(
+            default = False,
+            configurable = False,
+        ),
+        "optimize_images": attr.bool(
+            default = True,
+            configurable = False,
+        ),
+        "image_quality": attr.int(
+            default = 80,
+            configurable = False,
+        ),
+        "image_widths": attr.int_list(
+            default = [480, 960],
+            configurable = False,
+        ),
+        "bundle": attr.bool(
+            default = False,
+            configurable = False,
+        ),
+        "bundle_inline": attr.bool(
+            default = False,
+            configurable = False,
+        ),
     },
     implementation = _ninelives_story_macro_impl,
 )
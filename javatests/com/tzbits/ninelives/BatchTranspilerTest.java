@@ -0,0 +1,156 @@
+package com.tzbits.ninelives;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.List;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class BatchTranspilerTest {
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path write(String name, String content) throws IOException {
+    Path path = tmp.getRoot().toPath().resolve(name);
+    Files.writeString(path, content, StandardCharsets.UTF_8);
+    return path;
+  }
+
+  @Test
+  public void run_transpilesEveryFileAndIsolatesFailures() throws IOException {
+    Path root = tmp.getRoot().toPath();
+    ImmutableList<BatchTranspiler.Job> jobs = ImmutableList.of(
+        new BatchTranspiler.Job(write("a.9l", "=a=\nHello.\n"), root.resolve("a.9l.js")),
+        new BatchTranspiler.Job(write("b.9l", "=b=\n>c ? nope\n"), root.resolve("b.9l.js")),
+        new BatchTranspiler.Job(write("c.9l", "=c=\nBye.\n"), root.resolve("c.9l.js")));
+
+    ImmutableList<BatchTranspiler.Failure> failures = BatchTranspiler.run(jobs, 4);
+
+    assertThat(failures).hasSize(1);
+    assertThat(failures.getFirst().job()).isEqualTo(jobs.get(1));
+    assertThat(failures.getFirst().diagnostic(false))
+        .isEqualTo(jobs.get(1).in() + ":2: Conditional choice (?) is missing ';'.");
+    assertThat(Files.readString(root.resolve("a.9l.js")))
+        .isEqualTo(Transpiler.forSource("=a=\nHello.\n").transpile());
+    assertThat(Files.readString(root.resolve("c.9l.js"))).contains("game.sayHtml(`<p>Bye.</p>`);");
+    assertThat(Files.exists(root.resolve("b.9l.js"))).isFalse();
+  }
+
+  @Test
+  public void run_writesOutputsWithTheDefaultPermissions() throws IOException {
+    Path root = tmp.getRoot().toPath();
+    if (Files.getFileAttributeView(root, PosixFileAttributeView.class) == null) {
+      return;
+    }
+    BatchTranspiler.Job job =
+        new BatchTranspiler.Job(write("a.9l", "=a=\nHello.\n"), root.resolve("a.9l.js"));
+
+    assertThat(BatchTranspiler.run(ImmutableList.of(job), 1)).isEmpty();
+
+    Path plain = Files.createFile(root.resolve("plain.txt"));
+    assertThat(Files.getPosixFilePermissions(job.out()))
+        .isEqualTo(Files.getPosixFilePermissions(plain));
+  }
+
+  @Test
+  public void run_leavesUnchangedOutputAlone() throws IOException {
+    Path root = tmp.getRoot().toPath();
+    BatchTranspiler.Job job =
+        new BatchTranspiler.Job(write("a.9l", "=a=\nHello.\n"), root.resolve("a.9l.js"));
+    assertThat(BatchTranspiler.run(ImmutableList.of(job), 1)).isEmpty();
+    FileTime old = FileTime.fromMillis(0);
+    Files.setLastModifiedTime(job.out(), old);
+
+    assertThat(BatchTranspiler.run(ImmutableList.of(job), 1)).isEmpty();
+    assertThat(Files.getLastModifiedTime(job.out())).isEqualTo(old);
+
+    write("a.9l", "=a=\nGoodbye.\n");
+    assertThat(BatchTranspiler.run(ImmutableList.of(job), 1)).isEmpty();
+    assertThat(Files.getLastModifiedTime(job.out())).isNotEqualTo(old);
+    assertThat(Files.readString(job.out())).contains("Goodbye.");
+  }
+
+  @Test
+  public void run_chunkedLeavesOnlyTheStartNodeInTheEntryFile() throws IOException {
+    Path root = tmp.getRoot().toPath();
+    String story = "=0=\n| game.state.x = 1;\n>hall Go.\n\n=hall=\nA hall.\n";
+    ImmutableList<BatchTranspiler.Job> jobs = ImmutableList.of(
+        new BatchTranspiler.Job(write("a.9l", "!choices nowrap\n" + story), root.resolve("a.9l.js")),
+        new BatchTranspiler.Job(write("b.9l", "| let x = 1;\n" + story), root.resolve("b.9l.js")));
+
+    assertThat(BatchTranspiler.run(jobs, 1,
+        BatchTranspiler.Options.builder().chunked(true).build())).isEmpty();
+
+    String entry = Files.readString(root.resolve("a.9l.js"));
+    String chunk = Files.readString(root.resolve("a.9l.chunk.js"));
+    assertThat(BatchTranspiler.chunkPath(jobs.get(0).out()))
+        .isEqualTo(root.resolve("a.9l.chunk.js"));
+    assertThat(entry).contains("game.wrapChoices = false;");
+    assertThat(entry).contains("game.state.x = 1;");
+    assertThat(entry).contains("game.addChunk(\"./a.9l.chunk.js\", [\"=g:hall=\"]);");
+    assertThat(entry).doesNotContain("A hall.");
+    assertThat(chunk).contains("A hall.");
+    assertThat(chunk).doesNotContain("game.wrapChoices");
+    // Nodes in b.9l.chunk.js couldn't see x.
+    assertThat(Files.readString(root.resolve("b.9l.js"))).contains("A hall.");
+    assertThat(Files.readString(root.resolve("b.9l.js"))).doesNotContain("addChunk");
+  }
+
+  @Test
+  public void run_recordsStatsAcrossFiles() throws IOException {
+    Path root = tmp.getRoot().toPath();
+    ImmutableList<BatchTranspiler.Job> jobs = ImmutableList.of(
+        new BatchTranspiler.Job(
+            write("a.9l", "# a\n=0=\nShort.\n>big Go.\n>0 Stay.\n"), root.resolve("a.9l.js")),
+        new BatchTranspiler.Job(
+            write("b.9l", "=big=\n" + "A much longer paragraph.\n\n".repeat(10)),
+            root.resolve("b.9l.js")));
+    CompileStats stats = CompileStats.create();
+    BatchTranspiler.Options options = BatchTranspiler.Options.builder().stats(stats).build();
+
+    assertThat(BatchTranspiler.run(jobs, 2, options)).isEmpty();
+    // Transpiling a file again replaces what was measured of it.
+    assertThat(BatchTranspiler.run(jobs.subList(1, 2), 1, options)).isEmpty();
+
+    Map<?, ?> json = (Map<?, ?>) Json.parse(stats.toJson());
+    assertThat(json.get("files")).isEqualTo(2L);
+    assertThat(json.get("nodes")).isEqualTo(2L);
+    assertThat(json.get("choices")).isEqualTo(2L);
+    Map<?, ?> lines = (Map<?, ?>) json.get("lines");
+    assertThat(lines.get("comment")).isEqualTo(1L);
+    assertThat(lines.get("text")).isEqualTo(21L);
+    assertThat(((Map<?, ?>) json.get("ms")).keySet())
+        .containsExactly("read", "classify", "transpile", "escape", "write", "total").inOrder();
+    List<?> nodeSizes = (List<?>) json.get("nodeSizes");
+    Map<?, ?> largest = (Map<?, ?>) nodeSizes.get(0);
+    assertThat(largest.get("id")).isEqualTo("=g:big=");
+    assertThat(largest.get("file")).isEqualTo(jobs.get(1).in().toString());
+    assertThat(largest.get("line")).isEqualTo(1L);
+    assertThat(((Map<?, ?>) nodeSizes.get(1)).get("id")).isEqualTo("=g:0=");
+    long nodeBytes = (Long) largest.get("bytes") + (Long) ((Map<?, ?>) nodeSizes.get(1)).get("bytes");
+    assertThat(json.get("bytes")).isEqualTo(nodeBytes);
+    assertThat((Long) json.get("peakHeapBytes")).isGreaterThan(0L);
+  }
+
+  @Test
+  public void readManifest_readsTabSeparatedPairs() throws IOException {
+    Path manifest = write("manifest.txt", "# story\na.9l\tout/a.9l.js\n\nb.9l\tout/b.9l.js\n");
+
+    assertThat(BatchTranspiler.readManifest(manifest))
+        .containsExactly(
+            new BatchTranspiler.Job(Path.of("a.9l"), Path.of("out/a.9l.js")),
+            new BatchTranspiler.Job(Path.of("b.9l"), Path.of("out/b.9l.js")))
+        .inOrder();
+  }
+}
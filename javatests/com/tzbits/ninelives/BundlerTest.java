@@ -0,0 +1,90 @@
+package com.tzbits.ninelives;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class BundlerTest {
+
+  private static final Map<String, String> STORY = Map.of(
+      "index.html", """
+          <link rel="stylesheet" href="game.css">
+          <script type="module">
+            import {game} from "./game.js";
+            import "./story-imports.js";
+            game.start();
+          </script>
+          """,
+      "game.js", """
+          const $0 = "game's own";
+          export class GameNode {}
+          export const game = {start() {}};
+          function back() {}
+          export {back as $b};
+          """,
+      "story-imports.js", "import \"./story.9l.js\";\n",
+      "story.9l.js", """
+          import {game, GameNode, $b as back} from "./game.js";
+          import * as all from "./game.js";
+          const $0 = "the story's own";
+          """);
+
+  @Test
+  public void bundle_runsModulesInImportOrderWithTheirOwnNames() {
+    Bundler.Bundle bundle = Bundler.bundle(STORY, false);
+
+    assertThat(bundle.html()).contains("<script type=\"module\" src=\"bundle.js\"></script>");
+    assertThat(bundle.html()).doesNotContain("import");
+    String script = bundle.script();
+    assertThat(script).doesNotContain("import ");
+    assertThat(script).doesNotContain("export ");
+    assertThat(script).contains("const __9l_0 = (() => {\nconst $0 = \"game's own\";\n"
+        + "class GameNode {}\nconst game = {start() {}};\nfunction back() {}\n");
+    assertThat(script).contains("return {GameNode, game, $b: back};\n})();");
+    assertThat(script).contains("const __9l_1 = (() => {\n"
+        + "const {game, GameNode, $b: back} = __9l_0;\nconst all = __9l_0;\n"
+        + "const $0 = \"the story's own\";\n");
+    assertThat(script.indexOf("// game.js")).isLessThan(script.indexOf("// story.9l.js"));
+    assertThat(script.indexOf("// story.9l.js")).isLessThan(script.indexOf("// story-imports.js"));
+    assertThat(script).endsWith("(() => {\nconst {game} = __9l_0;\n\n  game.start();\n})();\n");
+  }
+
+  @Test
+  public void bundle_inlinesIntoIndexHtml() {
+    Map<String, String> story = new HashMap<>(STORY);
+    story.put("story.9l.js", "const html = \"</script>\";\n");
+
+    Bundler.Bundle bundle = Bundler.bundle(story, true);
+
+    assertThat(bundle.script()).isNull();
+    assertThat(bundle.html()).contains("<script type=\"module\">\n// Bundled from ");
+    assertThat(bundle.html()).contains("const html = \"<\\/script>\";");
+    assertThat(bundle.html().indexOf("</script>"))
+        .isEqualTo(bundle.html().lastIndexOf("</script>"));
+  }
+
+  @Test
+  public void bundle_rejectsWhatItCantLink() {
+    Map<String, String> missing = new HashMap<>(STORY);
+    missing.remove("story.9l.js");
+    assertThrows(IllegalArgumentException.class, () -> Bundler.bundle(missing, false));
+
+    Map<String, String> cycle = new HashMap<>(STORY);
+    cycle.put("story.9l.js", "import \"./story-imports.js\";\n");
+    assertThrows(IllegalArgumentException.class, () -> Bundler.bundle(cycle, false));
+
+    Map<String, String> unexported = new HashMap<>(STORY);
+    unexported.put("story.9l.js", "import {story} from \"./game.js\";\n");
+    assertThrows(IllegalArgumentException.class, () -> Bundler.bundle(unexported, false));
+
+    Map<String, String> defaultExport = new HashMap<>(STORY);
+    defaultExport.put("story.9l.js", "export default 9;\n");
+    assertThrows(IllegalArgumentException.class, () -> Bundler.bundle(defaultExport, false));
+  }
+}
@@ -0,0 +1,158 @@
+package com.tzbits.ninelives;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class DevServerTest {
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private final HttpClient client = HttpClient.newHttpClient();
+  private Thread serving;
+  private int port;
+
+  private Path write(String name, String content) throws IOException {
+    Path path = tmp.getRoot().toPath().resolve(name);
+    Files.writeString(path, content, StandardCharsets.UTF_8);
+    return path;
+  }
+
+  /** Serves a story of one file, {@code a.9l}, as {@code a.9l.js}. */
+  private DevServer serve(String source) throws IOException {
+    return serve(source, BatchTranspiler.Options.DEFAULT);
+  }
+
+  private DevServer serve(String source, BatchTranspiler.Options options) throws IOException {
+    Path root = tmp.getRoot().toPath();
+    BatchTranspiler.Job job = new BatchTranspiler.Job(write("a.9l", source), root.resolve("a.9l.js"));
+    try (ServerSocket socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+    DevServer server = new DevServer(root, port, ImmutableList.of(job), options);
+    serving = new Thread(() -> {
+      try {
+        server.run();
+      } catch (IOException | InterruptedException e) {
+        // Done.
+      }
+    });
+    serving.start();
+    return server;
+  }
+
+  @After
+  public void stop() throws InterruptedException {
+    if (serving != null) {
+      serving.interrupt();
+      serving.join();
+    }
+  }
+
+  private HttpResponse<String> get(String path, String ifNoneMatch) throws Exception {
+    HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + path));
+    if (ifNoneMatch != null) {
+      request.header("If-None-Match", ifNoneMatch);
+    }
+    // The server starts on its own thread, so retry until it listens.
+    for (int i = 0; ; i++) {
+      try {
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+      } catch (ConnectException e) {
+        if (i == 40) {
+          throw e;
+        }
+        Thread.sleep(50);
+      }
+    }
+  }
+
+  @Test
+  public void withReloadScript_insertsBeforeBodyEnd() {
+    String html = DevServer.withReloadScript("<body>\n<p>Hi</p>\n</body>\n</html>");
+
+    assertThat(html).startsWith("<body>\n<p>Hi</p>\n<script>");
+    assertThat(html).contains("new EventSource(\"/__reload\")");
+    assertThat(html).endsWith("</script>\n</body>\n</html>");
+  }
+
+  @Test
+  public void withReloadScript_appendsWithoutBody() {
+    assertThat(DevServer.withReloadScript("<p>Hi</p>")).startsWith("<p>Hi</p><script>");
+  }
+
+  @Test
+  public void serve_revalidatesAgainstTheETag() throws Exception {
+    serve("=a=\nHello.\n");
+
+    HttpResponse<String> first = get("/a.9l.js", null);
+    String etag = first.headers().firstValue("ETag").orElseThrow();
+    HttpResponse<String> again = get("/a.9l.js", etag);
+
+    assertThat(first.statusCode()).isEqualTo(200);
+    assertThat(first.body()).contains("game.sayHtml(`<p>Hello.</p>`);");
+    assertThat(first.headers().firstValue("Cache-Control")).hasValue("no-cache");
+    assertThat(again.statusCode()).isEqualTo(304);
+    assertThat(again.body()).isEmpty();
+  }
+
+  @Test
+  public void serve_transpilesAgainOnceTheSourceChanged() throws Exception {
+    DevServer server = serve("=a=\nHello.\n");
+    String etag = get("/a.9l.js", null).headers().firstValue("ETag").orElseThrow();
+
+    Path source = write("a.9l", "=a=\nGoodbye.\n");
+    server.changed(ImmutableSet.of(source));
+    HttpResponse<String> changed = get("/a.9l.js", etag);
+
+    assertThat(changed.statusCode()).isEqualTo(200);
+    assertThat(changed.body()).contains("game.sayHtml(`<p>Goodbye.</p>`);");
+    assertThat(changed.headers().firstValue("ETag")).isNotEqualTo(Optional.of(etag));
+  }
+
+  @Test
+  public void serve_transpilesWithTheOptions() throws Exception {
+    serve("=a=\nHello.\n[Go](>b)\n=b=\nThere.\n",
+        BatchTranspiler.Options.builder().chunked(true).instrument(true).build());
+
+    HttpResponse<String> story = get("/a.9l.js", null);
+    HttpResponse<String> chunk = get("/a.9l.chunk.js", null);
+
+    assertThat(story.statusCode()).isEqualTo(200);
+    assertThat(story.body())
+        .contains("game.addChunk(\"./a.9l.chunk.js\", [\"=g:a=\", \"=g:b=\"]);");
+    assertThat(story.body()).doesNotContain("There.");
+    assertThat(chunk.statusCode()).isEqualTo(200);
+    assertThat(chunk.body()).contains("There.");
+    assertThat(chunk.body()).contains("performance.mark(\"9l:node =g:b=\");");
+  }
+
+  @Test
+  public void serve_reportsABrokenStory() throws Exception {
+    serve("=a=\nHello ${name.\n");
+
+    HttpResponse<String> response = get("/a.9l.js", null);
+
+    assertThat(response.statusCode()).isEqualTo(500);
+    assertThat(response.body()).startsWith(tmp.getRoot().toPath().resolve("a.9l") + ": ");
+    assertThat(response.body()).contains("Unclosed interpolation");
+  }
+}
@@ -0,0 +1,100 @@
+package com.tzbits.ninelives;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ImageOptimizerTest {
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static final ImageOptimizer.Options OPTIONS =
+      new ImageOptimizer.Options(0.8f, ImmutableList.of(100, 300));
+
+  /** A noisy image, like a photo, which PNG compresses badly. */
+  private static byte[] png(int width, int height, boolean transparent) throws IOException {
+    BufferedImage image = new BufferedImage(width, height,
+        transparent ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+    Random random = new Random(9);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int alpha = transparent && x < width / 2 ? 0x80 : 0xff;
+        image.setRGB(x, y, alpha << 24 | (x + random.nextInt(32)) << 16 | y << 8 | random.nextInt(64));
+      }
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ImageIO.write(image, "png", bytes);
+    return bytes.toByteArray();
+  }
+
+  @Test
+  public void optimize_opaquePngGetsNarrowerJpegVariants() throws IOException {
+    Path out = tmp.getRoot().toPath();
+    byte[] png = png(200, 60, false);
+
+    ImageOptimizer.Result result = ImageOptimizer.optimize("img/hall.png", png, out, OPTIONS);
+
+    assertThat(result.variants()).containsExactly(
+        new ImageOptimizer.Variant(100, "img/hall.w100.jpg"),
+        new ImageOptimizer.Variant(200, "img/hall.w200.jpg")).inOrder();
+    assertThat(result.bytes()).isAtMost(png.length);
+    assertThat(Files.size(out.resolve("img/hall.png"))).isEqualTo(result.bytes());
+    BufferedImage narrow = ImageIO.read(out.resolve("img/hall.w100.jpg").toFile());
+    assertThat(narrow.getWidth()).isEqualTo(100);
+    assertThat(narrow.getHeight()).isEqualTo(30);
+    assertThat(Files.size(out.resolve("img/hall.w200.jpg"))).isLessThan(png.length);
+  }
+
+  @Test
+  public void optimize_transparentPngStaysPng() throws IOException {
+    Path out = tmp.getRoot().toPath();
+
+    ImageOptimizer.Result result =
+        ImageOptimizer.optimize("ghost.png", png(200, 60, true), out, OPTIONS);
+
+    assertThat(result.variants()).containsExactly(
+        new ImageOptimizer.Variant(100, "ghost.w100.png"),
+        new ImageOptimizer.Variant(200, "ghost.png")).inOrder();
+    BufferedImage narrow = ImageIO.read(out.resolve("ghost.w100.png").toFile());
+    assertThat(narrow.getColorModel().hasAlpha()).isTrue();
+  }
+
+  @Test
+  public void optimize_leavesOtherFilesAlone() throws IOException {
+    Path out = tmp.getRoot().toPath();
+    byte[] notAnImage = {1, 2, 3};
+
+    ImageOptimizer.Result result = ImageOptimizer.optimize("odd.png", notAnImage, out, OPTIONS);
+
+    assertThat(result.variants()).isEmpty();
+    assertThat(Files.readAllBytes(out.resolve("odd.png"))).isEqualTo(notAnImage);
+  }
+
+  @Test
+  public void run_listsTheVariantsForGameJs() throws IOException {
+    Path in = tmp.newFolder("in").toPath();
+    Path out = tmp.newFolder("out").toPath();
+    Files.write(in.resolve("a.png"), png(200, 60, false));
+
+    List<ImageOptimizer.Result> results = ImageOptimizer.run(
+        Map.of("a.png", in.resolve("a.png")), out, OPTIONS, 2);
+
+    assertThat(ImageOptimizer.variantsJs(results)).isEqualTo(
+        "import {game} from \"./game.js\";\n"
+            + "game.addImageVariants({\"a.png\":[[100,\"a.w100.jpg\"],[200,\"a.w200.jpg\"]]});\n");
+  }
+}
@@ -0,0 +1,74 @@
+package com.tzbits.ninelives;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class JsStringsTest {
+
+  @Test
+  public void forTemplateLiteral_markdown() {
+    assertThat(JsStrings.forTemplateLiteral("***a*** **b** _c_ ~~d~~"))
+        .isEqualTo("<b><i>a</i></b> <b>b</b> <i>c</i> <del>d</del>");
+  }
+
+  @Test
+  public void forTemplateLiteral_pairsEachDelimiterInTurn() {
+    assertThat(JsStrings.forTemplateLiteral("****")).isEqualTo("<b></b>");
+    assertThat(JsStrings.forTemplateLiteral("**a _b** c_")).isEqualTo("<b>a <i>b</b> c</i>");
+    assertThat(JsStrings.forTemplateLiteral("a_b_c_")).isEqualTo("a<i>b</i>c_");
+  }
+
+  @Test
+  public void forTemplateLiteral_spansDoNotCrossLines() {
+    assertThat(JsStrings.forTemplateLiteral("_a\nb_ _c_")).isEqualTo("_a\nb<i> </i>c_");
+  }
+
+  @Test
+  public void forTemplateLiteral_leavesInterpolationsAlone() {
+    assertThat(JsStrings.forTemplateLiteral("${a_b} _x_ ${ {c} }"))
+        .isEqualTo("${a_b} <i>x</i> ${ {c} }");
+    assertThat(JsStrings.forTemplateLiteral("_${x}_")).isEqualTo("<i>${x}</i>");
+  }
+
+  @Test
+  public void forTemplateLiteral_unclosedInterpolation() {
+    assertThrows(IllegalArgumentException.class, () -> JsStrings.forTemplateLiteral("${a _b_"));
+  }
+
+  @Test
+  public void appendHtml_rendersInlineLinks() {
+    StringBuilder out = new StringBuilder();
+    List<String> targets = new ArrayList<>();
+    JsStrings.appendHtml(
+        out, "See [the _cat's_ bed](>cat_bed) or [out](>g:yard).", "home", targets);
+
+    assertThat(out.toString()).isEqualTo(
+        "See <span class=\"inline-link\" data-node=\"=home:cat_bed=\">the <i>cat's</i> bed</span>"
+            + " or <span class=\"inline-link\" data-node=\"=g:yard=\">out</span>.");
+    assertThat(targets).containsExactly("=home:cat_bed=", "=g:yard=").inOrder();
+  }
+
+  @Test
+  public void appendHtml_leavesLinksWithInterpolationsAlone() {
+    StringBuilder out = new StringBuilder();
+    List<String> targets = new ArrayList<>();
+    JsStrings.appendHtml(out, "[go](>${next}) [a\nb](>c) [x](>y", "g", targets);
+
+    assertThat(out.toString()).isEqualTo("[go](>${next}) [a\nb](>c) [x](>y");
+    assertThat(targets).isEmpty();
+  }
+
+  @Test
+  public void appendTemplateLiteral_appendsToExistingContent() {
+    StringBuilder out = new StringBuilder("say(`");
+    JsStrings.appendTemplateLiteral(out, new StringBuilder("**hi**"));
+    assertThat(out.toString()).isEqualTo("say(`<b>hi</b>");
+  }
+}
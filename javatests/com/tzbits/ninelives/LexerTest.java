@@ -0,0 +1,76 @@
+package com.tzbits.ninelives;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class LexerTest {
+
+  @Test
+  public void scan_nodeHeader() {
+    SourceLine line = SourceLine.newInstance("=ch1:start-2= The beginning", 3);
+    assertThat(line.lineType()).isEqualTo(LineType.NODE);
+    assertThat(line.nodeId()).isEqualTo("ch1:start-2");
+    assertThat(line.lineNumber()).isEqualTo(3);
+  }
+
+  @Test
+  public void scan_textThatLooksLikeANodeHeader() {
+    assertThat(SourceLine.newInstance("== win ? 'a' : 'b'} days", 1).lineType())
+        .isEqualTo(LineType.TEXT);
+    assertThat(SourceLine.newInstance("=id=comment", 1).lineType()).isEqualTo(LineType.TEXT);
+    assertThat(SourceLine.newInstance("=id", 1).lineType()).isEqualTo(LineType.TEXT);
+    assertThat(SourceLine.newInstance("==", 1).lineType()).isEqualTo(LineType.TEXT);
+  }
+
+  @Test
+  public void scan_choiceWithVisitLimitAndCondition() {
+    SourceLine line = SourceLine.newInstance(">secret/1 :if story.hasKey; \"Enter\"", 1);
+    assertThat(line.lineType()).isEqualTo(LineType.CHOICE);
+    assertThat(line.choiceTarget()).isEqualTo("secret");
+    assertThat(line.visitLimit()).isEqualTo("1");
+    assertThat(line.body()).isEqualTo(":if story.hasKey; \"Enter\"");
+  }
+
+  @Test
+  public void scan_choiceWithoutText() {
+    SourceLine line = SourceLine.newInstance(">a/b", 1);
+    assertThat(line.choiceTarget()).isEqualTo("a");
+    assertThat(line.visitLimit()).isEqualTo("b");
+    assertThat(line.body()).isEqualTo("");
+  }
+
+  @Test
+  public void scan_slashInChoiceTextIsNotALimit() {
+    SourceLine line = SourceLine.newInstance(">node either / or", 1);
+    assertThat(line.choiceTarget()).isEqualTo("node");
+    assertThat(line.visitLimit()).isNull();
+  }
+
+  @Test
+  public void scan_command() {
+    SourceLine line = SourceLine.newInstance("!img  img/title.png ", 1);
+    assertThat(line.lineType()).isEqualTo(LineType.COMMAND);
+    assertThat(line.commandName()).isEqualTo("img");
+    assertThat(line.body()).isEqualTo("img/title.png");
+    assertThat(SourceLine.newInstance("!c", 1).commandName()).isEqualTo("c");
+  }
+
+  @Test
+  public void scan_escapedLineIsText() {
+    SourceLine line = SourceLine.newInstance("\\>not a choice", 1);
+    assertThat(line.lineType()).isEqualTo(LineType.TEXT);
+    assertThat(line.line()).isEqualTo(">not a choice");
+  }
+
+  @Test
+  public void scan_otherLineTypes() {
+    assertThat(SourceLine.newInstance("| code", 1).lineType()).isEqualTo(LineType.CODE);
+    assertThat(SourceLine.newInstance("# note", 1).lineType()).isEqualTo(LineType.COMMENT);
+    assertThat(SourceLine.newInstance("", 1).lineType()).isEqualTo(LineType.TEXT);
+    assertThat(SourceLine.newInstance("Plain.", 1).lineType()).isEqualTo(LineType.TEXT);
+  }
+}
@@ -0,0 +1,109 @@
+package com.tzbits.ninelives;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.nio.file.Path;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class NodeCacheTest {
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static final String STORY = """
+      | let x = 1;
+
+      =a=
+      Hello **there**.
+      >b Go on.
+
+      =b=
+      !scope inner
+      !choices nowrap
+      >c Next.
+
+      =c=
+      >a Back to the start.
+      """;
+
+  private NodeCache cache() {
+    return NodeCache.inDirectory(tmp.getRoot().toPath().resolve("cache"));
+  }
+
+  @Test
+  public void transpile_fromCacheMatchesUncached() {
+    String expected = Transpiler.forSource(STORY).transpile();
+
+    NodeCache first = cache();
+    assertThat(Transpiler.forSource(STORY).withCache(first).transpile()).isEqualTo(expected);
+    assertThat(first.hits()).isEqualTo(0);
+    assertThat(first.misses()).isEqualTo(4);
+
+    NodeCache second = cache();
+    assertThat(Transpiler.forSource(STORY).withCache(second).transpile()).isEqualTo(expected);
+    assertThat(second.hits()).isEqualTo(4);
+    assertThat(second.misses()).isEqualTo(0);
+  }
+
+  @Test
+  public void transpile_againKeepsTheSameKeys() {
+    NodeCache cache = cache();
+    Transpiler transpiler = Transpiler.forSource(STORY).withInstrument(true).withCache(cache);
+
+    String first = transpiler.transpile();
+    assertThat(transpiler.transpile()).isEqualTo(first);
+    assertThat(cache.hits()).isEqualTo(4);
+    assertThat(cache.misses()).isEqualTo(4);
+  }
+
+  @Test
+  public void transpile_retranspilesOnlyChangedNodes() {
+    Transpiler.forSource(STORY).withCache(cache()).transpile();
+
+    String edited = STORY.replace(">c Next.", ">c Onwards.");
+    NodeCache cache = cache();
+    assertThat(Transpiler.forSource(edited).withCache(cache).transpile())
+        .isEqualTo(Transpiler.forSource(edited).transpile());
+    assertThat(cache.hits()).isEqualTo(3);
+    assertThat(cache.misses()).isEqualTo(1);
+  }
+
+  @Test
+  public void transpile_keysOnIncomingScope() {
+    Transpiler.forSource(STORY).withCache(cache()).transpile();
+
+    // Node c is unchanged but now follows a different !scope.
+    String edited = STORY.replace("!scope inner", "!scope other");
+    NodeCache cache = cache();
+    String js = Transpiler.forSource(edited).withCache(cache).transpile();
+    assertThat(js).isEqualTo(Transpiler.forSource(edited).transpile());
+    assertThat(js).contains("game.choiceHtml(\"=other:a=\"");
+    assertThat(cache.misses()).isEqualTo(2);
+  }
+
+  @Test
+  public void transpile_withoutCacheStoresNothing() {
+    Path dir = tmp.getRoot().toPath().resolve("cache");
+    Transpiler.forSource(STORY).withCache(NodeCache.NONE).transpile();
+    assertThat(dir.toFile().exists()).isFalse();
+  }
+
+  @Test
+  public void transpile_compactIsCachedSeparately() {
+    String compact = Transpiler.forSource(STORY).withCompact(true).transpile();
+    Transpiler.forSource(STORY).withCache(cache()).transpile();
+
+    NodeCache cache = cache();
+    assertThat(Transpiler.forSource(STORY).withCache(cache).withCompact(true).transpile())
+        .isEqualTo(compact);
+    assertThat(cache.hits()).isEqualTo(0);
+
+    NodeCache again = cache();
+    assertThat(Transpiler.forSource(STORY).withCache(again).withCompact(true).transpile())
+        .isEqualTo(compact);
+    assertThat(again.hits()).isEqualTo(4);
+  }
+}
@@ -0,0 +1,61 @@
+package com.tzbits.ninelives;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PersistentWorkerTest {
+
+  @Test
+  public void handle_passesArgumentsAndCapturesOutput() {
+    String response = PersistentWorker.handle(
+        "{\"arguments\": [\"--in\", \"a.9l\"], \"requestId\": 7}",
+        args -> {
+          System.err.println(String.join(" ", args));
+          return 3;
+        });
+    Map<?, ?> json = (Map<?, ?>) Json.parse(response);
+    assertThat(json.get("exitCode")).isEqualTo(3L);
+    assertThat(json.get("output")).isEqualTo("--in a.9l\n");
+    assertThat(json.get("requestId")).isEqualTo(7L);
+  }
+
+  @Test
+  public void handle_reportsActionFailureWithoutThrowing() {
+    String response = PersistentWorker.handle(
+        "{\"arguments\": []}",
+        args -> {
+          throw new IllegalStateException("boom");
+        });
+    Map<?, ?> json = (Map<?, ?>) Json.parse(response);
+    assertThat(json.get("exitCode")).isEqualTo(1L);
+    assertThat((String) json.get("output")).contains("boom");
+  }
+
+  @Test
+  public void serve_answersEachRequestOnItsOwnLine() {
+    String requests =
+        "{\"arguments\": [\"one\"], \"requestId\": 1}\n"
+            + "{\"arguments\": [\"two\"], \"requestId\": 2}\n";
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int exitCode = PersistentWorker.serve(
+        new ByteArrayInputStream(requests.getBytes(StandardCharsets.UTF_8)),
+        new PrintStream(out, true, StandardCharsets.UTF_8),
+        args -> args[0].equals("one") ? 0 : 2);
+
+    assertThat(exitCode).isEqualTo(0);
+    String[] responses = out.toString(StandardCharsets.UTF_8).split("\n");
+    assertThat(responses.length).isEqualTo(2);
+    assertThat(((Map<?, ?>) Json.parse(responses[0])).get("exitCode")).isEqualTo(0L);
+    assertThat(((Map<?, ?>) Json.parse(responses[1])).get("exitCode")).isEqualTo(2L);
+    assertThat(((Map<?, ?>) Json.parse(responses[1])).get("requestId")).isEqualTo(2L);
+  }
+}
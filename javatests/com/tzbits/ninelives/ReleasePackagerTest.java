@@ -0,0 +1,155 @@
+package com.tzbits.ninelives;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ReleasePackagerTest {
+
+  private static final Map<String, byte[]> STORY = Map.of(
+      "index.html", bytes("""
+          <link rel="stylesheet" href="game.css">
+          <script type="module">
+            import {game} from "./game.js";
+            import "./story-imports.js";
+          </script>
+          """),
+      "game.css", bytes("#banner { background: url(img/bg.png); }\n"),
+      "game.js", bytes("export const game = {};\n".repeat(20)),
+      "story-imports.js", bytes("import \"./story.9l.js\";\n"),
+      "story.9l.js", bytes("""
+          import {game} from "./game.js";
+          game.addChunk("./story.9l.chunk.js", ["=g:hall="]);
+          game.img("img/banner.png");
+          """),
+      "story.9l.chunk.js", bytes("import {game} from \"./game.js\";\n"),
+      "img/banner.png", new byte[] {1, 2, 3},
+      "img/bg.png", new byte[] {4, 5, 6},
+      "img/dynamic.png", new byte[] {7, 8, 9});
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(UTF_8);
+  }
+
+  private static String text(byte[] contents) {
+    return new String(contents, UTF_8);
+  }
+
+  private static String pathOf(SortedMap<String, byte[]> release, String source) {
+    String manifest = text(release.get(ReleasePackager.MANIFEST));
+    @SuppressWarnings("unchecked")
+    Map<String, Object> json = (Map<String, Object>) Json.parse(manifest);
+    for (Object entry : (Iterable<?>) json.get("files")) {
+      Map<?, ?> file = (Map<?, ?>) entry;
+      if (file.get("source").equals(source)) {
+        return (String) file.get("path");
+      }
+    }
+    throw new AssertionError("No " + source + " in " + manifest);
+  }
+
+  @Test
+  public void pack_renamesReferencedFilesAndRewritesReferences() {
+    SortedMap<String, byte[]> release = ReleasePackager.pack(STORY);
+
+    String game = pathOf(release, "game.js");
+    String chunk = pathOf(release, "story.9l.chunk.js");
+    String banner = pathOf(release, "img/banner.png");
+    assertThat(game).matches("game\\.[0-9a-f]{10}\\.js");
+    assertThat(chunk).matches("story\\.9l\\.chunk\\.[0-9a-f]{10}\\.js");
+    assertThat(banner).matches("img/banner\\.[0-9a-f]{10}\\.png");
+    assertThat(pathOf(release, "index.html")).isEqualTo("index.html");
+    assertThat(pathOf(release, "img/dynamic.png")).isEqualTo("img/dynamic.png");
+
+    String index = text(release.get("index.html"));
+    assertThat(index).contains("href=\"" + pathOf(release, "game.css") + "\"");
+    assertThat(index).contains("from \"./" + game + "\"");
+    assertThat(index).contains("import \"./" + pathOf(release, "story-imports.js") + "\"");
+    String story = text(release.get(pathOf(release, "story.9l.js")));
+    assertThat(story).contains("from \"./" + game + "\"");
+    assertThat(story).contains("game.addChunk(\"./" + chunk + "\"");
+    assertThat(story).contains("game.img(\"" + banner + "\")");
+    assertThat(text(release.get(pathOf(release, "game.css"))))
+        .contains("url(" + pathOf(release, "img/bg.png") + ")");
+    assertThat(release).doesNotContainKey("game.js");
+  }
+
+  @Test
+  public void pack_changingAFileRenamesWhatLeadsToIt() {
+    SortedMap<String, byte[]> before = ReleasePackager.pack(STORY);
+    Map<String, byte[]> changed = new HashMap<>(STORY);
+    changed.put("story.9l.chunk.js", bytes("import {game} from \"./game.js\";\n// changed\n"));
+    SortedMap<String, byte[]> after = ReleasePackager.pack(changed);
+
+    for (String source : new String[] {"story.9l.chunk.js", "story.9l.js", "story-imports.js"}) {
+      assertThat(pathOf(after, source)).isNotEqualTo(pathOf(before, source));
+    }
+    for (String source : new String[] {"game.js", "game.css", "img/banner.png"}) {
+      assertThat(pathOf(after, source)).isEqualTo(pathOf(before, source));
+    }
+  }
+
+  @Test
+  public void pack_filesInACycleKeepTheirNames() {
+    SortedMap<String, byte[]> release = ReleasePackager.pack(Map.of(
+        "index.html", bytes("<script type=\"module\" src=\"main.js\"></script>"),
+        "main.js", bytes("import \"./a.js\";\n"),
+        "a.js", bytes("import \"./b.js\";\nimport \"./util.js\";\n"),
+        "b.js", bytes("import \"./a.js\";\n"),
+        "util.js", bytes("export const util = {};\n")));
+
+    assertThat(pathOf(release, "a.js")).isEqualTo("a.js");
+    assertThat(pathOf(release, "b.js")).isEqualTo("b.js");
+    assertThat(pathOf(release, "main.js")).matches("main\\.[0-9a-f]{10}\\.js");
+    assertThat(pathOf(release, "util.js")).matches("util\\.[0-9a-f]{10}\\.js");
+    Matcher m = Pattern.compile("(?:src=|import )\"(?:\\./)?([\\w.]+)\"").matcher("");
+    for (Map.Entry<String, byte[]> file : release.entrySet()) {
+      if (file.getKey().endsWith(".js") || file.getKey().endsWith(".html")) {
+        m.reset(text(file.getValue()));
+        while (m.find()) {
+          assertThat(release).containsKey(m.group(1));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void pack_gzipsTextAndListsItInTheManifest() throws IOException {
+    SortedMap<String, byte[]> release = ReleasePackager.pack(STORY);
+
+    String game = pathOf(release, "game.js");
+    byte[] gzipped = release.get(game + ".gz");
+    assertThat(gzipped).isNotNull();
+    assertThat(new GZIPInputStream(new ByteArrayInputStream(gzipped)).readAllBytes())
+        .isEqualTo(release.get(game));
+    assertThat(release).doesNotContainKey(pathOf(release, "img/banner.png") + ".gz");
+
+    String manifest = text(release.get(ReleasePackager.MANIFEST));
+    assertThat(manifest).contains("\"path\":\"" + game + "\",\"source\":\"game.js\"");
+    assertThat(manifest).contains(ReleasePackager.CACHE_FOREVER);
+    assertThat(manifest).contains("\"gzip\":{\"path\":\"" + game + ".gz\"");
+  }
+
+  @Test
+  public void writeZip_isTheSameForTheSameFiles() throws IOException {
+    ByteArrayOutputStream first = new ByteArrayOutputStream();
+    ReleasePackager.writeZip(ReleasePackager.pack(STORY), first);
+    ByteArrayOutputStream second = new ByteArrayOutputStream();
+    ReleasePackager.writeZip(ReleasePackager.pack(STORY), second);
+
+    assertThat(second.toByteArray()).isEqualTo(first.toByteArray());
+  }
+}
@@ -0,0 +1,149 @@
+package com.tzbits.ninelives;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class StoryGraphTest {
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static final String STORY = """
+      =0=
+      !img banner.jpg
+      There is a [door](>door) here.
+      >hall/2 ? game.state.awake; "Go to the hall"
+      >side:0 Somewhere else.
+
+      =hall=
+      >0 Back.
+      >nowhere Into the void.
+
+      !scope side
+      =0=
+      >loop
+
+      =loop=
+      >loop Again.
+
+      =lost=
+      Nobody comes here.
+      """;
+
+  private static StoryGraph graph(String source) {
+    StoryGraph.FileBuilder file = new StoryGraph.FileBuilder("story.9l");
+    Transpiler.forSource(source).withGraph(file).transpile();
+    return StoryGraph.of(ImmutableList.of(file));
+  }
+
+  @Test
+  public void record_nodesEdgesAndImages() {
+    StoryGraph graph = graph(STORY);
+
+    assertThat(graph.nodes().stream().map(StoryGraph.Node::id).toList())
+        .containsExactly("=g:0=", "=g:hall=", "=side:0=", "=side:loop=", "=side:lost=")
+        .inOrder();
+    assertThat(graph.edges()).contains(new StoryGraph.Edge(
+        "=g:0=", "=g:door=", StoryGraph.EdgeKind.LINK, "story.9l", 3, null, null));
+    assertThat(graph.edges()).contains(new StoryGraph.Edge(
+        "=g:0=", "=g:hall=", StoryGraph.EdgeKind.CHOICE, "story.9l", 4, "2",
+        "game.state.awake"));
+    assertThat(graph.images())
+        .containsExactly(new StoryGraph.Image("=g:0=", "banner.jpg", "story.9l", 2));
+  }
+
+  @Test
+  public void analyze_reachabilityUnresolvedCyclesAndDuplicates() {
+    StoryGraph.Analysis analysis = graph(STORY + "\n=side:lost=\n").analyze();
+
+    assertThat(analysis.depths()).containsEntry("=g:0=", 0);
+    assertThat(analysis.depths()).containsEntry("=g:hall=", 1);
+    assertThat(analysis.depths()).containsEntry("=side:loop=", 2);
+    assertThat(analysis.unreachable()).containsExactly("=side:lost=");
+    assertThat(analysis.unresolved().stream().map(StoryGraph.Edge::to).toList())
+        .containsExactly("=g:door=", "=g:nowhere=");
+    assertThat(analysis.cycles()).containsExactly(
+        ImmutableList.of("=g:0=", "=g:hall="), ImmutableList.of("=side:loop="));
+    assertThat(analysis.duplicates()).containsExactly("=side:lost=");
+  }
+
+  @Test
+  public void record_sameWithCachedNodes() {
+    NodeCache cache = NodeCache.inDirectory(tmp.getRoot().toPath());
+    Transpiler.forSource(STORY).withCache(cache).transpile();
+
+    StoryGraph.FileBuilder file = new StoryGraph.FileBuilder("story.9l");
+    Transpiler.forSource(STORY).withCache(cache).withGraph(file).transpile();
+    StoryGraph cached = StoryGraph.of(ImmutableList.of(file));
+
+    assertThat(cache.hits()).isGreaterThan(0);
+    assertThat(cached.edges()).isEqualTo(graph(STORY).edges());
+    assertThat(cached.nodes()).isEqualTo(graph(STORY).nodes());
+  }
+
+  @Test
+  public void analyze_keptNodesAndChoiceCallsAreReachable() {
+    StoryGraph graph = graph("""
+        | game.step(game.choice('=intro=', ''));
+        =0=
+        | if (game.state.lucky) game.step(game.choice("=win=", ""));
+        Roll the dice.
+
+        =intro=
+        Once upon a time.
+
+        =win=
+        >bonus More.
+
+        =bonus=
+        You win.
+
+        =debug=
+        !keep
+        Only for story.js.
+
+        =lost=
+        Nobody comes here.
+        """);
+
+    StoryGraph.Analysis analysis = graph.analyze();
+
+    assertThat(graph.kept()).containsExactly("=g:debug=");
+    assertThat(graph.edges()).contains(new StoryGraph.Edge(
+        null, "=g:intro=", StoryGraph.EdgeKind.CODE, "story.9l", 1, null, null));
+    assertThat(analysis.depths()).containsEntry("=g:intro=", 0);
+    assertThat(analysis.depths()).containsEntry("=g:win=", 1);
+    assertThat(analysis.depths()).containsEntry("=g:bonus=", 2);
+    assertThat(analysis.unreachable()).containsExactly("=g:lost=");
+  }
+
+  @Test
+  public void index_sameAsTranspiling() throws Exception {
+    StoryGraph.FileBuilder file = new StoryGraph.FileBuilder("story.9l");
+    Transpiler.forSource(STORY).index(file);
+    StoryGraph indexed = StoryGraph.of(ImmutableList.of(file));
+
+    assertThat(indexed.edges()).isEqualTo(graph(STORY).edges());
+    assertThat(indexed.nodes()).isEqualTo(graph(STORY).nodes());
+  }
+
+  @Test
+  public void toJson_refersToNodesByIndex() {
+    StoryGraph graph = graph("=0=\n>1 Go.\n>2 Nowhere.\n\n=1=\n>0 Back.\n");
+
+    assertThat(graph.toJson(graph.analyze())).isEqualTo(
+        "{\"start\":\"=g:0=\",\"files\":[\"story.9l\"],"
+            + "\"nodes\":[{\"id\":\"=g:0=\",\"file\":0,\"line\":1,\"scope\":\"g\",\"depth\":0},"
+            + "{\"id\":\"=g:1=\",\"file\":0,\"line\":5,\"scope\":\"g\",\"depth\":1}],"
+            + "\"edges\":[{\"from\":0,\"to\":1,\"kind\":\"choice\",\"file\":0,\"line\":2},"
+            + "{\"from\":0,\"target\":\"=g:2=\",\"kind\":\"choice\",\"file\":0,\"line\":3},"
+            + "{\"from\":1,\"to\":0,\"kind\":\"choice\",\"file\":0,\"line\":6}],"
+            + "\"images\":[],\"kept\":[],\"unreachable\":[],\"unresolved\":[\"=g:2=\"],"
+            + "\"cycles\":[[0,1]],\"duplicates\":[]}");
+  }
+}
@@ -0,0 +1,148 @@
+package com.tzbits.ninelives;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmarks for the transpiler's hot paths, run against the
+ * stories in //9l and generated stories of 10k to 1M lines.
+ *
+ * <p>Run all of them, with allocation rates from the GC profiler:
+ *
+ * <pre>
+ * bazel run //javatests/com/tzbits/ninelives:TranspilerBenchmark
+ * </pre>
+ *
+ * <p>Any JMH options can follow {@code --}, e.g.
+ * {@code -- -prof gc 'TranspilerBenchmark.transpile' -p story=9l/cloak/cloak.9l}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TranspilerBenchmark {
+
+  private static final String SYNTHETIC = "synthetic:";
+
+  /** A path relative to the runfiles root, or "synthetic:" and a line count. */
+  @Param({
+      "9l/cat/thecat.9l",
+      "9l/cat/themouse.9l",
+      "9l/cloak/cloak.9l",
+      "9l/loop/loop.9l",
+      "synthetic:10000",
+      "synthetic:100000",
+      "synthetic:1000000",
+  })
+  public String story;
+
+  private String source;
+  private String[] lines;
+  private String[] texts;
+  private String[] choiceTargets;
+
+  @Setup
+  public void setUp() throws IOException {
+    source = story.startsWith(SYNTHETIC)
+        ? syntheticStory(Integer.parseInt(story.substring(SYNTHETIC.length())))
+        : Files.readString(Path.of(story), StandardCharsets.UTF_8);
+    lines = source.split("\\R");
+
+    List<String> textList = new ArrayList<>();
+    List<String> targetList = new ArrayList<>();
+    for (int i = 0; i < lines.length; i++) {
+      SourceLine line = SourceLine.newInstance(lines[i], i + 1);
+      if (line.isType(LineType.TEXT) && !line.isEmpty()) {
+        textList.add(line.line());
+      } else if (line.isType(LineType.CHOICE)) {
+        targetList.add(line.choiceTarget());
+      }
+    }
+    texts = textList.toArray(new String[0]);
+    choiceTargets = targetList.toArray(new String[0]);
+  }
+
+  @Benchmark
+  public String transpile() {
+    return Transpiler.forSource(source).transpile();
+  }
+
+  @Benchmark
+  public void newSourceLine(Blackhole blackhole) {
+    for (int i = 0; i < lines.length; i++) {
+      blackhole.consume(SourceLine.newInstance(lines[i], i + 1));
+    }
+  }
+
+  @Benchmark
+  public void forTemplateLiteral(Blackhole blackhole) {
+    for (String text : texts) {
+      blackhole.consume(JsStrings.forTemplateLiteral(text));
+    }
+  }
+
+  @Benchmark
+  public void resolveNodeId(Blackhole blackhole) {
+    Transpiler transpiler = Transpiler.forSource("");
+    for (String target : choiceTargets) {
+      blackhole.consume(transpiler.resolveNodeId(target));
+    }
+  }
+
+  /**
+   * Returns a story of about {@code lineCount} lines that uses every
+   * kind of line, markdown, interpolation, links, scopes and visit
+   * limits in roughly the proportions the real stories do.
+   */
+  static String syntheticStory(int lineCount) {
+    StringBuilder out = new StringBuilder(lineCount * 48);
+    out.append("| let visits = 0;\n\n");
+    int lines = 2;
+    for (int node = 0; lines < lineCount; node++) {
+      if (node % 500 == 0) {
+        out.append("!scope s").append(node / 500).append("\n\n");
+        lines += 2;
+      }
+      String next = "n" + (node + 1);
+      out.append("=n").append(node).append("= Generated node ").append(node).append('\n')
+          .append("# Comments are dropped by the transpiler.\n")
+          .append("| visits++;\n")
+          .append("\n");
+      if (node % 10 == 0) {
+        out.append("!img banner").append(node % 3).append(".jpg\n");
+        lines++;
+      }
+      out.append("You are in room ").append(node).append(". It is **dark** and _quiet_,\n")
+          .append("and you have been here ${visits} ${visits == 1 ? 'time' : 'times'}.\n")
+          .append("A ~~locked~~ ***open*** [door](>").append(next).append(") leads on.\n")
+          .append("\n")
+          .append("!narrator The walls are _very_ **old**.\n")
+          .append("\n")
+          .append('>').append(next).append(" Go through the door.\n")
+          .append(">n").append(node).append("/2 ? visits < 10; \"Wait a while\"\n")
+          .append(">s0:n0 Start over.\n")
+          .append("\n");
+      lines += 14;
+    }
+    return out.toString();
+  }
+}
@@ -3,6 +3,11 @@ package com.tzbits.ninelives;
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertThrows;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Set;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -40,7 +45,7 @@ public class TranspilerTest {
             imports +
             "console.log('this just becomes output.');\n" +
             "if(foo == bar) { \n" +
-            "game.say(`Something seems fishy.`);\n" +
+            "game.sayHtml(`<p>Something seems fishy.</p>`);\n" +
             "}\n" +
             trailer);
   }
@@ -67,8 +72,8 @@ public class TranspilerTest {
         .isEqualTo(
             imports +
             nodePreamble("=d50= It's happening!", "=g:d50=") +
-            "game.say(`Something seems fishy.\n" +
-            "Then you see the tree fall.`);\n" +
+            "game.sayHtml(`<p>Something seems fishy.\n" +
+            "Then you see the tree fall.</p>`);\n" +
             nodeEnd +
             trailer);
   }
@@ -100,7 +105,7 @@ public class TranspilerTest {
         .isEqualTo(
             imports +
             "console.log('this just becomes output.');\n" +
-            "game.say(`Something seems fishy.`);\n" +
+            "game.sayHtml(`<p>Something seems fishy.</p>`);\n" +
             trailer);
   }
 
@@ -119,8 +124,8 @@ public class TranspilerTest {
         .isEqualTo(
             imports +
             nodePreamble("=d50= It's happening!", "=g:d50=") +
-            "game.say(`Something seems fishy.`);\n" +
-            "game.sayWith(\"c\", `Then you see the tree fall.`);\n" +
+            "game.sayHtml(`<p>Something seems fishy.</p>`);\n" +
+            "game.sayWithHtml(\"c\", `Then you see the tree fall.`);\n" +
             nodeEnd +
             trailer);
   }
@@ -140,9 +145,35 @@ public class TranspilerTest {
             imports +
             nodePreamble("=d50= It's happening!", "=g:d50=") +
             "game.img(\"img/banner-ch2-s1-west.jpg\");\n" +
-            "game.say(`Something seems fishy.`);\n" +
+            "game.sayHtml(`<p>Something seems fishy.</p>`);\n" +
             nodeEnd +
-            trailer);
+            trailer +
+            "game.addImages({\"=g:d50=\": [\"img/banner-ch2-s1-west.jpg\"]});\n");
+  }
+
+  @Test
+  public void transpile_imagesOfChunkedNodesAreListedUpFront() throws IOException {
+    String src =
+            """
+                    =0=
+                    !img title.png
+                    >hall Go in.
+
+                    =hall=
+                    | if (game.state.lit) {
+                    !img hall-lit.png
+                    | } else {
+                    !img hall.png
+                    | }
+                    A hall.
+                    """;
+    StringWriter out = new StringWriter();
+    StringWriter lazyOut = new StringWriter();
+    Transpiler.forSource(src).withCompact(true).transpile(out, lazyOut, "./a.9l.chunk.js");
+
+    assertThat(out.toString()).endsWith(
+        "game.addImages({\"=g:0=\":[\"title.png\"],[$0]:[\"hall-lit.png\",\"hall.png\"]});\n");
+    assertThat(lazyOut.toString()).doesNotContain("addImages");
   }
 
 
@@ -163,10 +194,10 @@ public class TranspilerTest {
         .isEqualTo(
             imports +
             nodePreamble("=d50= It's happening!", "=g:d50=") +
-            "game.say(`Something seems fishy.`);\n" +
+            "game.sayHtml(`<p>Something seems fishy.</p>`);\n" +
             "game.choose(\n" +
-            "game.choice(\"=g:in-the-pond=\", `jump into the pond`),\n" +
-            "game.choice(\"=g:on-the-shore=\", `walk along the shore`));\n" +
+            "game.choiceHtml(\"=g:in-the-pond=\", `jump into the pond`),\n" +
+            "game.choiceHtml(\"=g:on-the-shore=\", `walk along the shore`));\n" +
             nodeEnd +
             trailer);
   }
@@ -219,7 +250,7 @@ public class TranspilerTest {
             imports +
             nodePreamble("=d50= It's happening!", "=g:d50=") +
             "game.choose(\n" +
-            "game.choice(\"=g:in-the-pond=\", `jump in; get wet`));\n" +
+            "game.choiceHtml(\"=g:in-the-pond=\", `jump in; get wet`));\n" +
             nodeEnd +
             trailer);
   }
@@ -233,7 +264,8 @@ public class TranspilerTest {
             """;
     Transpiler tr = Transpiler.forSource(src);
     String out = tr.transpile();
-    assertThat(out).contains("game.choice(\"=g:talktorebecca-1=\", `\"What do you mean?\"`, 1)");
+    assertThat(out)
+        .contains("game.choiceHtml(\"=g:talktorebecca-1=\", `\"What do you mean?\"`, 1)");
   }
 
   @Test
@@ -249,7 +281,7 @@ public class TranspilerTest {
         .isEqualTo(
             imports +
             nodePreamble("=d50= It's happening!", "=g:d50=") +
-            "game.say(`== win ? 'happy' : 'sad'} days ahead`);\n" +
+            "game.sayHtml(`<p>== win ? 'happy' : 'sad'} days ahead</p>`);\n" +
             nodeEnd +
             trailer);
   }
@@ -285,7 +317,7 @@ public class TranspilerTest {
         .isEqualTo(
             imports +
             nodePreamble("=d50= It's happening!", "=g:d50=") +
-            "game.say(`<b>bold</b>, <i>italic</i>, <b><i>bold-italic</i></b>, <del>strikethrough</del>`);\n" +
+            "game.sayHtml(`<p><b>bold</b>, <i>italic</i>, <b><i>bold-italic</i></b>, <del>strikethrough</del></p>`);\n" +
             nodeEnd +
             trailer);
   }
@@ -371,8 +403,8 @@ public class TranspilerTest {
             imports +
             nodePreamble("=d50= It's happening!", "=g:d50=") +
             "game.choose(\n" +
-            "game.choice(\"=g:node=\", `<b>bold</b> choice`),\n" +
-            "game.choice(\"=g:node2=\", `<i>italic</i> choice`));\n" +
+            "game.choiceHtml(\"=g:node=\", `<b>bold</b> choice`),\n" +
+            "game.choiceHtml(\"=g:node2=\", `<i>italic</i> choice`));\n" +
             nodeEnd +
             trailer);
   }
@@ -418,7 +450,7 @@ public class TranspilerTest {
     Transpiler tr = Transpiler.forSource(src);
     String out = tr.transpile();
     // It should be passed as a separate argument to game.choice
-    assertThat(out).contains("game.choice(\"=g:node=\", `choice text`, 'DATA')");
+    assertThat(out).contains("game.choiceHtml(\"=g:node=\", `choice text`, 'DATA')");
   }
 
   @Test
@@ -480,14 +512,14 @@ public class TranspilerTest {
         .isEqualTo(
             imports +
             nodePreamble("=d50= First Node", "=g:d50=") +
-            "game.say(`This is some text for the first node.`);\n" +
-            "game.sayWith(\"c\", `This is a command.`);\n" +
+            "game.sayHtml(`<p>This is some text for the first node.</p>`);\n" +
+            "game.sayWithHtml(\"c\", `This is a command.`);\n" +
             "game.choose(\n" +
-            "game.choice(\"=g:choice1=\", `A choice for the first node.`));\n" +
+            "game.choiceHtml(\"=g:choice1=\", `A choice for the first node.`));\n" +
             nodeEnd +
             nodePreamble("=d51= Second Node", "=g:d51=") +
             "console.log('This is some code.');\n" +
-            "game.say(`This is some text for the second node.`);\n" +
+            "game.sayHtml(`<p>This is some text for the second node.</p>`);\n" +
             nodeEnd +
             trailer);
   }
@@ -507,8 +539,8 @@ public class TranspilerTest {
             imports +
             nodePreamble("=start=", "=g:start=") +
             "game.chooseWrap(\n" +
-            "game.choice(\"=g:node1=\", `Choice 1`),\n" +
-            "game.choice(\"=g:node2=\", `Choice 2`));\n" +
+            "game.choiceHtml(\"=g:node1=\", `Choice 1`),\n" +
+            "game.choiceHtml(\"=g:node2=\", `Choice 2`));\n" +
             nodeEnd +
             trailer);
   }
@@ -529,8 +561,8 @@ public class TranspilerTest {
             imports +
             nodePreamble("=start=", "=g:start=") +
             "game.chooseNowrap(\n" +
-            "game.choice(\"=g:node1=\", `Choice 1`),\n" +
-            "game.choice(\"=g:node2=\", `Choice 2`));\n" +
+            "game.choiceHtml(\"=g:node1=\", `Choice 1`),\n" +
+            "game.choiceHtml(\"=g:node2=\", `Choice 2`));\n" +
             nodeEnd +
             trailer);
   }
@@ -549,7 +581,7 @@ public class TranspilerTest {
         .contains("game.wrapChoices = false;");
     assertThat(out)
         .contains("game.choose(\n" +
-                  "game.choice(\"=g:node1=\", `Choice 1`));");
+                  "game.choiceHtml(\"=g:node1=\", `Choice 1`));");
   }
 
   @Test
@@ -567,7 +599,7 @@ public class TranspilerTest {
             imports +
             nodePreamble("=start=", "=g:start=") +
             "game.choose(\n" +
-            "(game.visitCount(\"=g:node=\") < 1) ? game.choice(\"=g:node=\", `This can only be visited once.`) : false);\n" +
+            "(game.visitCount(\"=g:node=\") < 1) ? game.choiceHtml(\"=g:node=\", `This can only be visited once.`) : false);\n" +
             nodeEnd +
             trailer);
   }
@@ -606,8 +638,236 @@ public class TranspilerTest {
             imports +
             nodePreamble("=start=", "=g:start=") +
             "game.choose(\n" +
-            "game.choice(\"=g:node=\", `This is a choice / with a slash`));\n" +
+            "game.choiceHtml(\"=g:node=\", `This is a choice / with a slash`));\n" +
             nodeEnd +
             trailer);
   }
+
+  @Test
+  public void transpile_forReader_matchesForSource() throws IOException {
+    String src =
+        """
+        !scope a
+        =start=
+        Hello.
+        >next Onwards.
+
+        =next=
+        !scope b
+        Bye.
+        """;
+    StringWriter out = new StringWriter();
+    Transpiler.forReader(new StringReader(src)).transpile(out);
+    assertThat(out.toString()).isEqualTo(Transpiler.forSource(src).transpile());
+  }
+
+  @Test
+  public void transpile_forReader_closesTheReader() throws IOException {
+    StringReader reader = new StringReader("=start=\nHello.\n");
+
+    Transpiler.forReader(reader).transpile(new StringWriter());
+
+    // A closed StringReader throws instead of reading.
+    assertThrows(IOException.class, reader::read);
+  }
+
+  @Test
+  public void transpile_writesEachNodeBeforeReadingTheNext() {
+    String firstNode = "=first=\nHello.\n=second=\n";
+    // Fails once the first node and the header of the next are read.
+    Reader reader = new Reader() {
+      private final StringReader delegate = new StringReader(firstNode);
+
+      @Override
+      public int read(char[] buf, int off, int len) throws IOException {
+        int n = delegate.read(buf, off, len);
+        if (n == -1) {
+          throw new IOException("disk on fire");
+        }
+        return n;
+      }
+
+      @Override
+      public void close() {}
+    };
+    StringWriter out = new StringWriter();
+
+    IOException e = assertThrows(IOException.class,
+        () -> Transpiler.forReader(reader).transpile(out));
+
+    assertThat(e).hasMessageThat().isEqualTo("disk on fire");
+    assertThat(out.toString())
+        .isEqualTo(
+            imports +
+            nodePreamble("=first=", "=g:first=") +
+            "game.sayHtml(`<p>Hello.</p>`);\n" +
+            nodeEnd);
+  }
+
+  @Test
+  public void transpile_omittedNodes() {
+    String src =
+        """
+        =start=
+        Hello.
+        !scope side
+        =lost=
+        !keep
+        Gone.
+        !scope other
+        =next=
+        Kept.
+        """;
+
+    String out = Transpiler.forSource(src)
+        .withOmittedNodes(Set.of("=side:lost="))
+        .transpile();
+
+    assertThat(out).isEqualTo(
+        imports +
+        nodePreamble("=start=", "=g:start=") +
+        "game.sayHtml(`<p>Hello.</p>`);\n" +
+        "game.scope = \"side\";\n" +
+        nodeEnd +
+        "\n/* =next= */\n" +
+        "game.gameNodes[\"=other:next=\"] =\n" +
+        "new GameNode(\"=other:next=\").setExecFn(function(game, choice) {\n" +
+        "game.player.location = \"=other:next=\";\n" +
+        "game.scope = \"other\";\n" +
+        "game.sayHtml(`<p>Kept.</p>`);\n" +
+        nodeEnd +
+        "game.scope = \"g\";\n");
+  }
+
+  @Test
+  public void transpile_compact() {
+    String src =
+        """
+        =start=
+        Hello.
+        >next/2 Onwards.
+        >next Again.
+        !scope side
+        =next=
+        Go [back](>g:start).
+        | game.state.x = 1;
+        !scope g
+        >start/1 Back.
+        """;
+
+    String out = Transpiler.forSource(src).withCompact(true).transpile();
+
+    assertThat(out).isEqualTo(
+        "import {game, back, visited, GameNode, $n, $s, $w, $h, $wh, $c, $ch, $o, $ow, $on,"
+            + " $i, $v} from \"./game.js\";\n"
+            + "import {story} from \"./story.js\";\n"
+            + "const $0=\"=g:start=\",$1=\"=g:next=\";\n"
+            + "$n($0,function(game,choice){\n"
+            + "$h(`<p>Hello.</p>`);\n"
+            + "$o(\n"
+            + "($v($1) < 2) ? $ch($1, `Onwards.`) : false,\n"
+            + "$ch($1, `Again.`));\n"
+            + "game.scope=\"g\";\n"
+            + "});\n"
+            + "$n(\"=side:next=\",function(game,choice){\n"
+            + "$h(`<p>Go <span class=\"inline-link\" data-node=\"=g:start=\">back</span>.</p>`,"
+            + "[$0]);\n"
+            + "game.scope=\"side\";\n"
+            + "game.state.x = 1;\n"
+            + "$o(\n"
+            + "($v($0) < 1) ? $ch($0, `Back.`) : false);\n"
+            + "game.scope=\"g\";\n"
+            + "});\n"
+            + "game.scope=\"g\";\n");
+  }
+
+  @Test
+  public void transpile_paragraphsInARowAreSaidAtOnce() {
+    String src =
+        """
+        =start=
+        First.
+
+        Second [link](>next).
+        !c Centered.
+        Third ${x}.
+
+        A [link](>${where}).
+        """;
+
+    assertThat(Transpiler.forSource(src).transpile()).isEqualTo(
+        imports
+            + nodePreamble("=start=", "=g:start=")
+            + "game.sayHtml(`<p>First.</p><p>Second <span class=\"inline-link\""
+            + " data-node=\"=g:next=\">link</span>.</p>`, [\"=g:next=\"]);\n"
+            + "game.sayWithHtml(\"c\", `Centered.`);\n"
+            + "game.say(`Third ${x}.`);\n"
+            + "game.say(`A [link](>${where}).`);\n"
+            + nodeEnd
+            + trailer);
+  }
+
+  @Test
+  public void transpile_interpolatedTextIsFormattedAtRuntime() {
+    // What ${howBad} inserts may itself be markdown, as in the cloak story.
+    String src =
+        """
+        =start=
+        | const howBad = "***much*** worse";
+        Before.
+
+        It is getting ${howBad}.
+        !c Still ${howBad}.
+        After.
+        """;
+
+    assertThat(Transpiler.forSource(src).transpile()).isEqualTo(
+        imports
+            + nodePreamble("=start=", "=g:start=")
+            + "const howBad = \"***much*** worse\";\n"
+            + "game.sayHtml(`<p>Before.</p>`);\n"
+            + "game.say(`It is getting ${howBad}.`);\n"
+            + "game.sayWith(\"c\", `Still ${howBad}.`);\n"
+            + "game.sayHtml(`<p>After.</p>`);\n"
+            + nodeEnd
+            + trailer);
+  }
+
+  @Test
+  public void transpile_instrumentTimesEachNode() {
+    String src = "=start=\nHi.\n";
+
+    assertThat(Transpiler.forSource(src).withInstrument(true).transpile()).isEqualTo(
+        imports
+            + "\n/* =start= */\n"
+            + "game.gameNodes[\"=g:start=\"] =\n"
+            + "new GameNode(\"=g:start=\").setExecFn(function(game, choice) {\n"
+            + "performance.mark(\"9l:node =g:start=\");\n"
+            + "try {\n"
+            + "game.player.location = \"=g:start=\";\n"
+            + "game.scope = \"g\";\n"
+            + "game.sayHtml(`<p>Hi.</p>`);\n"
+            + "game.scope = \"g\";\n"
+            + "} finally {\n"
+            + "performance.measure(\"9l:node =g:start=\", \"9l:node =g:start=\");\n"
+            + "performance.clearMarks(\"9l:node =g:start=\");\n"
+            + "}\n"
+            + "});\n"
+            + trailer);
+    assertThat(Transpiler.forSource(src).withInstrument(true).withCompact(true).transpile())
+        .contains("$n(\"=g:start=\",function(game,choice){\n"
+            + "performance.mark(\"9l:node =g:start=\");try{\n"
+            + "$h(`<p>Hi.</p>`);\n"
+            + "game.scope=\"g\";\n"
+            + "}finally{performance.measure(\"9l:node =g:start=\",\"9l:node =g:start=\");"
+            + "performance.clearMarks(\"9l:node =g:start=\")}\n"
+            + "});\n");
+  }
+
+  @Test
+  public void transpile_compactNeedsToReadTwice() {
+    Transpiler transpiler = Transpiler.forReader(new StringReader("=start=\n")).withCompact(true);
+
+    assertThrows(IllegalStateException.class, transpiler::transpile);
+  }
 }
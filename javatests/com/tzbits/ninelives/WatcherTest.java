@@ -0,0 +1,76 @@
+package com.tzbits.ninelives;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class WatcherTest {
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path write(String name, String content) throws IOException {
+    Path path = tmp.getRoot().toPath().resolve(name);
+    Files.writeString(path, content, StandardCharsets.UTF_8);
+    return path;
+  }
+
+  @Test
+  public void run_transpilesOnlyTheChangedFile() throws Exception {
+    Path root = tmp.getRoot().toPath();
+    BatchTranspiler.Job a =
+        new BatchTranspiler.Job(write("a.9l", "=a=\nHello.\n"), root.resolve("a.9l.js"));
+    BatchTranspiler.Job b =
+        new BatchTranspiler.Job(write("b.9l", "=b=\nHi.\n"), root.resolve("b.9l.js"));
+    BlockingQueue<ImmutableList<BatchTranspiler.Job>> rounds = new LinkedBlockingQueue<>();
+    Watcher watcher = Watcher.transpiling(
+        ImmutableList.of(a, b), 2, BatchTranspiler.Options.DEFAULT,
+        (jobs, failures, elapsed) -> rounds.add(jobs));
+    Thread thread = new Thread(() -> {
+      try {
+        watcher.run();
+      } catch (IOException | InterruptedException e) {
+        // Done.
+      }
+    });
+    thread.start();
+    try {
+      // The watcher registers asynchronously, so keep saving until it notices.
+      ImmutableList<BatchTranspiler.Job> transpiled = null;
+      for (int i = 0; i < 40 && transpiled == null; i++) {
+        write("a.9l", "=a=\nGoodbye.\n");
+        transpiled = rounds.poll(250, TimeUnit.MILLISECONDS);
+      }
+
+      assertThat(transpiled).containsExactly(a);
+      assertThat(Files.readString(a.out())).contains("game.sayHtml(`<p>Goodbye.</p>`);");
+      assertThat(Files.exists(b.out())).isFalse();
+    } finally {
+      thread.interrupt();
+      thread.join();
+    }
+  }
+
+  @Test
+  public void transpile_reportsFailures() throws IOException {
+    Path root = tmp.getRoot().toPath();
+    BatchTranspiler.Job job =
+        new BatchTranspiler.Job(write("a.9l", ">a Too soon.\n"), root.resolve("a.9l.js"));
+    BlockingQueue<ImmutableList<BatchTranspiler.Failure>> rounds = new LinkedBlockingQueue<>();
+    Watcher.transpile(ImmutableList.of(job), 1, BatchTranspiler.Options.DEFAULT,
+        (jobs, failures, elapsed) -> rounds.add(failures));
+
+    assertThat(rounds.remove()).hasSize(1);
+  }
+}
@@ -1,2 +0,0 @@
-#!/bin/bash
-exec /usr/bin/entr "$@"
@@ -1,34 +1,62 @@
 #!/bin/bash
-# local_dev_server_bin.sh <entr_path> <local_server_target> <files_to_watch...>
+# local_dev_server_bin.sh <nine_lives> <story_imports_js> [--<flag>...] <files_to_watch...>
+#
+# Serves a story's dev build with NineLives --serve, which transpiles
+# each .9l file from the workspace when it is next requested after a
+# save and tells open pages to reload. Other files to watch (e.g. a
+# custom story.js) are served straight from the workspace too. There is
+# no Bazel run or JVM start between a save and the new JavaScript.
+# Flags before the files, such as --instrument, are passed on to
+# NineLives, so the files are transpiled as in the dev build.
 
-ENTR_BIN="$1"
-LOCAL_SERVER_TARGET="$2"
+NINE_LIVES_BIN="$1"
+STORY_IMPORTS_JS="$2"
 shift 2
-FILES_TO_WATCH="$@"
+NINE_LIVES_FLAGS=()
+while [[ "$1" == --* ]]; do
+  NINE_LIVES_FLAGS+=("$1")
+  shift
+done
+FILES_TO_WATCH=("$@")
 
-if [ -z "$ENTR_BIN" ] || [ -z "$LOCAL_SERVER_TARGET" ]; then
-  echo "Usage: $0 <entr_path> <local_server_target> <files_to_watch...>"
+if [ -z "$NINE_LIVES_BIN" ] || [ -z "$STORY_IMPORTS_JS" ]; then
+  echo "Usage: $0 <nine_lives> <story_imports_js> [--<flag>...] <files_to_watch...>"
   exit 1
 fi
 
-# If ENTR_BIN is a relative path, we should try to find it relative to the original
-# directory if we are going to cd to BUILD_WORKSPACE_DIRECTORY.
-# However, entr itself will be executed BEFORE or AFTER cd?
-# In the current script, it is executed AFTER cd.
-# So we need the absolute path of ENTR_BIN.
+# Makes a path absolute without resolving symlinks, since the binary
+# finds its runfiles from its own path.
+abspath() {
+  if [[ "$1" =~ ^/ ]]; then echo "$1"; else echo "$(pwd)/$1"; fi
+}
 
-# Get the absolute path of the entr binary before we cd
-if [[ ! "$ENTR_BIN" =~ ^/ ]]; then
-  ENTR_BIN="$(pwd)/$ENTR_BIN"
-fi
-
-# We use -n for non-interactive mode and -r to restart the process.
-echo "Watching files: $FILES_TO_WATCH"
+# Resolve the runfiles before any cd.
+NINE_LIVES_BIN="$(abspath "$NINE_LIVES_BIN")"
+BUILD_DIR="$(dirname "$(abspath "$STORY_IMPORTS_JS")")"
 
-# Bazel run sets BUILD_WORKSPACE_DIRECTORY to the root of the workspace.
-# We must cd there because bazel cannot be run from within the bazel-out directory.
+# Bazel run sets BUILD_WORKSPACE_DIRECTORY to the root of the workspace,
+# where the sources being edited live (the runfiles are read-only copies).
 if [ -n "$BUILD_WORKSPACE_DIRECTORY" ]; then
   cd "$BUILD_WORKSPACE_DIRECTORY"
 fi
 
-echo "$FILES_TO_WATCH" | tr ' ' '\n' | "$ENTR_BIN" -n -r bazel run -- "$LOCAL_SERVER_TARGET"
+WORK_DIR="$(mktemp -d -t ninelives-dev.XXXXXX)"
+trap 'rm -rf "$WORK_DIR"' EXIT
+
+# Start from the last Bazel build of the story, linked into a directory
+# where workspace files can take the place of built ones.
+SERVE_DIR="$WORK_DIR/www"
+mkdir "$SERVE_DIR"
+cp -rs "$BUILD_DIR/." "$SERVE_DIR" 2>/dev/null || cp -rL "$BUILD_DIR/." "$SERVE_DIR"
+
+SERVE_ARGS=(--serve "$SERVE_DIR" --port 8080 --cache_dir "$WORK_DIR/cache" "${NINE_LIVES_FLAGS[@]}")
+for file in "${FILES_TO_WATCH[@]}"; do
+  if [[ "$file" == *.9l ]]; then
+    SERVE_ARGS+=(--in "$(abspath "$file")" --out "$SERVE_DIR/$(basename "$file").js")
+  else
+    ln -sf "$(abspath "$file")" "$SERVE_DIR/$(basename "$file")"
+  fi
+done
+
+echo "Watching files: ${FILES_TO_WATCH[*]}"
+"$NINE_LIVES_BIN" "${SERVE_ARGS[@]}"